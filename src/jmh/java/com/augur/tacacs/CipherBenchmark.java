@@ -0,0 +1,108 @@
+package com.augur.tacacs;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of Header.toggleCipher() per packet, for a few body sizes:
+ * with a connection's reused Pad, with a new Pad per packet (as for a one-off
+ * packet without a connection), and the original implementation, which looked
+ * up a MessageDigest and allocated a pad and an output array for every packet.
+ * Divide by bodyBytes for ns/byte; run with "-prof gc" to see the allocation
+ * per packet, e.g.
+ * <pre>
+ *   gradle jmh
+ *   mvn -Pjmh test-compile exec:exec -Djmh.args="-prof gc"
+ * </pre>
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherBenchmark
+{
+	@Param({ "16", "64", "1024" })
+	public int bodyBytes;
+
+	private Header header;
+	private byte[] key;
+	private byte[] body;
+	private Header.Pad pad;
+
+
+	@Setup public void setUp()
+	{
+		header = new Header(TAC_PLUS.PACKET.FLAG.SINGLE_CONNECT.code(), TAC_PLUS.PACKET.VERSION.v13_0, TAC_PLUS.PACKET.TYPE.AUTHOR, new byte[] { 1, 2, 3, 4 });
+		key = "benchmark key".getBytes(StandardCharsets.UTF_8);
+		body = new byte[bodyBytes];
+		Arrays.fill(body, (byte)'x');
+		pad = new Header.Pad();
+	}
+
+
+	/** As a connection ciphers each packet it writes or reads. */
+	@Benchmark public byte[] reusedPad() throws NoSuchAlgorithmException
+	{
+		return header.toggleCipher(body, key, pad);
+	}
+
+
+	/** As a packet encoded or decoded without a connection. */
+	@Benchmark public byte[] newPad() throws NoSuchAlgorithmException
+	{
+		return header.toggleCipher(body, key, null);
+	}
+
+
+	/** The original implementation, for comparison. */
+	@Benchmark public byte[] original() throws NoSuchAlgorithmException
+	{
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		int length = body.length;
+		byte[] p = new byte[length];
+		md.update(header.sessionID);
+		md.update(key);
+		md.update(header.version.code());
+		md.update(header.seqNum);
+		byte[] digest = md.digest();
+		System.arraycopy(digest, 0, p, 0, Math.min(digest.length, length));
+		length -= digest.length;
+		int pos = digest.length;
+		while (length>0)
+		{
+			md.update(header.sessionID);
+			md.update(key);
+			md.update(header.version.code());
+			md.update(header.seqNum);
+			md.update(Arrays.copyOfRange(p, pos-digest.length, pos));
+			digest = md.digest();
+			System.arraycopy(digest, 0, p, pos, Math.min(digest.length, length));
+			pos += digest.length;
+			length -= digest.length;
+		}
+		byte[] toggled = new byte[body.length];
+		for (int i=body.length-1; i>=0; i--) { toggled[i] = (byte)(body[i] ^ p[i]); }
+		return toggled;
+	}
+
+}
@@ -0,0 +1,318 @@
+package com.augur.tacacs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * A durable spool of accounting records, kept on local disk while no TACACS+
+ * server will take them, and replayed in order once one will.  Give it to an
+ * AccountingSubmitter with setSpill(): records that overflow its queue, or
+ * can't be delivered, are written here; and the submitter replays them from
+ * here when a server is reachable, interleaved with new records.  Records
+ * remaining when the JVM stops are replayed by the next AccountingSpool opened
+ * on the same directory.
+ * <p>
+ * Records are appended to memory-mapped segment files of a fixed size, each
+ * as its length, a CRC32, and the encoded AcctRequest body; the length is
+ * written last, so a record torn by a crash is never read.  A checkpoint file
+ * holds the position of the oldest record not yet acknowledged; segments
+ * wholly before it are deleted.  Records replayed but not acknowledged before
+ * a crash are replayed again, so the server may see them twice.
+ * </p>
+ * Appends are only as durable as the operating system's page cache, which
+ * survives the JVM crashing but not the host; call flush() (e.g. periodically)
+ * to force them to the disk.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class AccountingSpool implements AccountingSubmitter.Spill, Closeable
+{
+	public static final int DEFAULT_SEGMENT_BYTES = 16<<20;
+	private static final Pattern SEGMENT = Pattern.compile("acct-(\\d{10})\\.spool");
+	private static final String CHECKPOINT = "checkpoint";
+	/** The length and CRC32 preceding each record. */
+	private static final int RECORD_OVERHEAD = 8;
+
+	private final File dir;
+	private final int segmentBytes;
+	private final long maxBytes;
+	/** The mapped segments not yet deleted, by sequence number; guarded by 'this'. */
+	private final TreeMap<Integer,MappedByteBuffer> segments;
+	private final MappedByteBuffer checkpoint;
+	private final CRC32 crc;
+	/** The position (see position()) where the next record is appended. */
+	private long writeAt;
+	/** The position of the next record to replay. */
+	private long readAt;
+	/** The positions of the records replayed, but not yet acknowledged. */
+	private final TreeSet<Long> outstanding;
+	/** The segments appended to since the last flush(). */
+	private final TreeSet<Integer> dirty;
+	private long checkpointed;
+	private boolean closed;
+	private volatile DebugLogger logger;
+
+
+	/**
+	 * Opens the spool in the given directory, with the default segment size
+	 * and a limit of 1 GiB.
+	 */
+	public AccountingSpool(File dir) throws IOException
+	{
+		this(dir, DEFAULT_SEGMENT_BYTES, 1L<<30);
+	}
+
+
+	/**
+	 * Opens the spool in the given directory, creating it if need be, or
+	 * recovering the records left by a previous AccountingSpool.
+	 *
+	 * @param dir The directory, used only by this spool.
+	 * @param segmentBytes The size of each segment file; a little more than the largest record, at least.
+	 * @param maxBytes The most disk space to use; appending fails after that.
+	 *   Must allow at least two segments.
+	 * @throws IOException if the directory can't be used.
+	 */
+	public AccountingSpool(File dir, int segmentBytes, long maxBytes) throws IOException
+	{
+		if (segmentBytes<(1<<16) || maxBytes<2L*segmentBytes) { throw new IllegalArgumentException("Bad spool size: segment="+segmentBytes+", max="+maxBytes); }
+		if (!dir.isDirectory() && !dir.mkdirs()) { throw new IOException("Unable to create spool directory: "+dir); }
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.maxBytes = maxBytes;
+		this.segments = new TreeMap<>();
+		this.outstanding = new TreeSet<>();
+		this.dirty = new TreeSet<>();
+		this.crc = new CRC32();
+		this.checkpoint = map(new File(dir, CHECKPOINT), 16);
+		File[] files = dir.listFiles();
+		if (files != null)
+		{
+			for (File f : files)
+			{
+				Matcher m = SEGMENT.matcher(f.getName());
+				if (m.matches()) { segments.put(Integer.valueOf(m.group(1)), map(f, segmentBytes)); }
+			}
+		}
+		if (segments.isEmpty()) { segments.put(0, map(segmentFile(0), segmentBytes)); }
+		// Resume reading from the checkpoint, if it is intact and its segment still exists
+		long saved = checkpoint.getLong(0);
+		readAt = (checkpoint.getLong(8)==checksum(saved) && segments.containsKey(segment(saved))) ? saved : position(segments.firstKey(), 0);
+		checkpointed = readAt;
+		// Resume writing after the last intact record
+		int last = segments.lastKey();
+		MappedByteBuffer tail = segments.get(last);
+		int offset = 0;
+		while (true)
+		{
+			int length = recordLength(tail, offset);
+			if (length<0 || read(tail, offset, length)==null) { break; }
+			offset += RECORD_OVERHEAD + length;
+		}
+		writeAt = position(last, offset);
+		tail.putInt(offset, 0); // in case a torn record left its length
+		dirty.add(last);
+		deleteBefore(segment(readAt));
+	}
+
+
+	/** @param logger Logs corrupt records skipped, and other trouble; null for none. */
+	public void setDebugLogger(DebugLogger logger)
+	{
+		this.logger = logger;
+	}
+
+
+	/** Appends the record; called by AccountingSubmitter. */
+	@Override public void spill(AccountingSubmitter.Record record) throws IOException
+	{
+		byte[] body = new AcctRequest(null, record.flags, TAC_PLUS.AUTHEN.METH.TACACSPLUS, TAC_PLUS.PRIV_LVL.USER.code(), TAC_PLUS.AUTHEN.TYPE.PAP, TAC_PLUS.AUTHEN.SVC.LOGIN,
+			(record.username==null) ? "" : record.username, "console", "localhost", (record.args==null) ? new Argument[0] : record.args).body();
+		append(body);
+	}
+
+
+	private synchronized void append(byte[] body) throws IOException
+	{
+		if (closed) { throw new IOException("Accounting spool closed"); }
+		int size = RECORD_OVERHEAD + body.length;
+		if (size > segmentBytes-4) { throw new IOException("Accounting record too large to spool: "+body.length+" bytes"); }
+		int seg = segment(writeAt);
+		int offset = offset(writeAt);
+		if (offset+size > segmentBytes-4) // always leave room for the zero length marking the end
+		{
+			if ((long)(segments.size()+1)*segmentBytes > maxBytes) { throw new IOException("Accounting spool full: "+dir); }
+			seg++;
+			offset = 0;
+			segments.put(seg, map(segmentFile(seg), segmentBytes));
+		}
+		MappedByteBuffer buf = segments.get(seg);
+		crc.reset();
+		crc.update(body, 0, body.length);
+		buf.putInt(offset+4, (int)crc.getValue());
+		buf.position(offset+RECORD_OVERHEAD);
+		buf.put(body);
+		buf.putInt(offset+size, 0);
+		buf.putInt(offset, body.length); // last, committing the record
+		dirty.add(seg);
+		writeAt = position(seg, offset+size);
+	}
+
+
+	/** @return The next record to send again, or null if none; called by AccountingSubmitter. */
+	@Override public synchronized AccountingSubmitter.Record replay() throws IOException
+	{
+		while (!closed && readAt<writeAt)
+		{
+			int seg = segment(readAt);
+			int offset = offset(readAt);
+			MappedByteBuffer buf = segments.get(seg);
+			int length = recordLength(buf, offset);
+			byte[] body = (length<0) ? null : read(buf, offset, length);
+			if (body == null)
+			{
+				// The end of a segment, or a corrupt record that ends it
+				if (length>0 && logger != null) { logger.error("TACACS: Skipping corrupt accounting records in "+segmentFile(seg)+" after "+offset); }
+				Integer next = segments.higherKey(seg);
+				if (next == null) { break; }
+				readAt = position(next, 0);
+				checkpoint();
+				continue;
+			}
+			long at = readAt;
+			readAt = position(seg, offset+RECORD_OVERHEAD+length);
+			AcctRequest r;
+			try { r = new AcctRequest(null, body); }
+			catch (IOException e) { continue; } // can't happen, with an intact CRC
+			AccountingSubmitter.Record record = new AccountingSubmitter.Record(r.flags, (r.user==null) ? "" : r.user, r.getArguments()); // spilled as ""
+			record.spooledAt = at;
+			outstanding.add(at);
+			return record;
+		}
+		return null;
+	}
+
+
+	/** Forgets a record from replay(), once sent or given up; called by AccountingSubmitter. */
+	@Override public synchronized void acknowledge(AccountingSubmitter.Record record) throws IOException
+	{
+		if (outstanding.remove(record.spooledAt) && !closed) { checkpoint(); }
+	}
+
+
+	/** Saves the position of the oldest record not acknowledged, and deletes the segments before it. */
+	private void checkpoint()
+	{
+		long oldest = outstanding.isEmpty() ? readAt : outstanding.first();
+		if (oldest == checkpointed) { return; }
+		checkpoint.putLong(0, oldest);
+		checkpoint.putLong(8, checksum(oldest));
+		checkpointed = oldest;
+		deleteBefore(segment(oldest));
+	}
+
+
+	private void deleteBefore(int seg)
+	{
+		for (Iterator<Map.Entry<Integer,MappedByteBuffer>> i = segments.entrySet().iterator(); i.hasNext(); )
+		{
+			Map.Entry<Integer,MappedByteBuffer> e = i.next();
+			if (e.getKey()>=seg || e.getKey()>=segment(writeAt)) { break; }
+			i.remove();
+			dirty.remove(e.getKey());
+			// The mapping lasts until garbage-collected, but a Unix file system frees the file then
+			if (!segmentFile(e.getKey()).delete() && logger != null) { logger.error("TACACS: Unable to delete spool segment "+segmentFile(e.getKey())); }
+		}
+	}
+
+
+	/** @return The approximate bytes of records not yet acknowledged. */
+	public synchronized long getBacklogBytes()
+	{
+		long oldest = outstanding.isEmpty() ? readAt : outstanding.first();
+		return (long)(segment(writeAt)-segment(oldest))*segmentBytes + offset(writeAt) - offset(oldest);
+	}
+
+
+	/** Forces the records appended so far, and the checkpoint, to the disk. */
+	public synchronized void flush()
+	{
+		if (closed) { return; }
+		for (Integer seg : dirty) { segments.get(seg).force(); } // including any rolled over since the last flush
+		dirty.clear();
+		checkpoint.force();
+	}
+
+
+	/** Flushes, and closes the spool; records replayed but not acknowledged will be replayed by the next one opened. */
+	@Override public synchronized void close()
+	{
+		flush();
+		closed = true;
+	}
+
+
+	private static int recordLength(MappedByteBuffer buf, int offset)
+	{
+		if (offset+RECORD_OVERHEAD > buf.capacity()) { return -1; }
+		int length = buf.getInt(offset);
+		return (length<=0 || offset+RECORD_OVERHEAD+length > buf.capacity()) ? -1 : length;
+	}
+
+
+	/** @return The record's body, or null if its CRC doesn't match. */
+	private byte[] read(MappedByteBuffer buf, int offset, int length)
+	{
+		byte[] body = new byte[length];
+		buf.position(offset+RECORD_OVERHEAD);
+		buf.get(body);
+		crc.reset();
+		crc.update(body, 0, body.length);
+		return (buf.getInt(offset+4) == (int)crc.getValue()) ? body : null;
+	}
+
+
+	private File segmentFile(int seg)
+	{
+		return new File(dir, String.format("acct-%010d.spool", seg));
+	}
+
+
+	private static MappedByteBuffer map(File f, int size) throws IOException
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw"))
+		{
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size); // grows the file, zero-filled
+		}
+	}
+
+
+	/** @return A position: the segment's sequence number in the high int, and the offset within it in the low. */
+	private static long position(int seg, int offset) { return ((long)seg<<32) | offset; }
+	private static int segment(long position) { return (int)(position>>>32); }
+	private static int offset(long position) { return (int)position; }
+
+	private static long checksum(long position)
+	{
+		return ~Long.rotateLeft(position, 17) ^ 0x5441434143532BL; // "TACACS+"
+	}
+
+
+	@Override public String toString()
+	{
+		return getClass().getSimpleName()+"["+dir+" backlog:"+getBacklogBytes()+" bytes]";
+	}
+
+}
@@ -0,0 +1,467 @@
+package com.augur.tacacs;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends accounting records in the background, so that the threads producing
+ * them (e.g. serving the requests being audited) never wait for a TACACS+
+ * server.  Records are put in a bounded queue; a sender thread takes them, and
+ * sends each in a new session without waiting for the replies of those before
+ * it, up to a limit in flight.  With a single-connect client, these sessions
+ * are pipelined over the pooled connections.  Create one with
+ * TacacsClient.newAccountingSubmitter().
+ * <p>
+ * A record is sent again, after a back-off delay, if the server replies ERROR
+ * or the connection fails before the reply, up to a number of attempts; but not
+ * if the reply times out, since the server may have recorded it.  While no
+ * server can be reached, the sender holds the record it has, and waits before
+ * trying again, so the queue fills up.  Then the Backpressure policy decides
+ * the fate of new records.  Records that can't be delivered, or that are
+ * squeezed out by SPILL, are given to the Spill, if any; otherwise they are
+ * counted as failed or dropped, and discarded.  (Records the server refuses,
+ * replying ERROR to every attempt, are never spilled.)  A Spill that replays,
+ * such as AccountingSpool, has its records sent again, alternating with the
+ * queued ones, whenever a server can be reached.
+ * </p>
+ * The records in flight, queued, or waiting to be retried are lost if the JVM
+ * exits; call close() first, to send them.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class AccountingSubmitter
+{
+	/** What submit() does when the queue is full. */
+	public enum Backpressure
+	{
+		/** Waits for room in the queue; so a prolonged outage stalls the callers. */
+		BLOCK,
+		/** Discards the oldest queued record, to make room for the new one. */
+		DROP_OLDEST,
+		/** Gives the new record to the Spill (see setSpill()), or discards it if there is none. */
+		SPILL
+	}
+
+
+	/**
+	 * Stores records that can't be queued or delivered, e.g. in a file for later
+	 * replay.  Its methods are called by the submitter's sender thread, rather
+	 * than the threads completing replies (e.g. a connection's reader), until
+	 * close() stops the sender; and also by submit() with SPILL backpressure.
+	 */
+	public interface Spill
+	{
+		/** @throws IOException if the record couldn't be stored; it is then discarded. */
+		void spill(Record record) throws IOException;
+
+		/**
+		 * @return The next stored record to be sent again, or null if none;
+		 *   this default never replays.  Each record returned is passed to
+		 *   acknowledge() once sent, refused, or stored again.
+		 */
+		default Record replay() throws IOException { return null; }
+
+		/** Forgets a record returned by replay(); this default does nothing. */
+		default void acknowledge(Record record) throws IOException {}
+	}
+
+
+	/** An accounting record, sent with authen_meth=TACACS+, authen_type=PAP, and authen_svc=LOGIN. */
+	public static final class Record
+	{
+		final byte flags;
+		final String username;
+		final Argument[] args;
+		/** The number of times sent so far; only touched by one thread at a time. */
+		int attempts;
+		/** Where a replayed record is stored, for its Spill; otherwise -1. */
+		long spooledAt = -1;
+
+		/**
+		 * @param flags One of TAC_PLUS.ACCT.FLAG.START, STOP, WATCHDOG, or WATCHDOG+START
+		 * @param username The String id of the user this record applies to
+		 * @param args The Argument[] record contents
+		 */
+		public Record(byte flags, String username, Argument[] args)
+		{
+			this.flags = flags;
+			this.username = username;
+			this.args = args;
+		}
+
+		public byte getFlags() { return flags; }
+		public String getUsername() { return username; }
+		public Argument[] getArguments() { return args; }
+
+		@Override public String toString()
+		{
+			return getClass().getSimpleName()+"[flags:"+flags+" user:"+username+" arguments:"+Arrays.toString(args)+"]";
+		}
+	}
+
+
+	private final TacacsClient client;
+	private final Backpressure backpressure;
+	private final ArrayBlockingQueue<Record> queue;
+	/** Records due for another attempt; sent before the queued ones. */
+	private final ConcurrentLinkedQueue<Record> retries;
+	/** Replies to be handled by the sender, so the Spill's I/O is never done by a connection's reader. */
+	private final ConcurrentLinkedQueue<Runnable> replies;
+	/** Permits for sessions waiting for replies. */
+	private final Semaphore inFlight;
+	/** The records accepted, but not yet sent, failed, dropped, or spilled. */
+	private final AtomicInteger pending;
+	private final Thread sender;
+	private volatile Spill spill;
+	private volatile int maxAttempts;
+	private volatile long retryDelayMillis;
+	/** A boolean indicating that no more records are accepted. */
+	private volatile boolean closed;
+	/** A boolean indicating that the sender has stopped, and no more records are sent. */
+	private volatile boolean stopped;
+	/** A boolean indicating if the sender next tries the Spill's replay, before the queue; sender only. */
+	private boolean replayNext;
+
+	private final LongAdder submitted = new LongAdder();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder retried = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder spilled = new LongAdder();
+
+
+	/**
+	 * @param capacity The most records to queue.
+	 * @param maxInFlight The most sessions waiting for replies at once.
+	 */
+	AccountingSubmitter(TacacsClient client, int capacity, int maxInFlight, Backpressure backpressure)
+	{
+		if (capacity<1 || maxInFlight<1 || backpressure==null) { throw new IllegalArgumentException("Bad accounting submitter: capacity="+capacity+", maxInFlight="+maxInFlight+", backpressure="+backpressure); }
+		this.client = client;
+		this.backpressure = backpressure;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.retries = new ConcurrentLinkedQueue<>();
+		this.replies = new ConcurrentLinkedQueue<>();
+		this.inFlight = new Semaphore(maxInFlight);
+		this.pending = new AtomicInteger();
+		this.maxAttempts = 3;
+		this.retryDelayMillis = 1000;
+		this.sender = Threads.factory("TACACS+ accounting", false).newThread(this::run);
+		sender.start();
+	}
+
+
+	/** @param spill Where to put records that can't be queued or sent; null (the default) to discard them. */
+	public void setSpill(Spill spill)
+	{
+		this.spill = spill;
+	}
+
+
+	/**
+	 * @param maxAttempts The most times to send each record; the default is 3.
+	 * @param retryDelayMillis The delay before the first retry, doubled for each
+	 *   retry after; also the wait between connection attempts while no server
+	 *   can be reached.  The default is 1 second.
+	 */
+	public void setRetry(int maxAttempts, long retryDelayMillis)
+	{
+		if (maxAttempts<1 || retryDelayMillis<1) { throw new IllegalArgumentException("Bad retry: maxAttempts="+maxAttempts+", delay="+retryDelayMillis); }
+		this.maxAttempts = maxAttempts;
+		this.retryDelayMillis = retryDelayMillis;
+	}
+
+
+	/**
+	 * Queues an accounting record to be sent.
+	 *
+	 * @param flags One of TAC_PLUS.ACCT.FLAG.START, STOP, WATCHDOG, or WATCHDOG+START
+	 * @param username The String id of the user this record applies to
+	 * @param args The Argument[] record contents
+	 * @return A boolean indicating if the record was queued (or spilled);
+	 *   false if it was discarded, e.g. after close().
+	 */
+	public boolean submit(byte flags, String username, Argument[] args)
+	{
+		return submit(new Record(flags, username, args));
+	}
+
+
+	/**
+	 * Queues an accounting record to be sent; may wait for room in the queue,
+	 * if the Backpressure policy is BLOCK.
+	 *
+	 * @return A boolean indicating if the record was queued (or spilled);
+	 *   false if it was discarded, e.g. after close().
+	 */
+	public boolean submit(Record record)
+	{
+		submitted.increment();
+		pending.incrementAndGet();
+		if (closed)
+		{
+			drop();
+			return false;
+		}
+		switch (backpressure)
+		{
+			case BLOCK:
+				try { queue.put(record); }
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					drop();
+					return false;
+				}
+				return true;
+			case DROP_OLDEST:
+				while (!queue.offer(record))
+				{
+					Record oldest = queue.poll();
+					if (oldest != null) { drop(); }
+				}
+				return true;
+			case SPILL:
+			default:
+				return queue.offer(record) || giveUp(record, false);
+		}
+	}
+
+
+	/**
+	 * Stops accepting records, and waits for those accepted to be sent.  Any
+	 * still unsent after the time-out are given to the Spill, or discarded.
+	 *
+	 * @param timeoutMillis The most time to wait.
+	 * @return A boolean indicating if every record was sent (or failed) in time.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public boolean close(long timeoutMillis) throws InterruptedException
+	{
+		closed = true;
+		long giveUpAt = System.currentTimeMillis() + timeoutMillis;
+		sender.join(Math.max(1, timeoutMillis));
+		while (pending.get()>0 && System.currentTimeMillis()<giveUpAt) { Thread.sleep(10); } // replies still in flight
+		boolean done = (pending.get()==0);
+		stopped = true;
+		sender.interrupt();
+		sender.join();
+		handleReplies();
+		Record r;
+		while ((r = retries.poll()) != null) { undelivered(r); }
+		while ((r = queue.poll()) != null) { giveUp(r, false); }
+		return done;
+	}
+
+
+	private void run()
+	{
+		try
+		{
+			while (!stopped)
+			{
+				inFlight.acquire();
+				handleReplies();
+				Record r = retries.poll();
+				if (r == null && (replayNext = !replayNext)) { r = replay(); } // alternating with the queue
+				if (r == null) { r = queue.poll(); }
+				if (r == null) { r = replay(); }
+				if (r == null) { r = queue.poll(100, TimeUnit.MILLISECONDS); }
+				if (r == null)
+				{
+					inFlight.release();
+					if (closed && queue.isEmpty() && retries.isEmpty() && pending.get()==0) { return; }
+					continue;
+				}
+				send(r);
+			}
+		}
+		catch (InterruptedException e) {
+			// stopped by close()
+		}
+	}
+
+
+	/** Sends the record in a new session; called by the sender, holding an inFlight permit. */
+	private void send(Record r) throws InterruptedException
+	{
+		SessionClient session;
+		try { session = client.newSession(TAC_PLUS.AUTHEN.SVC.LOGIN, "console", "localhost", TAC_PLUS.PRIV_LVL.USER.code()); }
+		catch (IOException e)
+		{
+			// No server can be reached; hold the record, and let the queue fill meanwhile
+			inFlight.release();
+			retries.add(r);
+			client.debug("TACACS: Accounting waiting for a server ("+e+")");
+			Thread.sleep(retryDelayMillis);
+			return;
+		}
+		r.attempts++;
+		CompletableFuture<AcctReply> reply;
+		try { reply = session.accountAsync(r.flags, r.username, TAC_PLUS.AUTHEN.METH.TACACSPLUS, TAC_PLUS.AUTHEN.TYPE.PAP, TAC_PLUS.AUTHEN.SVC.LOGIN, r.args, session.getReplyTimeoutMillis()); }
+		catch (RuntimeException e)
+		{
+			// A bad record, e.g. without a username; it won't do better next time, but mustn't stop the sender.
+			// Nothing was sent, so the (maybe shared) connection is fine, and there's no latency to record.
+			session.tacacs.removeSession(session);
+			inFlight.release();
+			client.debug("TACACS: Unable to send accounting record "+r+" ("+e+")");
+			giveUp(r, true);
+			return;
+		}
+		reply.whenComplete((acct, error) ->
+		{
+			// On the connection's reader thread, or a TacacsSelector loop; leave the work to the sender
+			replies.add(() -> replied(r, acct, error));
+			inFlight.release(); // after queueing the reply, so the sender finds it when it wakes
+			if (stopped) { handleReplies(); } // there's no sender any more
+		});
+	}
+
+
+	/** Handles the replies queued so far; called by the sender, or by any thread once it has stopped. */
+	private void handleReplies()
+	{
+		Runnable reply;
+		while ((reply = replies.poll()) != null) { reply.run(); }
+	}
+
+
+	/** @return The next record from the Spill, if it replays; null if none, or while closing. */
+	private Record replay()
+	{
+		Spill s = spill;
+		if (s == null || closed) { return null; }
+		try
+		{
+			Record r = s.replay();
+			if (r != null) { pending.incrementAndGet(); }
+			return r;
+		}
+		catch (IOException e)
+		{
+			client.debug("TACACS: Unable to replay spilled accounting record ("+e+")");
+			return null;
+		}
+	}
+
+
+	private void replied(Record r, AcctReply reply, Throwable error)
+	{
+		if (error == null && reply != null && reply.isOK())
+		{
+			sent.increment();
+			settle(r);
+			return;
+		}
+		if (error instanceof CompletionException && error.getCause() != null) { error = error.getCause(); }
+		boolean answered = (error == null && reply != null); // null if the connection closed first
+		boolean retry = answered ? (reply.status == TAC_PLUS.ACCT.STATUS.ERROR)
+			: (error == null || error instanceof IOException); // not a TimeoutException: the server may have recorded it
+		if (retry && r.attempts < maxAttempts && !stopped)
+		{
+			retried.increment();
+			long delay = retryDelayMillis << Math.min(r.attempts-1, 10);
+			Session.Timeouts.EXECUTOR.schedule(() ->
+			{
+				if (stopped) { undelivered(r); }
+				else { retries.add(r); }
+			}, delay, TimeUnit.MILLISECONDS);
+			return;
+		}
+		client.debug("TACACS: Accounting failed after "+r.attempts+" attempt(s): "+((error != null) ? error : reply));
+		if (answered)
+		{
+			// Refused by the server; storing it for later wouldn't help
+			failed.increment();
+			settle(r);
+		}
+		else { undelivered(r); }
+	}
+
+
+	/** Gives up on a record that was (or might not have been) delivered. */
+	private void undelivered(Record r)
+	{
+		if (stopped && r.spooledAt >= 0) { pending.decrementAndGet(); } // still in the Spill, unacknowledged, for next time
+		else { giveUp(r, true); }
+	}
+
+
+	/**
+	 * Spills a record, if possible; otherwise discards it.
+	 * @param attempted A boolean indicating if the record was sent, rather than squeezed out by backpressure or close().
+	 * @return A boolean indicating if the record was spilled.
+	 */
+	private boolean giveUp(Record r, boolean attempted)
+	{
+		Spill s = spill;
+		if (s != null)
+		{
+			try
+			{
+				s.spill(r);
+				spilled.increment();
+				settle(r);
+				return true;
+			}
+			catch (IOException | RuntimeException e) { client.debug("TACACS: Unable to spill accounting record ("+e+")"); }
+		}
+		if (attempted) { failed.increment(); }
+		else { dropped.increment(); }
+		settle(r);
+		return false;
+	}
+
+
+	/** Ends a record's time in this submitter; acknowledging it to the Spill, if replayed from there. */
+	private void settle(Record r)
+	{
+		if (r.spooledAt >= 0)
+		{
+			try { spill.acknowledge(r); }
+			catch (IOException e) { client.debug("TACACS: Unable to acknowledge spilled accounting record ("+e+")"); }
+		}
+		pending.decrementAndGet();
+	}
+
+
+	private void drop()
+	{
+		dropped.increment();
+		pending.decrementAndGet();
+	}
+
+
+	/** @return The number of records accepted, but not yet sent, failed, dropped, or spilled. */
+	public int getPending() { return pending.get(); }
+	/** @return The number of records queued, or waiting to be retried. */
+	public int getQueued() { return queue.size() + retries.size(); }
+	public long getSubmitted() { return submitted.sum(); }
+	/** @return The number of records the server acknowledged with SUCCESS. */
+	public long getSent() { return sent.sum(); }
+	/** @return The number of times records were sent again. */
+	public long getRetried() { return retried.sum(); }
+	/** @return The number of records discarded after failing to be sent. */
+	public long getFailed() { return failed.sum(); }
+	/** @return The number of records discarded by backpressure, or after close(). */
+	public long getDropped() { return dropped.sum(); }
+	public long getSpilled() { return spilled.sum(); }
+
+
+	@Override public String toString()
+	{
+		return getClass().getSimpleName()+"[queued:"+getQueued()+" pending:"+getPending()+" submitted:"+getSubmitted()+" sent:"+getSent()
+			+" retried:"+getRetried()+" failed:"+getFailed()+" dropped:"+getDropped()+" spilled:"+getSpilled()+"]";
+	}
+
+}
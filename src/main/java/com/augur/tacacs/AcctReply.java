@@ -1,9 +1,7 @@
 package com.augur.tacacs;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 
 /**
  * @author Chris.Janicki@augur.com
@@ -39,6 +37,16 @@ public class AcctReply extends Packet
 		this.server_msg = server_msg;
 		this.data = data;
 	}
+
+
+	/** Constructor for a copy of a canned reply, with the given header; see Packet(Header, Packet). */
+	AcctReply(Header header, AcctReply canned)
+	{
+		super(header, canned);
+		this.status = canned.status;
+		this.server_msg = canned.server_msg;
+		this.data = canned.data;
+	}
 	
 	
 	@Override boolean isEndOfSession() { return true; }
@@ -74,27 +82,21 @@ public class AcctReply extends Packet
 	
 	
 	/**
-	 * Writes the whole packet.
-	 * @param out  The destination OutputStream
-	 * @param key The byte[] secret key shared between the client and server.
-	 * @param md A shared MessageDigest; will be sync'd.
-	 * @throws IOException if there is a problem writing to the given OutputStream.
+	 * Puts the body, unciphered, at the buffer's position; see encodeTo().
+	 * @throws java.nio.BufferOverflowException if the buffer hasn't room.
 	 */
-	@Override void write(OutputStream out, byte[] key) throws IOException
+	@Override void encodeBody(ByteBuffer body)
 	{
 		byte[] smsgBytes = server_msg==null?null:server_msg.getBytes(StandardCharsets.UTF_8);
 		byte[] dataBytes = data==null?null:data.getBytes(StandardCharsets.UTF_8);
 		// Truncating to fit packet...  lengths are limited to a 16 bits
-		if (smsgBytes!=null && smsgBytes.length>FFFF) { smsgBytes = Arrays.copyOfRange(smsgBytes,0,FFFF); }
-		if (dataBytes!=null && dataBytes.length>FFFF) { dataBytes = Arrays.copyOfRange(dataBytes,0,FFFF); }
-		ByteArrayOutputStream body = new ByteArrayOutputStream(6 + (smsgBytes==null?0:smsgBytes.length) + (dataBytes==null?0:dataBytes.length));
-		body.write(toBytes2(smsgBytes==null?0:smsgBytes.length));
-		body.write(toBytes2(dataBytes==null?0:dataBytes.length));
-		body.write(status.code());
-		if (smsgBytes!=null) { body.write(smsgBytes); }
-		if (dataBytes!=null) { body.write(dataBytes); }
-		byte[] bodyBytes = body.toByteArray();
-		header.writePacket(out, bodyBytes, key);
+		int smsgLen = smsgBytes==null ? 0 : Math.min(FFFF, smsgBytes.length);
+		int dataLen = dataBytes==null ? 0 : Math.min(FFFF, dataBytes.length);
+		body.putShort((short)smsgLen);
+		body.putShort((short)dataLen);
+		body.put(status.code());
+		if (smsgBytes!=null) { body.put(smsgBytes, 0, smsgLen); }
+		if (dataBytes!=null) { body.put(dataBytes, 0, dataLen); }
 	}
 	
 
@@ -1,7 +1,6 @@
 package com.augur.tacacs;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
@@ -20,7 +19,12 @@ public class AcctRequest extends Packet
 	final String user;
 	final String port;
 	final String rem_addr;
-	final Argument[] arguments;
+	/** The arguments, if built to be sent; null if received. */
+	private final Argument[] arguments;
+	/** The arguments, if received; decoded only as they're asked for. */
+	private final EncodedArguments encoded;
+	/** The common parts of the body, already encoded, if built from a template; otherwise null. */
+	private final RequestTemplate template;
 
 	@Override public String toString()
 	{
@@ -35,7 +39,7 @@ public class AcctRequest extends Packet
 		sb.append(" user:").append(user);
 		sb.append(" port:").append(port);
 		sb.append(" rem_addr:").append(rem_addr);
-		sb.append(" arguments:[").append(Arrays.toString(arguments));
+		sb.append(" arguments:[").append(Arrays.toString(getArguments()));
 		sb.append("]]");
 		return sb.toString();
 	}
@@ -49,9 +53,12 @@ public class AcctRequest extends Packet
 		super(header);
 		// Verify
 		final int overhead = 9;
-		int chkLen = overhead+body[5]+body[6]+body[7]+body[8];
-		if (overhead+body[8] > body.length) { throw new IOException("Corrupt packet or bad key"); }
-		for (int i=0; i<body[8]; i++) { chkLen += body[overhead+i]; }
+		if (body.length<overhead) { throw new IOException("Corrupt packet or bad key"); }
+		int arg_cnt = body[8] & FF;
+		int userLen = body[5] & FF, portLen = body[6] & FF, remaLen = body[7] & FF;
+		if (overhead+arg_cnt > body.length) { throw new IOException("Corrupt packet or bad key"); }
+		int chkLen = overhead+arg_cnt+userLen+portLen+remaLen;
+		for (int i=0; i<arg_cnt; i++) { chkLen += body[overhead+i] & FF; }
 		if (chkLen != body.length) { throw new IOException("Corrupt packet or bad key"); }
 		//
 		flags = body[0];
@@ -59,18 +66,13 @@ public class AcctRequest extends Packet
 		priv_lvl = body[2];
 		authen_type = TAC_PLUS.AUTHEN.TYPE.forCode(body[3]);
 		authen_service = TAC_PLUS.AUTHEN.SVC.forCode(body[4]);
-		int arg_cnt = body[8];
-		int i, offset = overhead + arg_cnt;
-		i=body[5];     user = (i>0) ? new String(body, offset, i, StandardCharsets.UTF_8) : null; offset+=i;
-		i=body[6];     port = (i>0) ? new String(body, offset, i, StandardCharsets.UTF_8) : null; offset+=i;
-		i=body[7]; rem_addr = (i>0) ? new String(body, offset, i, StandardCharsets.UTF_8) : null; offset+=i;
-		arguments = new Argument[arg_cnt];
-		for (int a=0; a<arg_cnt; a++)
-		{
-			String arg = new String(body, offset, body[overhead+a], StandardCharsets.UTF_8);
-			arguments[a] = new Argument(arg);
-			offset+=body[overhead+a];
-		}
+		int offset = overhead + arg_cnt;
+		user = (userLen>0) ? new String(body, offset, userLen, StandardCharsets.UTF_8) : null; offset+=userLen;
+		port = (portLen>0) ? new String(body, offset, portLen, StandardCharsets.UTF_8) : null; offset+=portLen;
+		rem_addr = (remaLen>0) ? new String(body, offset, remaLen, StandardCharsets.UTF_8) : null; offset+=remaLen;
+		arguments = null;
+		encoded = new EncodedArguments(body, overhead, arg_cnt, offset);
+		template = null;
 	}
 
 
@@ -101,52 +103,107 @@ public class AcctRequest extends Packet
 		this.port = port;
 		this.rem_addr = rem_addr;
 		this.arguments = arguments;
+		this.encoded = null;
+		this.template = null;
 	}
 
 
 	/**
-	 * Writes the whole packet.
-	 * @param out  The destination OutputStream
-	 * @param key The byte[] secret key shared between the client and server.
-	 * @param md A shared MessageDigest; will be sync'd.
-	 * @throws IOException if there is a problem writing to the given OutputStream.
+	 * Constructor for when building outgoing packets from a template, which
+	 * gives the port and rem_addr, and the arguments sent before the given ones.
 	 */
-	@Override void write(OutputStream out, byte[] key) throws IOException
+	AcctRequest
+	(
+		Header header,
+		byte flags,
+		TAC_PLUS.AUTHEN.METH authen_method,
+		byte priv_lvl,
+		TAC_PLUS.AUTHEN.TYPE authen_type,
+		TAC_PLUS.AUTHEN.SVC authen_service,
+		String user,
+		RequestTemplate template,
+		Argument[] arguments
+	)
 	{
+		super(header);
+		this.flags = flags;
+		this.authen_method = authen_method;
+		this.priv_lvl = priv_lvl;
+		this.authen_type = authen_type;
+		this.authen_service = authen_service;
+		this.user = user;
+		this.port = template.port;
+		this.rem_addr = template.rem_addr;
+		this.arguments = template.arguments(arguments);
+		this.encoded = null;
+		this.template = template;
+	}
+
+
+	/**
+	 * Puts the body, unciphered, at the buffer's position; see encodeTo().
+	 * @throws java.nio.BufferOverflowException if the buffer hasn't room.
+	 */
+	@Override void encodeBody(ByteBuffer body)
+	{
+		if (template != null)
+		{
+			body.put(flags);
+			template.encode(body, authen_method, priv_lvl, authen_type, authen_service, user, arguments);
+			return;
+		}
 		byte[] userBytes = user.getBytes(StandardCharsets.UTF_8);
 		byte[] portBytes = port.getBytes(StandardCharsets.UTF_8);
 		byte[] remaBytes = rem_addr.getBytes(StandardCharsets.UTF_8);
-		if (userBytes == null || portBytes == null || remaBytes == null) {
-		    throw new NullPointerException("userBytes/portBytes/remaBytes is null (should not happen)");
-		}
 		// Truncating to fit packet...  lengths are limited to a byte
-		if (userBytes.length>FF) { userBytes = Arrays.copyOfRange(userBytes,0,FF); }
-		if (portBytes.length>FF) { portBytes = Arrays.copyOfRange(portBytes,0,FF); }
-		if (remaBytes.length>FF) { remaBytes = Arrays.copyOfRange(remaBytes,0,FF); }
+		int userLen = Math.min(FF, userBytes.length);
+		int portLen = Math.min(FF, portBytes.length);
+		int remaLen = Math.min(FF, remaBytes.length);
 		// Truncating the number of arguments, and the length of the byte[] representations... limited to a byte
+		Argument[] arguments = getArguments();
 		byte[][] argsBytes = new byte[Math.min(FF,arguments.length)][];
-		for (int i=0; i<argsBytes.length; i++)
+		for (int i=0; i<argsBytes.length; i++) { argsBytes[i] = arguments[i].bytes(); }
+		//
+		body.put(flags);
+		body.put(authen_method.code());
+		body.put(priv_lvl);
+		body.put(authen_type.code());
+		body.put(authen_service.code());
+		body.put((byte)userLen);
+		body.put((byte)portLen);
+		body.put((byte)remaLen);
+		body.put((byte)argsBytes.length);
+		for (byte[] aBytes : argsBytes) { body.put((byte)Math.min(FF, aBytes.length)); }
+		body.put(userBytes, 0, userLen);
+		body.put(portBytes, 0, portLen);
+		body.put(remaBytes, 0, remaLen);
+		for (byte[] aBytes : argsBytes) { body.put(aBytes, 0, Math.min(FF, aBytes.length)); }
+	}
+
+
+	/**
+	 * @return The Argument[] of the record; decoded on first use, if received.
+	 * This is the object reference; editing the array is probably a bad idea.
+	 */
+	public Argument[] getArguments()
+	{
+		return (encoded != null) ? encoded.toArray() : arguments;
+	}
+
+
+	/**
+	 * @return The String value of the first argument with the given attribute
+	 * name; or null if none, or it has no value.  For a received record, only
+	 * the value returned is decoded.
+	 */
+	public String getValue(String attribute)
+	{
+		if (encoded != null) { return encoded.getValue(attribute); }
+		for (Argument a : arguments)
 		{
-			argsBytes[i] = arguments[i].toString().getBytes(StandardCharsets.UTF_8);
-			if (argsBytes[i].length>FF) { argsBytes[i] = Arrays.copyOfRange(argsBytes[i],0,FF); }
+			if (a.attribute.equals(attribute)) return a.value;
 		}
-		//
-		ByteArrayOutputStream body = new ByteArrayOutputStream();
-		body.write(flags);
-		body.write(authen_method.code());
-		body.write(priv_lvl);
-		body.write(authen_type.code());
-		body.write(authen_service.code());
-		body.write(userBytes.length);
-		body.write(portBytes.length);
-		body.write(remaBytes.length);
-		body.write(argsBytes.length);
-		for (byte[] aBytes : argsBytes) { body.write(aBytes.length); }
-		body.write(userBytes);
-		body.write(portBytes);
-		body.write(remaBytes);
-		for (byte[] aBytes : argsBytes) { body.write(aBytes); }
-		header.writePacket(out, body.toByteArray(), key);
+		return null;
 	}
 
 }
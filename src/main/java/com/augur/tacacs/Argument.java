@@ -1,8 +1,18 @@
 package com.augur.tacacs;
 
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
 /**
  * Used in authorization REQUEST and RESPONSE packets.
- * 
+ * <p>
+ * Arguments are immutable, and cache their encoded bytes; so a constant
+ * argument (e.g. service=MyApplication, kept in a static field) is encoded
+ * only once, however many packets it is sent in.  The common attribute names
+ * of RFC 8907 are interned when parsed, so the arguments of every packet
+ * received share the same String for each.
+ * </p>
+ *
  * @author Chris.Janicki@augur.com
  * Copyright 2016 Augur Systems, Inc.  All rights reserved.
  */
@@ -12,6 +22,27 @@ public class Argument
 	final String attribute;
 	final String value;
 	final boolean isOptional;
+	/** The UTF-8 bytes of toString(), as sent in packets; encoded on first use, and never modified. */
+	private volatile byte[] encoded;
+
+	/** The attribute names defined by RFC 8907, for authorization and accounting. */
+	private static final String[] NAMES =
+	{
+		"service", "protocol", "cmd", "cmd-arg", "acl", "inacl", "outacl", "addr", "addr-pool", "timeout", "idletime",
+		"autocmd", "noescape", "nohangup", "priv-lvl", "callback-dialstring", "callback-line", "callback-rotary",
+		"nocallback-verify", "task_id", "start_time", "stop_time", "elapsed_time", "timezone", "event", "reason",
+		"bytes", "bytes_in", "bytes_out", "paks", "paks_in", "paks_out", "status", "err_msg"
+	};
+	private static final byte[][] NAME_BYTES = new byte[NAMES.length][];
+	private static final HashMap<String,String> INTERNED = new HashMap<>();
+	static
+	{
+		for (int i=0; i<NAMES.length; i++)
+		{
+			NAME_BYTES[i] = NAMES[i].getBytes(StandardCharsets.UTF_8);
+			INTERNED.put(NAMES[i], NAMES[i]);
+		}
+	}
 	
 	/**
 	 * Create an attribute-value pair, also called a argument.
@@ -33,11 +64,49 @@ public class Argument
 	 */
 	public Argument(String arg)
 	{
-		String[] args = arg.split("[=*]", 2);
-		this.attribute=args[0];
-		if (args.length==2) { this.value=args[1]; } else { this.value = null; }
-		isOptional = (arg.length() > attribute.length()) && // there is another character after the attribute name
-			(arg.charAt(attribute.length()) == '*');
+		int sep = 0;
+		while (sep<arg.length() && arg.charAt(sep)!='=' && arg.charAt(sep)!='*') { sep++; }
+		this.attribute = intern(arg.substring(0, sep));
+		this.value = (sep<arg.length()) ? arg.substring(sep+1) : null;
+		this.isOptional = (sep<arg.length()) && (arg.charAt(sep) == '*');
+	}
+
+
+	/**
+	 * Parses an argument from its UTF-8 bytes in a packet body, decoding only
+	 * its value; equivalent to Argument(String) of the decoded String, since
+	 * '=' and '*' never occur within a UTF-8 multi-byte character.
+	 */
+	Argument(byte[] bytes, int offset, int length)
+	{
+		int sep = 0;
+		while (sep<length && bytes[offset+sep]!='=' && bytes[offset+sep]!='*') { sep++; }
+		this.attribute = intern(bytes, offset, sep);
+		this.value = (sep<length) ? new String(bytes, offset+sep+1, length-sep-1, StandardCharsets.UTF_8) : null;
+		this.isOptional = (sep<length) && (bytes[offset+sep] == '*');
+	}
+
+
+	/** @return The shared String for the attribute name, if a common one; otherwise the given name. */
+	static String intern(String name)
+	{
+		String s = INTERNED.get(name);
+		return (s==null) ? name : s;
+	}
+
+
+	/** @return The shared String for the attribute name encoded in the bytes, if a common one; otherwise a new String. */
+	static String intern(byte[] bytes, int offset, int length)
+	{
+		for (int i=0; i<NAMES.length; i++)
+		{
+			byte[] name = NAME_BYTES[i];
+			if (name.length != length) { continue; }
+			int j = 0;
+			while (j<length && bytes[offset+j]==name[j]) { j++; }
+			if (j==length) { return NAMES[i]; }
+		}
+		return new String(bytes, offset, length, StandardCharsets.UTF_8);
 	}
 
 
@@ -64,5 +133,14 @@ public class Argument
 	{
 		return attribute+(isOptional?"*":"=")+(value==null?"":value);
 	}
+
+
+	/** @return The UTF-8 bytes of toString(), as sent in packets; shared, so must not be modified. */
+	byte[] bytes()
+	{
+		byte[] b = encoded;
+		if (b == null) { encoded = b = toString().getBytes(StandardCharsets.UTF_8); }
+		return b;
+	}
 	
 }
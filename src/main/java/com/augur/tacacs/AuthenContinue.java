@@ -1,9 +1,7 @@
 package com.augur.tacacs;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 
 /**
  * @author Chris.Janicki@augur.com
@@ -60,26 +58,21 @@ public class AuthenContinue extends Packet
 
 
 	/**
-	 * Writes the whole packet.
-	 * @param out  The destination OutputStream
-	 * @param key The byte[] secret key shared between the client and server.
-	 * @throws IOException if there is a problem writing to the given OutputStream.
+	 * Puts the body, unciphered, at the buffer's position; see encodeTo().
+	 * @throws java.nio.BufferOverflowException if the buffer hasn't room.
 	 */
-	@Override void write(OutputStream out, byte[] key) throws IOException
+	@Override void encodeBody(ByteBuffer body)
 	{
 		byte[] umsgBytes = user_msg==null?null:user_msg.getBytes(StandardCharsets.UTF_8);
 		byte[] dataBytes = data==null?null:data.getBytes(StandardCharsets.UTF_8);
 		// Truncating to fit packet...  lengths are limited to 16 bits
-		if (umsgBytes!=null && umsgBytes.length>FFFF) { umsgBytes = Arrays.copyOfRange(umsgBytes,0,FFFF); }
-		if (dataBytes!=null && dataBytes.length>FFFF) { dataBytes = Arrays.copyOfRange(dataBytes,0,FFFF); }
-		ByteArrayOutputStream body = new ByteArrayOutputStream(3 + (umsgBytes==null?0:umsgBytes.length) + (dataBytes==null?0:dataBytes.length));
-		body.write(toBytes2(umsgBytes==null?0:umsgBytes.length));
-		body.write(toBytes2(dataBytes==null?0:dataBytes.length));
-		body.write(flags);
-		if (umsgBytes!=null) { body.write(umsgBytes); }
-		if (dataBytes!=null) { body.write(dataBytes); }
-		byte[] bodyBytes = body.toByteArray();
-		header.writePacket(out, bodyBytes, key);
+		int umsgLen = umsgBytes==null ? 0 : Math.min(FFFF, umsgBytes.length);
+		int dataLen = dataBytes==null ? 0 : Math.min(FFFF, dataBytes.length);
+		body.putShort((short)umsgLen);
+		body.putShort((short)dataLen);
+		body.put(flags);
+		if (umsgBytes!=null) { body.put(umsgBytes, 0, umsgLen); }
+		if (dataBytes!=null) { body.put(dataBytes, 0, dataLen); }
 	}
 
 }
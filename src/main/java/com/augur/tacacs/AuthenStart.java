@@ -1,7 +1,6 @@
 package com.augur.tacacs;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -108,30 +107,26 @@ public class AuthenStart extends Packet
 	
 
 	/**
-	 * Writes the whole packet.
-	 * @param out  The destination OutputStream
-	 * @param key The byte[] secret key shared between the client and server.
-	 * @throws IOException if there is a problem writing to the given OutputStream.
+	 * Puts the body, unciphered, at the buffer's position; see encodeTo().
+	 * @throws java.nio.BufferOverflowException if the buffer hasn't room.
 	 */
-	@Override void write(OutputStream out, byte[] key) throws IOException
+	@Override void encodeBody(ByteBuffer body)
 	{
 		byte[] userBytes = username==null?null:username.getBytes(StandardCharsets.UTF_8);
 		byte[] portBytes = port==null?null:port.getBytes(StandardCharsets.UTF_8);
 		byte[] remoBytes = rem_addr==null?null:rem_addr.getBytes(StandardCharsets.UTF_8);
-		ByteArrayOutputStream body = new ByteArrayOutputStream();
-		body.write(action.code());
-		body.write(priv_lvl);
-		body.write(type.code());
-		body.write(authen_service.code());
-		body.write(userBytes==null?0:userBytes.length);
-		body.write(portBytes==null?0:portBytes.length);
-		body.write(remoBytes==null?0:remoBytes.length);
-		body.write(dataBytes==null?0:dataBytes.length);
-		if (userBytes!=null) { body.write(userBytes); }
-		if (portBytes!=null) { body.write(portBytes); }
-		if (remoBytes!=null) { body.write(remoBytes); }
-		if (dataBytes!=null) { body.write(dataBytes); }
-		header.writePacket(out, body.toByteArray(), key);
+		body.put(action.code());
+		body.put(priv_lvl);
+		body.put(type.code());
+		body.put(authen_service.code());
+		body.put((byte)(userBytes==null?0:userBytes.length));
+		body.put((byte)(portBytes==null?0:portBytes.length));
+		body.put((byte)(remoBytes==null?0:remoBytes.length));
+		body.put((byte)(dataBytes==null?0:dataBytes.length));
+		if (userBytes!=null) { body.put(userBytes); }
+		if (portBytes!=null) { body.put(portBytes); }
+		if (remoBytes!=null) { body.put(remoBytes); }
+		if (dataBytes!=null) { body.put(dataBytes); }
 	}
 	
 	
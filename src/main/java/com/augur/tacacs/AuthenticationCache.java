@@ -0,0 +1,274 @@
+package com.augur.tacacs;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A short-lived client-side cache of successful logins, for applications whose
+ * clients send their credentials with every call, so that repeating the same
+ * login within the TTL is answered without a round trip to the TACACS+ server.
+ * Install one with TacacsClient.setAuthenticationCache().
+ * <p>
+ * Passwords are never held: on PASS, a salted scrypt hash of the username and
+ * password is kept, and a later login is answered locally only if its hash
+ * matches.  So a different (e.g. changed) password simply misses, and is sent
+ * to the server.  A FAIL may be kept for the (brief) negative TTL, to shed
+ * repeated retries of a bad password; but never in place of an unexpired PASS,
+ * so that wrong guesses can't push a user's good login out.  Other replies
+ * (e.g. ERROR, or the prompts of interactive logins) are never kept.
+ * </p>
+ * One entry is kept per username; when full, the least recently used is
+ * evicted.  Each lookup of a cached user costs one scrypt hash (about 1 MiB
+ * and some milliseconds at the default cost), which is far cheaper than a
+ * server round trip, but the cost may be tuned by the constructor.
+ * Note that a cached PASS outlives the user's password being changed or the
+ * account disabled on the server, until it expires or is invalidated here.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class AuthenticationCache
+{
+	/** The default scrypt CPU/memory cost, N; with r=8, hashing uses 1 MiB. */
+	public static final int DEFAULT_COST = 1024;
+	private static final int BLOCK_SIZE = 8;
+	private static final int SALT_LENGTH = 16;
+	private static final int HASH_LENGTH = 32;
+
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final long negativeTtlMillis;
+	private final int cost;
+	private final SecureRandom random;
+	/** By username, in access order, eldest first; guarded by 'this'. */
+	private final LinkedHashMap<String,CachedReply> entries;
+	/** Incremented by every invalidation, so that replies to logins sent before it aren't cached after it; guarded by 'this'. */
+	private long generation;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+
+	/**
+	 * @param maxEntries The most users to keep; the least recently used is evicted to make room.
+	 * @param ttlMillis How long to keep a login that passed.
+	 * @param negativeTtlMillis How long to keep a login that FAILed; zero to not keep them.
+	 */
+	public AuthenticationCache(int maxEntries, long ttlMillis, long negativeTtlMillis)
+	{
+		this(maxEntries, ttlMillis, negativeTtlMillis, DEFAULT_COST);
+	}
+
+
+	/**
+	 * @param maxEntries The most users to keep; the least recently used is evicted to make room.
+	 * @param ttlMillis How long to keep a login that passed.
+	 * @param negativeTtlMillis How long to keep a login that FAILed; zero to not keep them.
+	 * @param cost The scrypt CPU/memory cost parameter, N: a power of two; hashing uses N KiB.
+	 */
+	public AuthenticationCache(int maxEntries, long ttlMillis, long negativeTtlMillis, int cost)
+	{
+		if (maxEntries<1 || ttlMillis<=0 || negativeTtlMillis<0 || cost<2 || (cost & (cost-1))!=0) { throw new IllegalArgumentException("Bad authentication cache: maxEntries="+maxEntries+", ttl="+ttlMillis+", negativeTtl="+negativeTtlMillis+", cost="+cost); }
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.negativeTtlMillis = negativeTtlMillis;
+		this.cost = cost;
+		this.random = new SecureRandom();
+		this.entries = new LinkedHashMap<String,CachedReply>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+			@Override protected boolean removeEldestEntry(Map.Entry<String,CachedReply> eldest)
+			{
+				if (size() <= AuthenticationCache.this.maxEntries) { return false; }
+				evictions.increment();
+				return true;
+			}
+		};
+	}
+
+
+	/**
+	 * @return Whether an unexpired login is cached for the username; if not,
+	 *   get() misses without hashing.
+	 */
+	synchronized boolean has(String username)
+	{
+		CachedReply e = entries.get(username);
+		return e != null && System.currentTimeMillis() < e.expiresAt;
+	}
+
+
+	/** @return The unexpired reply cached for the same username and password, or null; counted as a hit or miss. */
+	AuthenReply get(String username, String password)
+	{
+		CachedReply e;
+		synchronized (this) { e = entries.get(username); }
+		if (e != null && System.currentTimeMillis() < e.expiresAt
+			&& MessageDigest.isEqual(e.credential.hash, hash(username, password, e.credential.salt))) // hashed outside the lock
+		{
+			hits.increment();
+			return e.reply;
+		}
+		misses.increment();
+		return null;
+	}
+
+
+	/** @return The current generation, to be passed to put() with the reply to a login sent now. */
+	synchronized long generation()
+	{
+		return generation;
+	}
+
+
+	/**
+	 * Hashes a login's credentials, with a new salt, ready to put() with its
+	 * reply; done apart, and only if isCacheable(), so that the hashing needn't
+	 * delay the thread that receives the reply.
+	 */
+	Credential credential(String username, String password)
+	{
+		byte[] salt = new byte[SALT_LENGTH];
+		random.nextBytes(salt);
+		return new Credential(salt, hash(username, password, salt));
+	}
+
+
+	/**
+	 * Caches a reply, if its status may be cached.
+	 * @param credential The login's credential().
+	 * @param generation The generation() read before the login was sent; if
+	 *   the cache has been invalidated since, the reply is not cached.
+	 */
+	void put(String username, Credential credential, AuthenReply reply, long generation)
+	{
+		boolean passed = reply.isOK();
+		long ttl = ttl(reply);
+		if (ttl <= 0) { return; }
+		CachedReply e = new CachedReply(reply, credential, System.currentTimeMillis()+ttl);
+		synchronized (this)
+		{
+			if (generation != this.generation) { return; }
+			CachedReply old = entries.get(username);
+			if (!passed && old != null && old.reply.isOK() && System.currentTimeMillis() < old.expiresAt) { return; }
+			entries.put(username, e);
+		}
+	}
+
+
+	/** @return Whether put() would keep the reply; checked first, to save hashing a credential for nothing. */
+	boolean isCacheable(AuthenReply reply)
+	{
+		return ttl(reply) > 0;
+	}
+
+
+	/** @return How long to keep the reply; zero if not at all. */
+	private long ttl(AuthenReply reply)
+	{
+		if (reply.isOK()) { return ttlMillis; }
+		if (reply.status == TAC_PLUS.AUTHEN.STATUS.FAIL) { return negativeTtlMillis; }
+		return 0;
+	}
+
+
+	private byte[] hash(String username, String password, byte[] salt)
+	{
+		byte[] passwd = (username+"\0"+password).getBytes(StandardCharsets.UTF_8);
+		return Scrypt.hash(passwd, salt, cost, BLOCK_SIZE, 1, HASH_LENGTH);
+	}
+
+
+	/** Forgets the login cached for the given user, e.g. after changing the user's password or disabling the account. */
+	public synchronized void invalidate(String username)
+	{
+		generation++;
+		entries.remove(username);
+	}
+
+
+	/** Forgets every cached login. */
+	public synchronized void invalidateAll()
+	{
+		generation++;
+		entries.clear();
+	}
+
+
+	/** @return The number of users cached, including any expired but not yet replaced. */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+
+	/** @return The number of logins answered from the cache. */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+
+	/** @return The number of logins not answered from the cache, including those with expired or different credentials. */
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+
+	/** @return The number of users evicted to make room for others. */
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+
+
+	/** @return The fraction of logins answered from the cache; zero if none yet. */
+	public double getHitRate()
+	{
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return (total==0) ? 0 : (double)h/total;
+	}
+
+
+	@Override public String toString()
+	{
+		return getClass().getSimpleName()+"[size:"+size()+" hits:"+getHits()+" misses:"+getMisses()+" evictions:"+getEvictions()+"]";
+	}
+
+
+	/** A salted hash of a username and password. */
+	static final class Credential
+	{
+		final byte[] salt;
+		final byte[] hash;
+
+		Credential(byte[] salt, byte[] hash)
+		{
+			this.salt = salt;
+			this.hash = hash;
+		}
+	}
+
+
+	private static final class CachedReply
+	{
+		final AuthenReply reply;
+		final Credential credential;
+		final long expiresAt;
+
+		CachedReply(AuthenReply reply, Credential credential, long expiresAt)
+		{
+			this.reply = reply;
+			this.credential = credential;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+}
@@ -1,7 +1,6 @@
 package com.augur.tacacs;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
@@ -14,7 +13,10 @@ public class AuthorReply extends Packet
 	final TAC_PLUS.AUTHOR.STATUS status;
 	final String server_msg; // optional message for user
 	final String data; // admin or console log; not for user
-	final Argument[] arguments;
+	/** The arguments, if built to be sent; null if received. */
+	private final Argument[] arguments;
+	/** The arguments, if received; decoded only as they're asked for. */
+	private final EncodedArguments encoded;
 	
 	@Override public String toString()
 	{
@@ -24,7 +26,7 @@ public class AuthorReply extends Packet
 		sb.append("status:").append(status);
 		sb.append(" server_msg:'").append(server_msg).append("'");
 		sb.append(" data:'").append(data).append("'");
-		sb.append(" arguments:[").append(Arrays.toString(arguments));
+		sb.append(" arguments:[").append(Arrays.toString(getArguments()));
 		sb.append("]]");
 		return sb.toString();
 	}
@@ -37,6 +39,18 @@ public class AuthorReply extends Packet
 		this.server_msg = server_msg;
 		this.data = data;
 		this.arguments = arguments==null?new Argument[0]:arguments;
+		this.encoded = null;
+	}
+	
+	/** Constructor for a copy of a canned reply, with the given header; see Packet(Header, Packet). */
+	AuthorReply(Header header, AuthorReply canned)
+	{
+		super(header, canned);
+		this.status = canned.status;
+		this.server_msg = canned.server_msg;
+		this.data = canned.data;
+		this.arguments = canned.getArguments();
+		this.encoded = null;
 	}
 	
 	AuthorReply(Header header, byte[] body) throws IOException
@@ -53,17 +67,11 @@ public class AuthorReply extends Packet
 		if (chkLen != body.length) { throw new IOException("Corrupt packet or bad key"); }
 		//
 		status = TAC_PLUS.AUTHOR.STATUS.forCode(body[0]);
-		arguments = new Argument[arg_cnt];
-		int argOffset = overhead + arg_cnt + msgLen + dataLen;
-		for (int i=0; i<arg_cnt; i++)
-		{
-			int argLen = body[overhead+i] & FF ;
-			arguments[i] = new Argument(new String(Arrays.copyOfRange(body, argOffset, argOffset+argLen),StandardCharsets.UTF_8));
-			argOffset += argLen;
-		}
 		if (status == null) { throw new IOException("Received unknown TAC_PLUS_AUTHOR_STATUS code: "+body[0]); }
-		server_msg = (msgLen>0) ? new String(body, overhead, msgLen, StandardCharsets.UTF_8) : null; 
-		data = (dataLen>0) ? new String(body, overhead+msgLen, dataLen, StandardCharsets.UTF_8) : null; 
+		server_msg = (msgLen>0) ? new String(body, overhead+arg_cnt, msgLen, StandardCharsets.UTF_8) : null;
+		data = (dataLen>0) ? new String(body, overhead+arg_cnt+msgLen, dataLen, StandardCharsets.UTF_8) : null;
+		arguments = null;
+		encoded = new EncodedArguments(body, overhead, arg_cnt, overhead+arg_cnt+msgLen+dataLen);
 	}
 
 	
@@ -72,35 +80,28 @@ public class AuthorReply extends Packet
 	public boolean isOK() { return status==TAC_PLUS.AUTHOR.STATUS.PASS_ADD || status==TAC_PLUS.AUTHOR.STATUS.PASS_REPL; }
 
 	/**
-	 * Writes the whole packet.
-	 * @param out  The destination OutputStream
-	 * @param key The byte[] secret key shared between the client and server.
-	 * @throws IOException if there is a problem writing to the given OutputStream.
+	 * Puts the body, unciphered, at the buffer's position; see encodeTo().
+	 * @throws java.nio.BufferOverflowException if the buffer hasn't room.
 	 */
-	@Override void write(OutputStream out, byte[] key) throws IOException
+	@Override void encodeBody(ByteBuffer body)
 	{
-		byte[] smsgBytes = server_msg.getBytes(StandardCharsets.UTF_8);
-		byte[] dataBytes = data.getBytes(StandardCharsets.UTF_8);
+		byte[] smsgBytes = server_msg==null?null:server_msg.getBytes(StandardCharsets.UTF_8);
+		byte[] dataBytes = data==null?null:data.getBytes(StandardCharsets.UTF_8);
 		// Truncating to fit packet...  lengths are limited to 16 bytes
-		if (smsgBytes!=null && smsgBytes.length>FFFF) { smsgBytes = Arrays.copyOfRange(smsgBytes,0,FFFF); }
-		if (dataBytes!=null && dataBytes.length>FFFF) { dataBytes = Arrays.copyOfRange(dataBytes,0,FFFF); }
+		int smsgLen = smsgBytes==null ? 0 : Math.min(FFFF, smsgBytes.length);
+		int dataLen = dataBytes==null ? 0 : Math.min(FFFF, dataBytes.length);
 		// Truncating the number of arguments, and the length of the byte[] representations... limited to a byte
+		Argument[] arguments = getArguments();
 		byte[][] argsBytes = new byte[Math.min(FF,arguments.length)][];
-		for (int i=0; i<argsBytes.length; i++) 
-		{
-			argsBytes[i] = arguments[i].toString().getBytes(StandardCharsets.UTF_8);
-			if (argsBytes[i].length>FF) { argsBytes[i] = Arrays.copyOfRange(argsBytes[i],0,FF); }
-		}
-		ByteArrayOutputStream body = new ByteArrayOutputStream();
-		body.write(status.code());
-		body.write(arguments.length);
-		body.write(toBytes2(smsgBytes==null?0:smsgBytes.length));
-		body.write(toBytes2(dataBytes==null?0:dataBytes.length));
-		for (byte[] aBytes : argsBytes) { body.write(aBytes.length); }
-		body.write(smsgBytes);
-		body.write(dataBytes);
-		for (byte[] aBytes : argsBytes) { body.write(aBytes); }
-		header.writePacket(out, body.toByteArray(), key);
+		for (int i=0; i<argsBytes.length; i++) { argsBytes[i] = arguments[i].bytes(); }
+		body.put(status.code());
+		body.put((byte)argsBytes.length);
+		body.putShort((short)smsgLen);
+		body.putShort((short)dataLen);
+		for (byte[] aBytes : argsBytes) { body.put((byte)Math.min(FF, aBytes.length)); }
+		if (smsgBytes!=null) { body.put(smsgBytes, 0, smsgLen); }
+		if (dataBytes!=null) { body.put(dataBytes, 0, dataLen); }
+		for (byte[] aBytes : argsBytes) { body.put(aBytes, 0, Math.min(FF, aBytes.length)); }
 	}
 
 	
@@ -125,16 +126,22 @@ public class AuthorReply extends Packet
 	
 
 	/** 
-	 * @return The Argument[] returned from the server.  
+	 * @return The Argument[] returned from the server; decoded on first use.
 	 * This is the object reference; editing the array is probably a bad idea.
 	 */
 	public Argument[] getArguments()
 	{
-		return arguments;
+		return (encoded != null) ? encoded.toArray() : arguments;
 	}
 	
+	/**
+	 * @return The String value of the first argument with the given attribute
+	 * name; or null if none, or it has no value.  For a reply received from
+	 * the server, only the value returned is decoded.
+	 */
 	public String getValue(String attribute)
 	{
+		if (encoded != null) { return encoded.getValue(attribute); }
 		for (Argument a : arguments)
 		{
 			if (a.attribute.equals(attribute)) return a.value;
@@ -1,7 +1,6 @@
 package com.augur.tacacs;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
@@ -20,6 +19,8 @@ public class AuthorRequest extends Packet
 	final String port;
 	final String rem_addr;
 	final Argument[] arguments;
+	/** The common parts of the body, already encoded, if built from a template; otherwise null. */
+	private final RequestTemplate template;
 
 	@Override public String toString()
 	{
@@ -48,25 +49,29 @@ public class AuthorRequest extends Packet
 		// Verify...
 		final int overhead = 8;
 		if (body.length<overhead) { throw new IOException("Corrupt packet or bad key"); }
-		int chkLen = overhead + body[4] + body[5] + body[6] + body[7];
+		int arg_cnt = body[7] & FF;
+		int userLen = body[4] & FF, portLen = body[5] & FF, remaLen = body[6] & FF;
+		if (overhead+arg_cnt > body.length) { throw new IOException("Corrupt packet or bad key"); }
+		int chkLen = overhead+arg_cnt+userLen+portLen+remaLen;
+		for (int a=0; a<arg_cnt; a++) { chkLen += body[overhead+a] & FF; }
 		if (chkLen != body.length) { throw new IOException("Corrupt packet or bad key"); }
 		//
 		authen_method = TAC_PLUS.AUTHEN.METH.forCode(body[0]);
 		priv_lvl = body[1];
 		authen_type = TAC_PLUS.AUTHEN.TYPE.forCode(body[2]);
 		authen_service = TAC_PLUS.AUTHEN.SVC.forCode(body[3]);
-		int arg_cnt = body[7];
-		int i, offset = overhead + arg_cnt;
-		i=body[4];     user = (i>0) ? new String(body, offset, i, StandardCharsets.UTF_8) : null; offset+=i;
-		i=body[5];     port = (i>0) ? new String(body, offset, i, StandardCharsets.UTF_8) : null; offset+=i;
-		i=body[6]; rem_addr = (i>0) ? new String(body, offset, i, StandardCharsets.UTF_8) : null; offset+=i;
+		int offset = overhead + arg_cnt;
+		user = (userLen>0) ? new String(body, offset, userLen, StandardCharsets.UTF_8) : null; offset+=userLen;
+		port = (portLen>0) ? new String(body, offset, portLen, StandardCharsets.UTF_8) : null; offset+=portLen;
+		rem_addr = (remaLen>0) ? new String(body, offset, remaLen, StandardCharsets.UTF_8) : null; offset+=remaLen;
 		arguments = new Argument[arg_cnt];
 		for (int a=0; a<arg_cnt; a++)
 		{
-			String arg = new String(body, offset, body[overhead+a], StandardCharsets.UTF_8);
-			arguments[a] = new Argument(arg);
-			offset+=body[overhead+a];
+			int argLen = body[overhead+a] & FF;
+			arguments[a] = new Argument(body, offset, argLen);
+			offset+=argLen;
 		}
+		template = null;
 	}
 
 
@@ -95,51 +100,74 @@ public class AuthorRequest extends Packet
 		this.port = port;
 		this.rem_addr = rem_addr;
 		this.arguments = arguments;
+		this.template = null;
 	}
 
 
 	/**
-	 * Writes the whole packet.
-	 * @param out  The destination OutputStream
-	 * @param key The byte[] secret key shared between the client and server.
-	 * @param md A shared MessageDigest; will be sync'd.
-	 * @throws IOException if there is a problem writing to the given OutputStream.
+	 * Constructor for when building outgoing packets from a template, which
+	 * gives the port and rem_addr, and the arguments sent before the given ones.
 	 */
-	@Override void write(OutputStream out, byte[] key) throws IOException
+	AuthorRequest
+	(
+		Header header,
+		TAC_PLUS.AUTHEN.METH authen_method,
+		byte priv_lvl,
+		TAC_PLUS.AUTHEN.TYPE authen_type,
+		TAC_PLUS.AUTHEN.SVC authen_service,
+		String user,
+		RequestTemplate template,
+		Argument[] arguments
+	)
+	{
+		super(header);
+		this.authen_method = authen_method;
+		this.priv_lvl = priv_lvl;
+		this.authen_type = authen_type;
+		this.authen_service = authen_service;
+		this.user = user;
+		this.port = template.port;
+		this.rem_addr = template.rem_addr;
+		this.arguments = template.arguments(arguments);
+		this.template = template;
+	}
+
+
+	/**
+	 * Puts the body, unciphered, at the buffer's position; see encodeTo().
+	 * @throws java.nio.BufferOverflowException if the buffer hasn't room.
+	 */
+	@Override void encodeBody(ByteBuffer body)
 	{
+		if (template != null)
+		{
+			template.encode(body, authen_method, priv_lvl, authen_type, authen_service, user, arguments);
+			return;
+		}
 		byte[] userBytes = user.getBytes(StandardCharsets.UTF_8);
 		byte[] portBytes = port.getBytes(StandardCharsets.UTF_8);
 		byte[] remaBytes = rem_addr.getBytes(StandardCharsets.UTF_8);
-        if (userBytes == null || portBytes == null || remaBytes == null) {
-            throw new NullPointerException("userBytes/portBytes/remaBytes is null (should not happen)");
-        }
 		// Truncating to fit packet...  lengths are limited to a byte
-		if (userBytes.length>FF) { userBytes = Arrays.copyOfRange(userBytes,0,FF); }
-		if (portBytes.length>FF) { portBytes = Arrays.copyOfRange(portBytes,0,FF); }
-		if (remaBytes.length>FF) { remaBytes = Arrays.copyOfRange(remaBytes,0,FF); }
+		int userLen = Math.min(FF, userBytes.length);
+		int portLen = Math.min(FF, portBytes.length);
+		int remaLen = Math.min(FF, remaBytes.length);
 		// Truncating the number of arguments, and the length of the byte[] representations... limited to a byte
 		byte[][] argsBytes = new byte[Math.min(FF,arguments.length)][];
-		for (int i=0; i<argsBytes.length; i++)
-		{
-			argsBytes[i] = arguments[i].toString().getBytes(StandardCharsets.UTF_8);
-			if (argsBytes[i].length>FF) { argsBytes[i] = Arrays.copyOfRange(argsBytes[i],0,FF); }
-		}
+		for (int i=0; i<argsBytes.length; i++) { argsBytes[i] = arguments[i].bytes(); }
 		//
-		ByteArrayOutputStream body = new ByteArrayOutputStream();
-		body.write(authen_method.code());
-		body.write(priv_lvl);
-		body.write(authen_type.code());
-		body.write(authen_service.code());
-		body.write(userBytes.length);
-		body.write(portBytes.length);
-		body.write(remaBytes.length);
-		body.write(argsBytes.length);
-		for (byte[] aBytes : argsBytes) { body.write(aBytes.length); }
-		body.write(userBytes);
-		body.write(portBytes);
-		body.write(remaBytes);
-		for (byte[] aBytes : argsBytes) { body.write(aBytes); }
-		header.writePacket(out, body.toByteArray(), key);
+		body.put(authen_method.code());
+		body.put(priv_lvl);
+		body.put(authen_type.code());
+		body.put(authen_service.code());
+		body.put((byte)userLen);
+		body.put((byte)portLen);
+		body.put((byte)remaLen);
+		body.put((byte)argsBytes.length);
+		for (byte[] aBytes : argsBytes) { body.put((byte)Math.min(FF, aBytes.length)); }
+		body.put(userBytes, 0, userLen);
+		body.put(portBytes, 0, portLen);
+		body.put(remaBytes, 0, remaLen);
+		for (byte[] aBytes : argsBytes) { body.put(aBytes, 0, Math.min(FF, aBytes.length)); }
 	}
 
 }
@@ -0,0 +1,267 @@
+package com.augur.tacacs;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A client-side cache of authorization replies, so an application that
+ * authorizes the same user for the same service on every request doesn't pay a
+ * round trip to the TACACS+ server each time.  Install one with
+ * TacacsClient.setAuthorizationCache().
+ * <p>
+ * Replies are keyed by the request: the servers it was sent to, username,
+ * authen_meth, authen_type, authen_svc, and its arguments (including any common
+ * to all the client's requests), in any order.  So a cache may be shared by
+ * clients of different servers, or with different common arguments.  Replies that pass (PASS_ADD or
+ * PASS_REPL) are kept for the TTL; those that FAIL are kept for the (normally
+ * shorter) negative TTL, if any; ERROR and FOLLOW replies are never kept.  When
+ * full, the least recently used entry is evicted.  A cached AuthorReply is
+ * shared by every caller it is returned to, so must not be modified.
+ * </p>
+ * Changes to a user's privileges on the server aren't seen until the user's
+ * entries expire, or are invalidated here.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class AuthorizationCache
+{
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final long negativeTtlMillis;
+	/** In access order, eldest first; guarded by 'this'. */
+	private final LinkedHashMap<Key,CachedReply> entries;
+	/** Incremented by every invalidation, so that replies to requests sent before it aren't cached after it; guarded by 'this'. */
+	private long generation;
+	/** The generation of each user's last invalidation, so others' replies are still cached meanwhile; guarded by 'this'. */
+	private final LinkedHashMap<String,Long> invalidated;
+	/** The generation of the last invalidateAll(), or of a user's invalidation forgotten to bound 'invalidated'; guarded by 'this'. */
+	private long invalidatedAll;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+
+	/**
+	 * @param maxEntries The most replies to keep; the least recently used is evicted to make room.
+	 * @param ttlMillis How long to keep replies that pass.
+	 * @param negativeTtlMillis How long to keep replies that FAIL; zero to not keep them.
+	 */
+	public AuthorizationCache(int maxEntries, long ttlMillis, long negativeTtlMillis)
+	{
+		if (maxEntries<1 || ttlMillis<=0 || negativeTtlMillis<0) { throw new IllegalArgumentException("Bad authorization cache: maxEntries="+maxEntries+", ttl="+ttlMillis+", negativeTtl="+negativeTtlMillis); }
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.negativeTtlMillis = negativeTtlMillis;
+		this.entries = new LinkedHashMap<Key,CachedReply>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+			@Override protected boolean removeEldestEntry(Map.Entry<Key,CachedReply> eldest)
+			{
+				if (size() <= AuthorizationCache.this.maxEntries) { return false; }
+				evictions.increment();
+				return true;
+			}
+		};
+		this.invalidated = new LinkedHashMap<String,Long>(16, 0.75f, false)
+		{
+			private static final long serialVersionUID = 1L;
+			@Override protected boolean removeEldestEntry(Map.Entry<String,Long> eldest)
+			{
+				if (size() <= AuthorizationCache.this.maxEntries) { return false; }
+				invalidatedAll = Math.max(invalidatedAll, eldest.getValue()); // forget the user, conservatively
+				return true;
+			}
+		};
+	}
+
+
+	/** @return The unexpired reply cached for the request, or null; counted as a hit or miss. */
+	AuthorReply get(Key key)
+	{
+		synchronized (this)
+		{
+			CachedReply e = entries.get(key);
+			if (e != null)
+			{
+				if (System.currentTimeMillis() < e.expiresAt)
+				{
+					hits.increment();
+					return e.reply;
+				}
+				entries.remove(key);
+			}
+		}
+		misses.increment();
+		return null;
+	}
+
+
+	/** @return The current generation, to be passed to put() with the reply to a request sent now. */
+	synchronized long generation()
+	{
+		return generation;
+	}
+
+
+	/**
+	 * Caches a reply, if its status may be cached.
+	 * @param generation The generation() read before the request was sent; if
+	 *   the request's user, or the whole cache, has been invalidated since, the
+	 *   reply is not cached.
+	 */
+	void put(Key key, AuthorReply reply, long generation)
+	{
+		long ttl;
+		if (reply.isOK()) { ttl = ttlMillis; }
+		else if (reply.status == TAC_PLUS.AUTHOR.STATUS.FAIL) { ttl = negativeTtlMillis; }
+		else { return; }
+		if (ttl <= 0) { return; }
+		CachedReply e = new CachedReply(reply, System.currentTimeMillis()+ttl);
+		synchronized (this)
+		{
+			Long user = invalidated.get(key.username);
+			if (generation >= invalidatedAll && (user == null || generation >= user)) { entries.put(key, e); }
+		}
+	}
+
+
+	/** Forgets every reply cached for the given user, e.g. after changing the user's privileges. */
+	public synchronized void invalidate(String username)
+	{
+		String user = (username==null) ? "" : username; // as in Key
+		invalidated.remove(user); // re-inserted as the newest
+		invalidated.put(user, ++generation);
+		for (Iterator<Key> i = entries.keySet().iterator(); i.hasNext(); )
+		{
+			if (i.next().username.equals(user)) { i.remove(); }
+		}
+	}
+
+
+	/** Forgets every cached reply. */
+	public synchronized void invalidateAll()
+	{
+		invalidatedAll = ++generation;
+		invalidated.clear();
+		entries.clear();
+	}
+
+
+	/** @return The number of replies cached, including any expired but not yet removed. */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+
+	/** @return The number of requests answered from the cache. */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+
+	/** @return The number of requests not answered from the cache, including those whose entries had expired. */
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+
+	/** @return The number of entries evicted to make room for others. */
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+
+
+	/** @return The fraction of requests answered from the cache; zero if none yet. */
+	public double getHitRate()
+	{
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return (total==0) ? 0 : (double)h/total;
+	}
+
+
+	@Override public String toString()
+	{
+		return getClass().getSimpleName()+"[size:"+size()+" hits:"+getHits()+" misses:"+getMisses()+" evictions:"+getEvictions()+"]";
+	}
+
+
+	private static final class CachedReply
+	{
+		final AuthorReply reply;
+		final long expiresAt;
+
+		CachedReply(AuthorReply reply, long expiresAt)
+		{
+			this.reply = reply;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+
+	/** Identifies an authorization request; the order of its arguments, or of its servers, doesn't matter. */
+	static final class Key
+	{
+		/** The servers the request may be sent to, as "host:port" sorted and comma-separated. */
+		final String servers;
+		final String username;
+		final TAC_PLUS.AUTHEN.METH authen_meth;
+		final TAC_PLUS.AUTHEN.TYPE authen_type;
+		final TAC_PLUS.AUTHEN.SVC authen_svc;
+		/** The arguments' String forms, sorted. */
+		private final String[] args;
+		private final int hash;
+
+		/**
+		 * @param servers The servers the request may be sent to; see TacacsClient.
+		 * @param args Every argument sent, including any common ones; see RequestTemplate.arguments().
+		 */
+		Key(String servers, String username, TAC_PLUS.AUTHEN.METH authen_meth, TAC_PLUS.AUTHEN.TYPE authen_type, TAC_PLUS.AUTHEN.SVC authen_svc, Argument[] args)
+		{
+			this.servers = servers;
+			this.username = (username==null) ? "" : username;
+			this.authen_meth = authen_meth;
+			this.authen_type = authen_type;
+			this.authen_svc = authen_svc;
+			int n = (args==null) ? 0 : args.length;
+			this.args = new String[n];
+			for (int i=0; i<n; i++) { this.args[i] = args[i].toString(); }
+			Arrays.sort(this.args);
+			int h = servers.hashCode();
+			h = 31*h + this.username.hashCode();
+			h = 31*h + authen_meth.hashCode();
+			h = 31*h + authen_type.hashCode();
+			h = 31*h + authen_svc.hashCode();
+			this.hash = 31*h + Arrays.hashCode(this.args);
+		}
+
+		@Override public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override public boolean equals(Object o)
+		{
+			if (o == this) { return true; }
+			if (!(o instanceof Key)) { return false; }
+			Key k = (Key)o;
+			return hash == k.hash && servers.equals(k.servers) && username.equals(k.username) && authen_meth == k.authen_meth
+				&& authen_type == k.authen_type && authen_svc == k.authen_svc && Arrays.equals(args, k.args);
+		}
+
+		@Override public String toString()
+		{
+			return username+"@"+servers+":"+authen_meth+"/"+authen_type+"/"+authen_svc+Arrays.toString(args);
+		}
+	}
+
+}
@@ -0,0 +1,185 @@
+package com.augur.tacacs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * Connects to one of several TACACS+ servers, "happy eyeballs" style: a
+ * non-blocking connect to the first server is started, then to the next one
+ * after each stagger delay (or at once, if an attempt fails), and the first
+ * connection made wins; the others are closed.  So an unreachable server delays
+ * a connection by the stagger delay, rather than by the whole connection time-out.
+ * <p>
+ * Each HostPool given must have been leased (reserving a pending connection)
+ * and have had its circuit breaker acquired.  The race settles every pool
+ * except the winner's: abandoning its reservation, and reporting a failed
+ * attempt to its circuit breaker, or releasing it if the attempt lost or was
+ * never started.  The caller completes the winner's reservation.
+ * </p>
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+class ConnectRace
+{
+	private final List<HostPool> pools;
+	private final long staggerMillis;
+	private final int timeoutMillis;
+	private final Deadline deadline;
+	private final DebugLogger logger;
+
+	private final SocketChannel[] channels;
+	/** A boolean per pool, indicating if its reservation and circuit breaker are settled. */
+	private final boolean[] settled;
+	private int winner = -1;
+
+
+	/**
+	 * @param pools The candidate hosts, in order of preference.
+	 * @param staggerMillis The delay before starting to connect to the next host.
+	 * @param timeoutMillis The time-out for each connection attempt.
+	 * @param deadline Bounds the whole race; null for none.
+	 */
+	ConnectRace(List<HostPool> pools, long staggerMillis, int timeoutMillis, Deadline deadline, DebugLogger logger)
+	{
+		this.pools = pools;
+		this.staggerMillis = staggerMillis;
+		this.timeoutMillis = timeoutMillis;
+		this.deadline = deadline;
+		this.logger = logger;
+		this.channels = new SocketChannel[pools.size()];
+		this.settled = new boolean[pools.size()];
+	}
+
+
+	/** @return The host that won the race. */
+	HostPool winner()
+	{
+		return pools.get(winner);
+	}
+
+
+	/**
+	 * @return The first connected channel, in non-blocking mode and not registered with any Selector.
+	 * @throws IOException from the last failed attempt if none connected, or a
+	 *   SocketTimeoutException if the deadline passed first.
+	 */
+	SocketChannel run() throws IOException
+	{
+		int n = pools.size();
+		long[] giveUpAt = new long[n];
+		int started = 0;
+		int active = 0;
+		long nextStartAt = 0;
+		IOException error = null;
+		try (Selector selector = Selector.open())
+		{
+			while (winner<0)
+			{
+				long now = System.currentTimeMillis();
+				if (deadline!=null && deadline.isExpired())
+				{
+					error = new SocketTimeoutException("Deadline expired while connecting to TACACS+ server(s).");
+					break;
+				}
+				if (started<n && (now>=nextStartAt || active==0))
+				{
+					int i = started++;
+					nextStartAt = now + staggerMillis;
+					try
+					{
+						HostPool pool = pools.get(i);
+						channels[i] = SocketChannel.open();
+						channels[i].configureBlocking(false);
+						if (channels[i].connect(new InetSocketAddress(pool.host, pool.port))) { winner = i; } // e.g. localhost
+						else
+						{
+							channels[i].register(selector, SelectionKey.OP_CONNECT, Integer.valueOf(i));
+							giveUpAt[i] = now + timeoutMillis;
+							active++;
+						}
+					}
+					catch (IOException e) { error = fail(i, e); }
+					continue;
+				}
+				if (active==0) { break; } // every host failed
+				long wait = (started<n) ? nextStartAt-now : Long.MAX_VALUE;
+				for (int i=0; i<started; i++)
+				{
+					if (!settled[i]) { wait = Math.min(wait, giveUpAt[i]-now); }
+				}
+				if (deadline!=null) { wait = Math.min(wait, deadline.remainingMillis()); }
+				selector.select(Math.max(1, wait));
+				for (SelectionKey k : selector.selectedKeys())
+				{
+					int i = ((Integer)k.attachment()).intValue();
+					try
+					{
+						if (channels[i].finishConnect()) { winner = i; break; }
+					}
+					catch (IOException e)
+					{
+						active--;
+						error = fail(i, e);
+						nextStartAt = 0; // start the next host now
+					}
+				}
+				selector.selectedKeys().clear();
+				now = System.currentTimeMillis();
+				for (int i=0; i<started && winner<0; i++)
+				{
+					if (!settled[i] && giveUpAt[i]<=now)
+					{
+						active--;
+						error = fail(i, new SocketTimeoutException("Connect timed out"));
+						nextStartAt = 0;
+					}
+				}
+			}
+		} // closing the selector deregisters the winning channel
+		finally
+		{
+			// Close the losers, and those cut short by the deadline; neither is the server's fault
+			for (int i=0; i<n; i++)
+			{
+				if (i!=winner && !settled[i])
+				{
+					close(i);
+					pools.get(i).abandoned();
+					pools.get(i).health.released();
+				}
+			}
+		}
+		if (winner<0) { throw (error!=null) ? error : new IOException("Unable to contact any TACACS+ server(s)."); }
+		if (logger != null) { logger.debug("TACACS: Connection race won by "+winner().host+", of "+started+" started"); }
+		return channels[winner];
+	}
+
+
+	/** Settles a failed attempt; returns the error. */
+	private IOException fail(int i, IOException e)
+	{
+		HostPool pool = pools.get(i);
+		settled[i] = true;
+		close(i);
+		pool.abandoned();
+		pool.health.failed();
+		if (logger != null) { logger.error("TACACS: Unable to contact TACACS+ server @ "+pool.host+" ("+e+")"); }
+		return e;
+	}
+
+
+	private void close(int i)
+	{
+		if (channels[i]==null) { return; }
+		try { channels[i].close(); } catch (IOException e) {
+			// ignore
+		}
+	}
+
+}
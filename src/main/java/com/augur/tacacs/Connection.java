@@ -0,0 +1,314 @@
+package com.augur.tacacs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One TACACS+ connection, owning the sessions multiplexed on it, whatever its
+ * transport.  Subclasses do the I/O: TacacsReader reads a blocking Socket on a
+ * thread of its own, and NioTacacsReader is driven by a shared TacacsSelector
+ * event loop.  Either way, each packet read is decoded and handed to
+ * dispatch(), and endSessions() is called once the connection has closed.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+abstract class Connection
+{
+	public final DebugLogger logger;
+
+	/** Outstanding sessions, keyed by their int session ID; lookups are lock-free. */
+	private final ConcurrentHashMap<Integer,Session> sessions;
+	/** The number of sessions in the table, kept separately so the in-flight cap can be enforced atomically. */
+	private final AtomicInteger sessionCount;
+	/** The cap on sessions outstanding at once on this connection, e.g. pipelined in single-connect mode. */
+	private volatile int maxSessions;
+	/** The largest packet accepted, header included; larger ones are rejected, without allocating for them. */
+	private volatile int maxPacketBytes;
+	/** Decodes the packets read; only used by the thread reading this connection. */
+	final FrameDecoder decoder;
+	final byte[] key;
+	private volatile boolean runnable;
+	/** The time of the last session or packet activity, for idle eviction by HostPool. */
+	private volatile long lastActivity;
+	/** The client's pool for this connection's host, for its statistics; null on the server. */
+	volatile HostPool pool;
+	/** Whether the first packet read had the SINGLE_CONNECT flag; null until a packet is read. */
+	private volatile Boolean singleConnect;
+
+
+	Connection(String key, DebugLogger debugLogger)
+	{
+		this.key = key.getBytes(StandardCharsets.UTF_8);
+		this.runnable = true;
+		this.lastActivity = System.currentTimeMillis();
+		this.sessions = new ConcurrentHashMap<>();
+		this.sessionCount = new AtomicInteger();
+		this.maxSessions = Integer.MAX_VALUE;
+		this.maxPacketBytes = TacacsReader.DEFAULT_MAX_PACKET_BYTES;
+		this.logger = debugLogger;
+		this.decoder = new FrameDecoder(this);
+	}
+
+
+	/**
+	 * Starts reading packets from the connection.
+	 * @param virtual A boolean indicating if a virtual thread should be used, if
+	 *   the transport reads on a thread of its own, and the JVM supports them (JDK 21+).
+	 */
+	public abstract void start(boolean virtual);
+
+
+	/** Writes the packet to the connection. */
+	public abstract void write(Packet p) throws IOException;
+
+
+	/**
+	 * Writes the packet, but closes the connection if the write is still
+	 * blocked when the deadline passes, e.g. because the server stopped
+	 * reading; the write then fails, rather than outliving the caller's deadline.
+	 * @param deadline The deadline; if null, the write is unbounded, as by write(Packet).
+	 */
+	void write(Packet p, Deadline deadline) throws IOException
+	{
+		if (deadline==null) { write(p); return; }
+		AtomicBoolean writing = new AtomicBoolean(true);
+		ScheduledFuture<?> timer = Session.Timeouts.EXECUTOR.schedule(() ->
+		{
+			if (writing.compareAndSet(true, false))
+			{
+				if (logger != null) { logger.debug("TACACS: Deadline expired while writing; closing the connection."); }
+				shutdown();
+			}
+		}, deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+		try { write(p); }
+		finally
+		{
+			writing.set(false);
+			timer.cancel(false);
+		}
+	}
+
+
+	/** Marks the connection closed; subclasses also close their transport. */
+	public void shutdown()
+	{
+		runnable = false;
+	}
+
+	/**
+	 * @return A boolean indicating if this connection can be reused
+	 * to create new sessions.  (Some servers may not support socket reuse, and so
+	 * you will need a new TracacsClient for subsequent communications.)
+	 */
+	public boolean isShutdown()
+	{
+		return !runnable;
+	}
+
+	/**
+	 * Registers a session, to receive the packets with its ID.  A client-side
+	 * session whose randomly generated ID collides with another on this
+	 * connection is given a new ID; a server-side session replaces any stale
+	 * session with the same (client-chosen) ID.
+	 * @return A boolean indicating if the session was added; false if this
+	 *   connection already has its maximum number of sessions outstanding, or
+	 *   has been shut down.
+	 */
+	protected final boolean addSession(Session s)
+	{
+		if (isShutdown()) { return false; }
+		touch();
+		int n;
+		do
+		{
+			n = sessionCount.get();
+			if (n>=maxSessions) { return false; }
+		}
+		while (!sessionCount.compareAndSet(n, n+1));
+		if (s instanceof SessionClient)
+		{
+			while (sessions.putIfAbsent(s.intID, s) != null) { s.newID(); }
+		}
+		else if (sessions.put(s.intID, s) != null) { sessionCount.decrementAndGet(); }
+		if (isShutdown()) // shut down meanwhile; endSessions() may have missed this session, so undo it
+		{
+			removeSession(s);
+			return false;
+		}
+		return true;
+	}
+
+	/** Drops a session that will not be completed, e.g. after a time-out. */
+	final void removeSession(Session s)
+	{
+		if (sessions.remove(s.intID, s)) { sessionCount.decrementAndGet(); }
+	}
+
+	/**
+	 * @return A boolean indicating if the peer is known to have declined
+	 *   single-connect mode, i.e. the first packet read on this connection
+	 *   lacked the flag; false while no packet has been read.
+	 */
+	boolean isSingleConnectDeclined()
+	{
+		return Boolean.FALSE.equals(singleConnect);
+	}
+
+	/** @return The number of sessions still waiting for their final reply on this connection. */
+	public int getSessionCount()
+	{
+		return sessionCount.get();
+	}
+
+	/** @return A boolean indicating if this connection already has its maximum number of sessions outstanding. */
+	boolean isFull()
+	{
+		return sessionCount.get() >= maxSessions;
+	}
+
+	/**
+	 * Limits the number of sessions that may be outstanding at once on this
+	 * connection; further sessions are refused by addSession().
+	 * @param maxSessions The cap; the default is unlimited.
+	 */
+	public void setMaxSessions(int maxSessions)
+	{
+		this.maxSessions = maxSessions;
+	}
+
+	/**
+	 * Limits the size of the packets read from this connection.  A larger
+	 * packet (e.g. with a corrupt or hostile length) closes the connection,
+	 * rather than allocating memory for it.
+	 * @param maxPacketBytes The limit, header included; the default is TacacsReader.DEFAULT_MAX_PACKET_BYTES.
+	 */
+	public void setMaxPacketBytes(int maxPacketBytes)
+	{
+		if (maxPacketBytes<12) { throw new IllegalArgumentException("Bad maximum packet size: "+maxPacketBytes); }
+		this.maxPacketBytes = maxPacketBytes;
+	}
+
+	public int getMaxPacketBytes()
+	{
+		return maxPacketBytes;
+	}
+
+	/**
+	 * @param declared The body length from a packet's header, as a signed int.
+	 * @return The body length, if the packet is within the given maximum size.
+	 * @throws IOException if the packet is larger.
+	 */
+	static int checkBodyLength(int declared, int maxPacketBytes) throws IOException
+	{
+		long length = declared & 0xFFFFFFFFL;
+		if (length > maxPacketBytes-12) { throw new IOException("Received packet too large: "+(length+12)+" bytes; the maximum is "+maxPacketBytes+"."); }
+		return (int)length;
+	}
+
+	/** @return The milliseconds since the last activity if no sessions are outstanding; otherwise zero. */
+	long getIdleMillis()
+	{
+		return getSessionCount()==0 ? System.currentTimeMillis()-lastActivity : 0;
+	}
+
+	final void touch()
+	{
+		lastActivity = System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Hands a packet read from this connection to its session.
+	 * @throws IOException if the session failed, or if the session ended and
+	 *   the connection can't be reused (i.e. not in single-connect mode).
+	 */
+	final void dispatch(Packet p) throws IOException
+	{
+		touch();
+		if (singleConnect==null) { singleConnect = p.header.hasFlag(TAC_PLUS.PACKET.FLAG.SINGLE_CONNECT); }
+		Session s = sessions.get(p.header.intSessionID());
+		if (s!=null)
+		{
+			s.handlePacket(p);
+			if (s.isEnd())
+			{
+				removeSession(s);
+				if (!s.isSingleConnectMode()) { throw new IOException("Not in 'single connect mode'."); }
+			}
+		}
+		else if (logger != null) { logger.debug("TACACS: couldn't find session for: "+p); }
+	}
+
+
+	/** Ends all outstanding sessions after this connection has closed. */
+	final void endSessions(IOException error)
+	{
+		for (Session s : sessions.values())
+		{
+			if (sessions.remove(s.intID, s))
+			{
+				sessionCount.decrementAndGet();
+				s.end(error);
+			}
+		}
+	}
+
+
+	Session findSession(int id)
+	{
+		return sessions.get(id);
+	}
+
+
+	/** A reusable byte buffer, whose contents can be written without copying. */
+	static final class WriteBuffer extends ByteArrayOutputStream
+	{
+		private static final int INITIAL = 4096;
+		/** The working space for ciphering each packet encoded; null for a new one each time. */
+		private final Header.Pad pad;
+
+		/** Creates a connection's buffer, reused for every packet, with a Pad of its own. */
+		WriteBuffer() { super(INITIAL); pad = new Header.Pad(); }
+
+		/** @param pad The connection's Pad, if the caller guards it; null for a new one per packet. */
+		WriteBuffer(int size, Header.Pad pad) { super(size); this.pad = pad; }
+
+		byte[] array() { return buf; }
+
+		/** Appends the encoded packet, growing the array as needed; see Packet.encodeTo(). */
+		void encode(Packet p, byte[] key) throws IOException
+		{
+			while (true)
+			{
+				ByteBuffer free = ByteBuffer.wrap(buf, count, buf.length-count);
+				try
+				{
+					p.encodeTo(free, key, pad);
+					count = free.position();
+					return;
+				}
+				catch (BufferOverflowException e) { buf = Arrays.copyOf(buf, Math.max(64, 2*buf.length)); }
+			}
+		}
+
+		void truncate(int size) { count = size; }
+
+		/** Drops a buffer grown by an unusually large batch, rather than keep it forever. */
+		void trim()
+		{
+			if (buf.length > 16*INITIAL) { buf = new byte[INITIAL]; }
+			count = 0;
+		}
+	}
+
+}
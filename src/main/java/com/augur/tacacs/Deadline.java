@@ -0,0 +1,68 @@
+package com.augur.tacacs;
+
+/**
+ * A point in time by which a whole TACACS+ call must finish: connecting
+ * (including fail-over to the next configured server), sending the request,
+ * and waiting for the reply all draw on the same budget.  Use it to keep a login
+ * within the time-out of the caller's own request, e.g. an HTTP SLA.
+ * <p>
+ * Deadlines are immutable, and measured with System.nanoTime(), so they are
+ * unaffected by changes to the wall clock.
+ * </p>
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public final class Deadline
+{
+	private final long deadlineNanos;
+
+
+	private Deadline(long deadlineNanos)
+	{
+		this.deadlineNanos = deadlineNanos;
+	}
+
+
+	/**
+	 * @param timeoutMillis The budget, starting now.
+	 * @return A Deadline that expires after the given time.
+	 */
+	public static Deadline after(long timeoutMillis)
+	{
+		return new Deadline(System.nanoTime() + timeoutMillis*1000000L);
+	}
+
+
+	/** @return The milliseconds left before the deadline, rounded up; zero once it has expired. */
+	public long remainingMillis()
+	{
+		long nanos = deadlineNanos - System.nanoTime();
+		return nanos<=0 ? 0 : (nanos+999999)/1000000;
+	}
+
+
+	/** @return A boolean indicating if the deadline has passed. */
+	public boolean isExpired()
+	{
+		return deadlineNanos - System.nanoTime() <= 0;
+	}
+
+
+	/**
+	 * @param timeoutMillis A time-out for one step of the call, e.g. a connection attempt.
+	 * @return The smaller of the given time-out and the time remaining, but at
+	 *   least 1, since a zero time-out means "forever" to the socket APIs.
+	 */
+	int clamp(int timeoutMillis)
+	{
+		return (int)Math.max(1, Math.min(timeoutMillis, remainingMillis()));
+	}
+
+
+	@Override public String toString()
+	{
+		return "Deadline["+remainingMillis()+"ms remaining]";
+	}
+
+}
@@ -0,0 +1,139 @@
+package com.augur.tacacs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * The arguments of a received packet (AuthorReply or AcctRequest), left
+ * encoded in its deciphered body until asked for.  A reply may carry up to 255
+ * attribute-value pairs, of which a caller often reads just one or two; so
+ * getValue() finds an attribute by comparing bytes in place, and creates a
+ * String only for the value returned.  The first few lookups scan the
+ * arguments; after that, an index of them by attribute is built for any more.
+ * The Argument[] is only decoded if toArray() is called.
+ * <p>
+ * Safe for use by several threads at once, since a cached reply is shared
+ * (see AuthorizationCache); the lazily built parts are immutable once
+ * published, so at worst two threads build the same one.
+ * </p>
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+final class EncodedArguments
+{
+	/** The number of lookups to make by scanning, before building the index; each scan costs far less than building it. */
+	private static final int SCANS = 3;
+
+	/** The deciphered packet body, which must not be modified. */
+	private final byte[] body;
+	/** The index in body of the first argument's length byte. */
+	private final int lengths;
+	/** The index in body of each argument. */
+	private final int[] offsets;
+	private volatile Argument[] arguments;
+	/** By attribute, the index of the first argument having it; built after SCANS lookups. */
+	private volatile HashMap<String,Integer> index;
+	/** The number of lookups made by scanning; racy, but only decides when to build the index. */
+	private int scans;
+
+
+	/**
+	 * @param body The deciphered body; already checked to hold the arguments' lengths and bytes.
+	 * @param lengths The index of the first argument's length byte.
+	 * @param count The number of arguments.
+	 * @param offset The index of the first argument's bytes.
+	 */
+	EncodedArguments(byte[] body, int lengths, int count, int offset)
+	{
+		this.body = body;
+		this.lengths = lengths;
+		this.offsets = new int[count];
+		for (int i=0; i<count; i++)
+		{
+			offsets[i] = offset;
+			offset += length(i);
+		}
+	}
+
+
+	/** @return The Argument[], decoded on first use, and shared by every caller after. */
+	Argument[] toArray()
+	{
+		Argument[] a = arguments;
+		if (a == null)
+		{
+			a = new Argument[offsets.length];
+			for (int i=0; i<a.length; i++) { a[i] = new Argument(body, offsets[i], length(i)); }
+			arguments = a;
+		}
+		return a;
+	}
+
+
+	/** @return The value of the first argument with the given attribute; null if none, or it has no value. */
+	String getValue(String attribute)
+	{
+		HashMap<String,Integer> idx = index;
+		if (idx == null && scans >= SCANS) { index = idx = index(); }
+		if (idx != null)
+		{
+			Integer i = idx.get(attribute);
+			return (i==null) ? null : value(i, separator(i));
+		}
+		scans++;
+		byte[] name = attribute.getBytes(StandardCharsets.UTF_8);
+		for (int i=0; i<offsets.length; i++)
+		{
+			if (separator(i)==name.length && matches(offsets[i], name)) { return value(i, name.length); }
+		}
+		return null;
+	}
+
+
+	private HashMap<String,Integer> index()
+	{
+		HashMap<String,Integer> idx = new HashMap<>(offsets.length*2);
+		for (int i=0; i<offsets.length; i++) { idx.putIfAbsent(Argument.intern(body, offsets[i], separator(i)), i); }
+		return idx;
+	}
+
+
+	private int length(int i)
+	{
+		return body[lengths+i] & 0xFF;
+	}
+
+
+	/** @return The length of the argument's attribute: the position of its first '=' or '*', or its length if neither. */
+	private int separator(int i)
+	{
+		int offset = offsets[i];
+		int length = length(i);
+		for (int j=0; j<length; j++)
+		{
+			byte b = body[offset+j];
+			if (b=='=' || b=='*') { return j; }
+		}
+		return length;
+	}
+
+
+	private boolean matches(int offset, byte[] name)
+	{
+		for (int j=0; j<name.length; j++)
+		{
+			if (body[offset+j] != name[j]) { return false; }
+		}
+		return true;
+	}
+
+
+	/** @return The String value after the separator; null if there is no separator, as Argument(String) parses it. */
+	private String value(int i, int separator)
+	{
+		int length = length(i);
+		return (separator==length) ? null : new String(body, offsets[i]+separator+1, length-separator-1, StandardCharsets.UTF_8);
+	}
+
+}
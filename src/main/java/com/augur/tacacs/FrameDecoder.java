@@ -0,0 +1,172 @@
+package com.augur.tacacs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes packets from a stream of bytes given in chunks of any size, as they
+ * arrive from a non-blocking channel, or are read from a capture; a packet may
+ * be split across chunks anywhere, even within its header.  Each connection
+ * needs its own FrameDecoder, used by one thread at a time.
+ * <p>
+ * A packet wholly within a chunk is decoded from the chunk directly.  Only a
+ * packet split across chunks is assembled in a buffer of the decoder's own,
+ * allocated when first needed and then reused; so the state kept between
+ * chunks is usually just the 12-byte header.
+ * </p>
+ * <pre>
+ *   FrameDecoder decoder = new FrameDecoder(key, true);
+ *   while (channel.read(buf) &gt; 0)
+ *   {
+ *       buf.flip();
+ *       for (Packet p; (p = decoder.decode(buf)) != null; ) { handle(p); }
+ *       buf.clear();
+ *   }
+ * </pre>
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public final class FrameDecoder
+{
+	/** The initial size of the buffer a packet is assembled in; grown for larger packets, up to the maximum. */
+	private static final int FRAME_BYTES = 4096;
+
+	/** The connection whose sessions are looked up and added; null if decoding standalone. */
+	private final Connection tacacs;
+	/** Whether the packets are requests from a client, rather than replies from a server. */
+	private final boolean requests;
+	private final byte[] key;
+	private final DebugLogger logger;
+	/** The header of a packet split across chunks, as far as it has arrived. */
+	private final ByteBuffer header;
+	/** The packet being assembled, once its header has arrived; null before. */
+	private ByteBuffer assembling;
+	/** The reused buffer packets are assembled in; null until first needed. */
+	private ByteBuffer frame;
+	/** The working space for deciphering each packet; also used by TacacsReader's blocking reads. */
+	final Header.Pad pad;
+
+
+	/**
+	 * Creates a decoder for use without a connection, e.g. to read a capture.
+	 * Packets up to TacacsReader.DEFAULT_MAX_PACKET_BYTES are accepted.  As
+	 * there are no sessions to consult, an AUTHEN request with sequence
+	 * number 1 is decoded as an AuthenStart, and any later one as an
+	 * AuthenContinue; as by Packet.readNextRequest().
+	 *
+	 * @param key The secret key shared by the client and server.
+	 * @param requests True to decode requests sent by a client (AuthenStart,
+	 *   AuthenContinue, AuthorRequest, and AcctRequest); false to decode the
+	 *   replies sent by a server (AuthenReply, AuthorReply, and AcctReply).
+	 */
+	public FrameDecoder(String key, boolean requests)
+	{
+		this(null, requests, key.getBytes(StandardCharsets.UTF_8), null);
+	}
+
+
+	/** Creates a decoder for the connection, decoding requests if it's a TacacsServer, and replies otherwise. */
+	FrameDecoder(Connection tacacs)
+	{
+		this(tacacs, tacacs instanceof TacacsServer, tacacs.key, tacacs.logger);
+	}
+
+
+	private FrameDecoder(Connection tacacs, boolean requests, byte[] key, DebugLogger logger)
+	{
+		this.tacacs = tacacs;
+		this.requests = requests;
+		this.key = key;
+		this.logger = logger;
+		this.header = ByteBuffer.allocate(12);
+		this.pad = new Header.Pad();
+	}
+
+
+	/**
+	 * Consumes bytes from the chunk, up to the end of the next packet, and
+	 * decodes it.  Call again with the same chunk until it returns null; the
+	 * chunk's bytes have then all been consumed, and the next call must be
+	 * given the bytes that follow them.
+	 *
+	 * @param chunk The next bytes, from its position to its limit; a heap or
+	 *   direct ByteBuffer with the default (big-endian) byte order.
+	 * @return The next packet; or null if the chunk ended before it did.
+	 * @throws IOException if the packet is bad, or larger than the maximum
+	 *   size; the stream can't be decoded any further.
+	 */
+	public Packet decode(ByteBuffer chunk) throws IOException
+	{
+		if (assembling==null && header.position()==0 && chunk.remaining()>=12)
+		{
+			// The usual case: the packet starts at the chunk's position, and may be wholly within it
+			int length = Connection.checkBodyLength(chunk.getInt(chunk.position()+8), maxPacketBytes());
+			if (chunk.remaining()-12 >= length) { return Packet.decode(tacacs, requests, chunk, length, key, logger, pad); }
+		}
+		if (assembling==null)
+		{
+			transfer(chunk, header);
+			if (header.hasRemaining()) { return null; } // wait for the rest of the header
+			assembling = frame(Connection.checkBodyLength(header.getInt(8), maxPacketBytes()));
+			header.flip();
+			assembling.put(header);
+			header.clear();
+		}
+		transfer(chunk, assembling);
+		if (assembling.hasRemaining()) { return null; } // wait for the rest of the body
+		ByteBuffer f = assembling;
+		assembling = null;
+		f.flip();
+		return Packet.decode(tacacs, requests, f, f.limit()-12, key, logger, pad); // copies what it keeps, so the buffer can be reused
+	}
+
+
+	/** @return The largest packet accepted, header included: the connection's, or the default if decoding standalone. */
+	int maxPacketBytes()
+	{
+		return (tacacs==null) ? TacacsReader.DEFAULT_MAX_PACKET_BYTES : tacacs.getMaxPacketBytes();
+	}
+
+
+	/** @return The reused buffer, as it is; e.g. to read a header into.  Also used by TacacsReader's blocking reads. */
+	ByteBuffer frame()
+	{
+		if (frame==null) { frame = ByteBuffer.allocate(FRAME_BYTES); }
+		return frame;
+	}
+
+
+	/**
+	 * @return The reused buffer, with room for a packet with the given body
+	 *   length: position zero, limit at the packet's end, and any header bytes
+	 *   already there kept.
+	 */
+	ByteBuffer frame(int bodyLength)
+	{
+		int size = 12 + bodyLength;
+		ByteBuffer frame = frame();
+		if (frame.capacity() < size || (frame.capacity() > 16*FRAME_BYTES && size <= FRAME_BYTES)) // grow, or drop a buffer grown by an unusually large packet
+		{
+			ByteBuffer f = ByteBuffer.allocate(Math.max(size, FRAME_BYTES));
+			System.arraycopy(frame.array(), 0, f.array(), 0, 12);
+			this.frame = frame = f;
+		}
+		frame.clear();
+		frame.limit(size);
+		return frame;
+	}
+
+
+	/** Moves as many bytes as fit from one buffer to the other. */
+	private static void transfer(ByteBuffer from, ByteBuffer to)
+	{
+		int n = Math.min(from.remaining(), to.remaining());
+		int limit = from.limit();
+		from.limit(from.position()+n);
+		to.put(from);
+		from.limit(limit);
+	}
+
+}
@@ -1,10 +1,9 @@
 package com.augur.tacacs;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 import static com.augur.tacacs.Packet.toInt;
 
 /**
@@ -32,7 +31,7 @@ public class Header
 	 * This is only set when decoding an incoming packet;
 	 * not used (set to -1) when a new header is constructed programmatically.
 	 * In the latter case, the body's length will be calculated as needed when
-	 * writePacket() is called.
+	 * Packet.encodeTo() is called.
 	 */
 	final int bodyLength;
 
@@ -66,12 +65,20 @@ public class Header
 	/** Used internally when receiving packets. */
 	Header(byte[] bytes)
 	{
-		version = TAC_PLUS.PACKET.VERSION.forCode(bytes[0]);
-		type = TAC_PLUS.PACKET.TYPE.forCode(bytes[1]);
-		seqNum = bytes[2];
-		flags = bytes[3];
-		sessionID = Arrays.copyOfRange(bytes, 4, 8);
-		bodyLength = toInt(bytes[8],bytes[9],bytes[10],bytes[11]);
+		this(ByteBuffer.wrap(bytes));
+	}
+
+
+	/** Used internally when receiving packets; reads the 12 bytes at the buffer's position, advancing it. */
+	Header(ByteBuffer buf)
+	{
+		version = TAC_PLUS.PACKET.VERSION.forCode(buf.get());
+		type = TAC_PLUS.PACKET.TYPE.forCode(buf.get());
+		seqNum = buf.get();
+		flags = buf.get();
+		sessionID = new byte[4];
+		buf.get(sessionID);
+		bodyLength = buf.getInt();
 	}
 
 	/**
@@ -91,71 +98,131 @@ public class Header
 		return new Header((byte)((Packet.FF&seqNum)+1), flags, version, type, sessionID);
 	}
 
+	/** @return The four session ID bytes as an int, used to look up sessions. */
+	int intSessionID()
+	{
+		return toInt(sessionID[0], sessionID[1], sessionID[2], sessionID[3]);
+	}
+
 	boolean hasFlag(TAC_PLUS.PACKET.FLAG flag)
 	{
 		return (flags & flag.code()) != 0;
 	}
 
 	/**
-	 * Toggles the encryption of the given packet body byte[] returning the result.
+	 * Toggles the encryption of the given packet body byte[], in place.
 	 * The calculation depends on the given key, and these header fields:
 	 * sessionID, version, and seqNum.
 	 * @param body
 	 * @param key
-	 * @param md
 	 * @throws NoSuchAlgorithmException if the MD5 message digest can't be found; shouldn't happen.
-	 * @return A new byte[] containing the ciphered/deciphered body; or just
-	 * the unchanged body itself if TAC_PLUS.PACKET.FLAG.UNENCRYPTED is set.
+	 * @return The given body, now ciphered/deciphered; or unchanged if
+	 * TAC_PLUS.PACKET.FLAG.UNENCRYPTED is set.
 	 */
 	byte[] toggleCipher(byte[] body, byte[] key) throws NoSuchAlgorithmException
 	{
-		if (hasFlag(TAC_PLUS.PACKET.FLAG.UNENCRYPTED)) { return body; }
-		MessageDigest md = MessageDigest.getInstance("MD5");
-		int length = body.length;
-		byte[] pad = new byte[length];
-		md.update(sessionID); // reset() not necessary since each digest() resets
-		md.update(key);
-		md.update(version.code());
-		md.update(seqNum);
-		byte[] digest=md.digest(); // first digest applies only header info
-		System.arraycopy(digest, 0, pad, 0, Math.min(digest.length,length));
-		length -= digest.length;
-		int pos = digest.length;
-		while (length>0)
-		{
-			md.update(sessionID);
-			md.update(key);
-			md.update(version.code());
-			md.update(seqNum);
-			md.update(Arrays.copyOfRange(pad, pos-digest.length, pos)); // apply previous digest too
-			digest=md.digest();
-			System.arraycopy(digest, 0, pad, pos, Math.min(digest.length,length));
-			pos += digest.length;
-			length -= digest.length;
-		}
-		byte[] toggled = new byte[body.length];
-		for (int i=body.length-1; i>=0; i--)
+		return toggleCipher(body, key, null);
+	}
+
+
+	/**
+	 * Toggles the encryption of the given packet body byte[], in place; like
+	 * toggleCipher(byte[], byte[]), using the given working space.
+	 * @param pad The connection's Pad; null for a new one, e.g. for a one-off packet.
+	 */
+	byte[] toggleCipher(byte[] body, byte[] key, Pad pad) throws NoSuchAlgorithmException
+	{
+		cipher(body, 0, null, body.length, key, pad);
+		return body;
+	}
+
+
+	/**
+	 * Toggles the encryption of a packet body held in a (heap or direct)
+	 * ByteBuffer, in place; like toggleCipher(byte[], byte[]).
+	 * @param buf The buffer; its position and limit are ignored, and unchanged.
+	 * @param offset The index of the body's first byte.
+	 * @param length The body's length.
+	 * @param key
+	 * @param pad The connection's Pad; null for a new one, e.g. for a one-off packet.
+	 * @throws NoSuchAlgorithmException if the MD5 message digest can't be found; shouldn't happen.
+	 */
+	void toggleCipher(ByteBuffer buf, int offset, int length, byte[] key, Pad pad) throws NoSuchAlgorithmException
+	{
+		if (buf.hasArray()) { cipher(buf.array(), buf.arrayOffset()+offset, null, length, key, pad); } // a heap buffer's array is XORed directly
+		else { cipher(null, offset, buf, length, key, pad); }
+	}
+
+
+	/**
+	 * XORs the pad into the body, in place, in either the array or (if that's null) the direct buffer.
+	 * @param base The index of the body's first byte in the array or buffer.
+	 */
+	private void cipher(byte[] array, int base, ByteBuffer buf, int length, byte[] key, Pad pad) throws NoSuchAlgorithmException
+	{
+		if (hasFlag(TAC_PLUS.PACKET.FLAG.UNENCRYPTED) || length==0) { return; }
+		Pad p = (pad != null) ? pad : new Pad();
+		if (p.md == null) { p.md = MessageDigest.getInstance("MD5"); }
+		// The pad is MD5(sessionID, key, version, seqNum) for the first 16 bytes,
+		// then MD5(sessionID, key, version, seqNum, previous digest) for each 16 after
+		int prefix = key.length + 6;
+		if (p.input.length < prefix+16) { p.input = new byte[prefix+16]; }
+		byte[] input = p.input;
+		byte[] digest = p.digest;
+		System.arraycopy(sessionID, 0, input, 0, 4);
+		System.arraycopy(key, 0, input, 4, key.length);
+		input[prefix-2] = version.code();
+		input[prefix-1] = seqNum;
+		try
 		{
-			toggled[i] = (byte)((body[i] & 0xff) ^ (pad[i] & 0xff));
+			p.md.update(input, 0, prefix); // reset() not necessary since each digest() resets
+			p.md.digest(digest, 0, 16);
+			for (int pos=0; pos<length; pos+=16)
+			{
+				if (pos > 0)
+				{
+					System.arraycopy(digest, 0, input, prefix, 16);
+					p.md.update(input, 0, prefix+16);
+					p.md.digest(digest, 0, 16);
+				}
+				int n = Math.min(16, length-pos);
+				if (array != null)
+				{
+					for (int i=0, at=base+pos; i<n; i++, at++) { array[at] ^= digest[i]; }
+				}
+				else
+				{
+					for (int i=0, at=base+pos; i<n; i++, at++) { buf.put(at, (byte)(buf.get(at) ^ digest[i])); }
+				}
+			}
 		}
-		return toggled;
+		catch (DigestException e) { throw new IllegalStateException(e); } // can't happen; the buffer fits an MD5 digest
 	}
 
-	void writePacket(OutputStream out, byte[] body, byte[] key) throws IOException
+
+	/**
+	 * The MD5 digest and working space for toggleCipher(), reused by every
+	 * packet a connection writes (or reads); used by one thread at a time.
+	 */
+	static final class Pad
 	{
-		int len = body.length;
-		ByteArrayOutputStream bout = new ByteArrayOutputStream(12+len);
-		bout.write(version.code());
-		bout.write(type.code());
-		bout.write(seqNum);
-		bout.write(flags);
-		bout.write(sessionID);
-		bout.write(Packet.toBytes4(len));
-		try { bout.write(toggleCipher(body, key)); } catch (NoSuchAlgorithmException e) { throw new IOException(e.getMessage()); }
-		out.write(bout.toByteArray());
-		out.flush();
+		/** Created on first use. */
+		MessageDigest md;
+		/** The sessionID, key, version, and seqNum; followed by the previous digest. */
+		byte[] input = new byte[64];
+		final byte[] digest = new byte[16];
 	}
 
 
+	/** Puts the 12 header bytes at the given index of the buffer, leaving its position unchanged. */
+	void encodeTo(ByteBuffer buf, int index, int bodyLength)
+	{
+		buf.put(index, version.code());
+		buf.put(index+1, type.code());
+		buf.put(index+2, seqNum);
+		buf.put(index+3, flags);
+		for (int i=0; i<4; i++) { buf.put(index+4+i, sessionID[i]); }
+		buf.putInt(index+8, bodyLength);
+	}
 
 }
@@ -0,0 +1,82 @@
+package com.augur.tacacs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * One request, sent in one or more sessions (normally to different servers),
+ * where the first reply wins and the other sessions are cancelled.  The result
+ * fails only if every session sent fails.  Used by TacacsClient for hedging
+ * idempotent requests; see TacacsClient.setHedging().
+ *
+ * @param <T> The type of reply.
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+class HedgedRequest<T>
+{
+	final CompletableFuture<T> result;
+	private final Function<SessionClient,CompletableFuture<T>> request;
+	/** The sessions sent so far; guarded by 'this'. */
+	private final List<SessionClient> sessions;
+	/** The number of sessions still waiting for replies; guarded by 'this'. */
+	private int outstanding;
+
+
+	/** @param request Sends the request in a given session, returning its future reply. */
+	HedgedRequest(Function<SessionClient,CompletableFuture<T>> request)
+	{
+		this.result = new CompletableFuture<>();
+		this.request = request;
+		this.sessions = new ArrayList<>();
+	}
+
+
+	/** Sends the request in another session; cancelled at once if a reply has already won. */
+	void send(SessionClient s)
+	{
+		boolean late;
+		synchronized (this)
+		{
+			late = result.isDone();
+			if (!late)
+			{
+				sessions.add(s);
+				outstanding++;
+			}
+		}
+		if (late)
+		{
+			s.cancel();
+			return;
+		}
+		request.apply(s).whenComplete((reply, error) ->
+		{
+			if (error==null)
+			{
+				if (result.complete(reply)) { cancelOthers(s); }
+			}
+			else if (lastFailure()) { result.completeExceptionally(error); }
+		});
+	}
+
+
+	private synchronized boolean lastFailure()
+	{
+		return --outstanding==0;
+	}
+
+
+	private void cancelOthers(SessionClient winner)
+	{
+		List<SessionClient> losers;
+		synchronized (this) { losers = new ArrayList<>(sessions); }
+		for (SessionClient s : losers)
+		{
+			if (s!=winner) { s.cancel(); }
+		}
+	}
+
+}
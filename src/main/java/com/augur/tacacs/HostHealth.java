@@ -0,0 +1,100 @@
+package com.augur.tacacs;
+
+/**
+ * A circuit breaker for connecting to one TACACS+ server, so a dead server
+ * costs one connection time-out per back-off period, rather than one per login.
+ * <p>
+ * After failureThreshold consecutive failed connection attempts, the server is
+ * considered down, and is skipped until its back-off period passes.  Then a
+ * single caller is allowed a probe attempt ("half-open"), while others continue
+ * to skip it; if the probe connects, the server is healthy again, otherwise the
+ * back-off period is doubled, up to maxBackoffMillis.
+ * </p>
+ * The lock is only held briefly, never during I/O.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+class HostHealth
+{
+	/** Consecutive failures before the server is skipped; zero to never skip it. */
+	private int failureThreshold;
+	private long initialBackoffMillis;
+	private long maxBackoffMillis;
+
+	private int failures;
+	/** When a server that is down may next be probed. */
+	private long retryAt;
+	/** A boolean indicating if a probe attempt is in progress. */
+	private boolean probing;
+
+
+	HostHealth()
+	{
+		this.failureThreshold = 0; // disabled unless TacacsClient.setCircuitBreaker() is called
+		this.initialBackoffMillis = 1000;
+		this.maxBackoffMillis = 60000;
+	}
+
+
+	synchronized void configure(int failureThreshold, long initialBackoffMillis, long maxBackoffMillis)
+	{
+		this.failureThreshold = failureThreshold;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+
+	/**
+	 * @return A boolean indicating if a connection attempt may be made now; if so,
+	 *   the caller must report the outcome with succeeded() or failed().
+	 */
+	synchronized boolean tryAcquire()
+	{
+		if (!isDown()) { return true; }
+		if (probing || System.currentTimeMillis()<retryAt) { return false; }
+		probing = true;
+		return true;
+	}
+
+
+	synchronized void succeeded()
+	{
+		failures = 0;
+		probing = false;
+	}
+
+
+	/** @return A boolean indicating if the server is now considered down. */
+	synchronized boolean failed()
+	{
+		failures++;
+		probing = false;
+		if (!isDown()) { return false; }
+		int doublings = Math.min(failures-failureThreshold, 20);
+		retryAt = System.currentTimeMillis() + Math.min(maxBackoffMillis, initialBackoffMillis<<doublings);
+		return true;
+	}
+
+
+	/** Ends an attempt that was inconclusive, e.g. cut short by the caller's deadline, without counting it. */
+	synchronized void released()
+	{
+		probing = false;
+	}
+
+
+	/** @return A boolean indicating if the server has failed too often, and is skipped between probes. */
+	synchronized boolean isDown()
+	{
+		return failureThreshold>0 && failures>=failureThreshold;
+	}
+
+
+	/** @return The milliseconds until a server that is down may be probed; zero if now. */
+	synchronized long getRetryMillis()
+	{
+		return Math.max(0, retryAt-System.currentTimeMillis());
+	}
+
+}
@@ -0,0 +1,347 @@
+package com.augur.tacacs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The pool of connections to one configured TACACS+ server.
+ * TacacsClient keeps one HostPool per configured host, and asks it for a
+ * connection each time a new session is needed.
+ * <p>
+ * In single-connect mode, the pool hands out the connection with the fewest
+ * outstanding sessions, and only asks for another connection (up to the
+ * configured maximum) when every existing one is busy.  Without single-connect,
+ * the server closes the socket after each session, so every session gets a new
+ * connection; the pool then just tracks them for shutdown.
+ * </p>
+ * Methods hold the pool's lock (a ReentrantLock, so a waiting virtual thread
+ * doesn't pin its carrier), but never perform I/O while holding it;
+ * connections are opened by the caller, so a slow connect to a replacement never
+ * blocks callers that are leasing healthy connections.  (Callers only wait when
+ * the host has no open connection yet, and the maximum are being opened.)
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+class HostPool
+{
+	final String host;
+	final int port;
+	final String key;
+	/** The circuit breaker for opening new connections to this host. */
+	final HostHealth health;
+
+	private final List<Connection> readers;
+	private final ReentrantLock lock;
+	/** Signalled when a pending connection is added or abandoned. */
+	private final Condition connected;
+	/** Number of connections currently being opened by callers; counted against maxConnections. */
+	private int pending;
+	private int minConnections;
+	private int maxConnections;
+	private long idleTimeoutMillis;
+	/** Periodically closes idle connections, so they don't wait for the next lease(); null without an idle time-out. */
+	private ScheduledFuture<?> evictor;
+	private int maxSessionsPerConnection;
+	private int maxPacketBytes;
+	/** Exponentially weighted moving average of reply latency, in milliseconds; negative until measured. */
+	private double latencyMillis;
+	/** The weight of each new latency sample in the moving average. */
+	private static final double LATENCY_ALPHA = 0.3;
+	/** A ring of the most recent latency samples, in nanoseconds, for percentiles. */
+	private final long[] latencySamples;
+	private int latencyCount, latencyNext;
+	private static final int LATENCY_SAMPLES = 256;
+	/** The fewest samples for a meaningful percentile. */
+	private static final int LATENCY_MIN_SAMPLES = 20;
+
+
+	HostPool(String host, int port, String key)
+	{
+		this.host = host;
+		this.port = port;
+		this.key = key;
+		this.health = new HostHealth();
+		this.readers = new ArrayList<>();
+		this.lock = new ReentrantLock();
+		this.connected = lock.newCondition();
+		this.pending = 0;
+		this.minConnections = 0;
+		this.maxConnections = 1;
+		this.idleTimeoutMillis = 0;
+		this.maxSessionsPerConnection = Integer.MAX_VALUE;
+		this.maxPacketBytes = TacacsReader.DEFAULT_MAX_PACKET_BYTES;
+		this.latencyMillis = -1;
+		this.latencySamples = new long[LATENCY_SAMPLES];
+	}
+
+
+	void setSize(int minConnections, int maxConnections)
+	{
+		lock.lock();
+		try
+		{
+			this.minConnections = minConnections;
+			this.maxConnections = maxConnections;
+		}
+		finally { lock.unlock(); }
+	}
+
+
+	/** @param maxSessions The cap on sessions outstanding at once on each connection, applied to existing and future connections. */
+	void setMaxSessionsPerConnection(int maxSessions)
+	{
+		lock.lock();
+		try
+		{
+			this.maxSessionsPerConnection = maxSessions;
+			for (Connection r : readers) { r.setMaxSessions(maxSessions); }
+		}
+		finally { lock.unlock(); }
+	}
+
+
+	/** @param maxPacketBytes The largest packet accepted on each connection, applied to existing and future connections. */
+	void setMaxPacketBytes(int maxPacketBytes)
+	{
+		lock.lock();
+		try
+		{
+			this.maxPacketBytes = maxPacketBytes;
+			for (Connection r : readers) { r.setMaxPacketBytes(maxPacketBytes); }
+		}
+		finally { lock.unlock(); }
+	}
+
+
+	/**
+	 * @param idleTimeoutMillis The time an unused connection is kept open; zero
+	 *   to never evict idle connections.  Idle connections are also evicted
+	 *   every half time-out, even if no session is started.
+	 */
+	void setIdleTimeoutMillis(long idleTimeoutMillis)
+	{
+		lock.lock();
+		try
+		{
+			this.idleTimeoutMillis = idleTimeoutMillis;
+			if (evictor!=null) { evictor.cancel(false); }
+			evictor = null;
+			if (idleTimeoutMillis>0)
+			{
+				long period = Math.max(100, idleTimeoutMillis/2);
+				evictor = Session.Timeouts.EXECUTOR.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+			}
+		}
+		finally { lock.unlock(); }
+	}
+
+
+	/** Run by the evictor; skipped if the pool is busy, since the next lease() prunes anyway. */
+	private void evictIdle()
+	{
+		if (!lock.tryLock()) { return; }
+		try { prune(); }
+		finally { lock.unlock(); }
+	}
+
+
+	/**
+	 * Finds a connection for a new session.  If null is returned, the caller is
+	 * expected to open a new connection and then call either added() or abandoned().
+	 *
+	 * @param singleConnect A boolean indicating if connections may be shared by several sessions.
+	 * @param deadline Bounds the wait for a connection being opened by another caller; null to wait as long as it takes.
+	 * @return The live connection with the fewest outstanding sessions, or null
+	 *   if a new connection should be opened instead.
+	 * @throws IOException if every allowed connection already has its maximum
+	 *   number of sessions outstanding, or a SocketTimeoutException if the deadline passes,
+	 *   or an InterruptedIOException if the thread is interrupted while waiting.
+	 */
+	Connection lease(boolean singleConnect, Deadline deadline) throws IOException
+	{
+		lock.lock();
+		try
+		{
+			while (true)
+			{
+				prune();
+				if (!singleConnect) { break; }
+				Connection best = null;
+				boolean full = false;
+				for (Connection r : readers)
+				{
+					if (r.isFull()) { full = true; }
+					else if (best==null || r.getSessionCount() < best.getSessionCount()) { best = r; }
+				}
+				int total = readers.size() + pending;
+				if (best!=null && total>=minConnections && (best.getSessionCount()==0 || total>=maxConnections))
+				{
+					best.touch(); // so it can't be evicted as idle before the caller adds its session
+					return best;
+				}
+				if (total<maxConnections) { break; }
+				if (best==null && full && pending==0) { throw new IOException("All connections to "+host+" have "+maxSessionsPerConnection+" sessions in flight."); }
+				// All allowed connections are still being opened by other callers; wait for one.
+				if (deadline!=null && deadline.isExpired()) { throw new SocketTimeoutException("Deadline expired waiting for a connection to "+host); }
+				try
+				{
+					if (deadline==null) { connected.await(); }
+					else { connected.await(deadline.remainingMillis(), TimeUnit.MILLISECONDS); }
+				}
+				catch (InterruptedException ie)
+				{
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for a connection to "+host);
+				}
+			}
+			pending++;
+			return null;
+		}
+		finally { lock.unlock(); }
+	}
+
+
+	/** Registers a connection opened after lease() returned null. */
+	void added(Connection r)
+	{
+		lock.lock();
+		try
+		{
+			r.setMaxSessions(maxSessionsPerConnection);
+			r.setMaxPacketBytes(maxPacketBytes);
+			r.pool = this;
+			pending--;
+			readers.add(r);
+			connected.signalAll();
+		}
+		finally { lock.unlock(); }
+	}
+
+
+	/** Releases the reservation made by lease(), after failing to open a connection. */
+	void abandoned()
+	{
+		lock.lock();
+		try
+		{
+			pending--;
+			connected.signalAll();
+		}
+		finally { lock.unlock(); }
+	}
+
+
+	/**
+	 * Adds a sample to the moving average of reply latency.
+	 * @param nanos The time from sending a request until its reply, or its time-out.
+	 */
+	void recordLatency(long nanos)
+	{
+		lock.lock();
+		try
+		{
+			double ms = nanos/1e6;
+			latencyMillis = (latencyMillis<0) ? ms : latencyMillis + LATENCY_ALPHA*(ms-latencyMillis);
+			latencySamples[latencyNext] = nanos;
+			latencyNext = (latencyNext+1) % LATENCY_SAMPLES;
+			if (latencyCount<LATENCY_SAMPLES) { latencyCount++; }
+		}
+		finally { lock.unlock(); }
+	}
+
+
+	/** @return The moving average of reply latency in milliseconds; negative if not yet measured. */
+	double getLatencyMillis()
+	{
+		lock.lock();
+		try { return latencyMillis; }
+		finally { lock.unlock(); }
+	}
+
+
+	/**
+	 * @param percentile The percentile, e.g. 95.
+	 * @return The given percentile of the recent reply latencies, in milliseconds
+	 *   (rounded up); negative if too few have been measured.
+	 */
+	long getLatencyPercentileMillis(double percentile)
+	{
+		long[] sorted;
+		lock.lock();
+		try
+		{
+			if (latencyCount<LATENCY_MIN_SAMPLES) { return -1; }
+			sorted = Arrays.copyOf(latencySamples, latencyCount);
+		}
+		finally { lock.unlock(); }
+		Arrays.sort(sorted);
+		int i = (int)Math.ceil(percentile/100*sorted.length) - 1;
+		return (sorted[Math.max(0, Math.min(i, sorted.length-1))] + 999999) / 1000000;
+	}
+
+
+	/** @return The number of sessions waiting for replies on this host's connections, plus connections being opened. */
+	int getOutstanding()
+	{
+		lock.lock();
+		try
+		{
+			int n = pending;
+			for (Connection r : readers) { n += r.getSessionCount(); }
+			return n;
+		}
+		finally { lock.unlock(); }
+	}
+
+
+	/** Closes all connections to this host, and stops evicting idle ones. */
+	void shutdown()
+	{
+		lock.lock();
+		try
+		{
+			if (evictor!=null) { evictor.cancel(false); }
+			evictor = null;
+			for (Connection r : readers) { r.shutdown(); }
+			readers.clear();
+		}
+		finally { lock.unlock(); }
+	}
+
+
+	/**
+	 * Drops dead connections, and closes those idle for longer than the idle
+	 * time-out, while keeping at least minConnections open.
+	 */
+	private void prune()
+	{
+		int live = 0;
+		for (Iterator<Connection> it = readers.iterator(); it.hasNext(); )
+		{
+			if (it.next().isShutdown()) { it.remove(); }
+			else { live++; }
+		}
+		if (idleTimeoutMillis<=0) { return; }
+		for (Iterator<Connection> it = readers.iterator(); it.hasNext() && live>minConnections; )
+		{
+			Connection r = it.next();
+			if (r.getIdleMillis() > idleTimeoutMillis)
+			{
+				r.shutdown();
+				it.remove();
+				live--;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+package com.augur.tacacs;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How TacacsClient chooses among its configured servers for each new session.
+ * Whatever the policy, the servers are tried in the chosen order until one
+ * provides a connection, so the others still serve for fail-over; and servers
+ * skipped by their circuit breakers are passed over.
+ * <p>
+ * The statistics used are per server: the sessions waiting for replies on its
+ * connections, and a moving average of its reply latency, measured by
+ * SessionClient from sending each request until its reply (or time-out).
+ * </p>
+ *
+ * @see TacacsClient#setHostSelectionPolicy(HostSelectionPolicy)
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public enum HostSelectionPolicy
+{
+	/** The configured order; secondary servers are used only when the primary fails.  The default. */
+	FAILOVER,
+	/** Each new session starts with the next server in turn. */
+	ROUND_ROBIN,
+	/** The server with the fewest sessions waiting for replies first; ties in the configured order. */
+	LEAST_OUTSTANDING,
+	/**
+	 * A server chosen at random, weighted by the inverse of its average reply
+	 * latency times its outstanding sessions, so that slow or overloaded servers
+	 * are drained, but still sampled now and then to notice their recovery; the
+	 * others follow, fastest first.  Servers not yet measured are assumed to be
+	 * as fast as the average.
+	 */
+	EWMA_LATENCY;
+
+
+	/**
+	 * @param pools The configured servers, in the configured order.
+	 * @param turn A counter incremented for every new session, for ROUND_ROBIN.
+	 * @return The servers in the order they should be tried.
+	 */
+	HostPool[] order(HostPool[] pools, int turn)
+	{
+		if (pools.length<2) { return pools; }
+		HostPool[] order = new HostPool[pools.length];
+		switch (this)
+		{
+			case ROUND_ROBIN:
+				int first = Math.floorMod(turn, pools.length);
+				for (int i=0; i<pools.length; i++) { order[i] = pools[(first+i) % pools.length]; }
+				return order;
+			case LEAST_OUTSTANDING:
+				int[] outstanding = new int[pools.length];
+				Integer[] index = new Integer[pools.length];
+				for (int i=0; i<pools.length; i++) { outstanding[i] = pools[i].getOutstanding(); index[i] = i; }
+				Arrays.sort(index, Comparator.comparingInt(i -> outstanding[i])); // stable
+				for (int i=0; i<pools.length; i++) { order[i] = pools[index[i]]; }
+				return order;
+			case EWMA_LATENCY:
+				return byLatency(pools);
+			case FAILOVER:
+			default:
+				return pools;
+		}
+	}
+
+
+	private static HostPool[] byLatency(HostPool[] pools)
+	{
+		int n = pools.length;
+		double[] latency = new double[n];
+		double sum = 0;
+		int measured = 0;
+		for (int i=0; i<n; i++)
+		{
+			latency[i] = pools[i].getLatencyMillis();
+			if (latency[i]>=0) { sum += latency[i]; measured++; }
+		}
+		double average = (measured==0) ? 1 : sum/measured;
+		double[] cost = new double[n];
+		double totalWeight = 0;
+		Integer[] index = new Integer[n];
+		for (int i=0; i<n; i++)
+		{
+			double ms = (latency[i]<0) ? average : latency[i];
+			cost[i] = (Math.max(ms, 0.01)) * (pools[i].getOutstanding()+1);
+			totalWeight += 1/cost[i];
+			index[i] = i;
+		}
+		// Pick the first server at random, weighted by 1/cost; the rest by increasing cost
+		double r = ThreadLocalRandom.current().nextDouble(totalWeight);
+		int first = n-1;
+		for (int i=0; i<n; i++)
+		{
+			r -= 1/cost[i];
+			if (r<0) { first = i; break; }
+		}
+		Arrays.sort(index, Comparator.comparingDouble(i -> cost[i]));
+		HostPool[] order = new HostPool[n];
+		order[0] = pools[first];
+		for (int i=0, j=1; i<n; i++)
+		{
+			if (index[i]!=first) { order[j++] = pools[index[i]]; }
+		}
+		return order;
+	}
+
+}
@@ -0,0 +1,186 @@
+package com.augur.tacacs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A client connection whose I/O is done by a shared TacacsSelector event loop,
+ * instead of a dedicated reader thread.  Sessions use it exactly as they use
+ * a (blocking) TacacsReader; only the reading and writing differ.
+ * <p>
+ * Incoming bytes are read into a small buffer, in whatever chunks the channel
+ * gives them, and the packets are framed and decoded by the FrameDecoder.
+ * Outgoing packets are encoded by the calling thread and queued for the event
+ * loop, which writes all those queued with one gathering write.
+ * </p>
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+class NioTacacsReader extends Connection
+{
+	/** The size of the buffer read into; a larger packet is assembled by the decoder. */
+	private static final int READ_BYTES = 4096;
+	private final SocketChannel channel;
+	private final TacacsSelector loop;
+	private final Queue<ByteBuffer> writes;
+	/** The queued packets to write at once; only used on the loop thread. */
+	private final ByteBuffer[] gather;
+	/** Only used on the loop thread. */
+	private SelectionKey selectionKey;
+	/** Bytes read from the channel, for the decoder; only used on the loop thread. */
+	private final ByteBuffer in;
+	/** The working space for ciphering the packets written, by any thread; guarded by padLock. */
+	private final Header.Pad pad;
+	/** Not synchronized, so a virtual thread waiting for it doesn't pin its carrier. */
+	private final ReentrantLock padLock;
+
+
+	/**
+	 * @param channel A connected SocketChannel; it will be put into non-blocking mode.
+	 */
+	NioTacacsReader(SocketChannel channel, String key, DebugLogger debugLogger, TacacsSelector loop) throws IOException
+	{
+		super(key, debugLogger);
+		this.channel = channel;
+		this.loop = loop;
+		this.writes = new ConcurrentLinkedQueue<>();
+		this.gather = new ByteBuffer[64];
+		this.in = ByteBuffer.allocate(READ_BYTES);
+		this.pad = new Header.Pad();
+		this.padLock = new ReentrantLock();
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true); // writes are already coalesced; see onWritable()
+	}
+
+
+	/** Registers with the event loop, rather than starting a thread. */
+	@Override public void start(boolean virtual)
+	{
+		loop.update(this);
+	}
+
+
+	/**
+	 * Marks the connection closed; the event loop then closes the channel and
+	 * ends any outstanding sessions.  (Ending them here could clobber the
+	 * result of a session whose final reply is being dispatched right now.)
+	 */
+	@Override public void shutdown()
+	{
+		if (!isShutdown())
+		{
+			super.shutdown();
+			loop.update(this);
+		}
+	}
+
+
+	/** Encodes the packet on the calling thread, then queues it for the event loop. */
+	@Override public void write(Packet p) throws IOException
+	{
+		if (isShutdown()) { throw new ClosedChannelException(); }
+		WriteBuffer bout = new WriteBuffer(256, pad);
+		padLock.lock();
+		try { bout.encode(p, key); }
+		finally { padLock.unlock(); }
+		writes.add(ByteBuffer.wrap(bout.array(), 0, bout.size()));
+		if (logger != null) { logger.debug("TX --> "+p); }
+		loop.update(this);
+	}
+
+
+	/** Only queues the packet, so never blocks past the deadline. */
+	@Override void write(Packet p, Deadline deadline) throws IOException
+	{
+		write(p);
+	}
+
+
+	/** Called on the loop thread to register, or to add write interest if writes are queued. */
+	void register(Selector selector)
+	{
+		if (isShutdown())
+		{
+			close(new IOException("Shutdown"));
+			return;
+		}
+		try
+		{
+			if (selectionKey==null) { selectionKey = channel.register(selector, SelectionKey.OP_READ, this); }
+			if (selectionKey.isValid() && !writes.isEmpty()) { selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE); }
+		}
+		catch (IOException e) { fail(e); }
+	}
+
+
+	/** Called on the loop thread when the channel has bytes to read. */
+	void onReadable() throws IOException
+	{
+		while (true)
+		{
+			int n = channel.read(in);
+			if (n<0) { throw new IOException("Connection closed by server."); }
+			boolean full = !in.hasRemaining(); // more bytes may be waiting
+			in.flip();
+			for (Packet p; (p = decoder.decode(in)) != null; ) { dispatch(p); }
+			in.clear(); // all consumed by the decoder
+			if (!full) { return; } // wait for more bytes
+		}
+	}
+
+
+	/** Called on the loop thread when the channel can accept more bytes. */
+	void onWritable() throws IOException
+	{
+		while (true)
+		{
+			// Gather the queued packets, to write them with one system call
+			int n = 0;
+			for (ByteBuffer buf : writes)
+			{
+				gather[n++] = buf;
+				if (n==gather.length) { break; }
+			}
+			if (n==0) { break; }
+			channel.write(gather, 0, n);
+			boolean full = false;
+			for (int i=0; i<n && !full; i++)
+			{
+				if (gather[i].hasRemaining()) { full = true; }
+				else { writes.poll(); }
+			}
+			Arrays.fill(gather, 0, n, null);
+			if (full) { return; } // socket buffer full; wait for next OP_WRITE
+		}
+		selectionKey.interestOps(SelectionKey.OP_READ);
+		if (!writes.isEmpty()) { selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE); } // raced with a writer
+	}
+
+
+	/** Called on the loop thread after an I/O error, ending the outstanding sessions with that error. */
+	void fail(IOException e)
+	{
+		if (!isShutdown() && logger != null) { logger.debug("TACACS: Non-blocking connection failed: "+e); }
+		close(e);
+	}
+
+
+	private void close(IOException e)
+	{
+		super.shutdown();
+		try { channel.close(); } catch (IOException ioe) {
+			// ignore
+		}
+		endSessions(e);
+	}
+
+}
@@ -2,7 +2,10 @@ package com.augur.tacacs;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 /**
  * Each TACACS+ packet has a standard header.  The body structure is variable.
@@ -18,6 +21,8 @@ public abstract class Packet
 	static final int FF = 0xFF;
 	static final int FFFF = 0xFFFF;
 	final Header header;
+	/** The encoded body, if this is a canned packet, or a copy of one; otherwise null.  See Packet(Header, Packet). */
+	private volatile byte[] canned;
 
 
 	Packet(Header header)
@@ -26,6 +31,28 @@ public abstract class Packet
 	}
 
 
+	/**
+	 * Constructor for a copy of a canned packet, with the given header; e.g.
+	 * for a reply sent the same every time.  The body is encoded just once,
+	 * for the first copy, then shared by the canned packet and all copies of
+	 * it; so encoding one is only a copy, and the cipher.
+	 */
+	Packet(Header header, Packet canned)
+	{
+		this.header = header;
+		this.canned = canned.canned();
+	}
+
+
+	/** @return The encoded body, encoded on first use; only for a canned packet, which must not change. */
+	private byte[] canned()
+	{
+		byte[] b = canned;
+		if (b == null) { canned = b = body(); } // at worst, encoded twice by racing threads
+		return b;
+	}
+
+
 	/**
 	 * @return A boolean indicating if this packet represents the last for this
 	 * session; this base implementation returns 'false', but overriding classes
@@ -35,40 +62,166 @@ public abstract class Packet
 	boolean isEndOfSession() { return false; }
 
 	/**
-	 * Writes the whole packet.
+	 * Puts the body, unciphered, at the buffer's position, advancing it;
+	 * implemented by each packet type.
+	 * @throws BufferOverflowException if the buffer hasn't room.
+	 */
+	abstract void encodeBody(ByteBuffer body);
+
+	/**
+	 * Encodes the whole packet at the buffer's position, advancing it: the
+	 * header, then the body, ciphered in place.  The buffer may be direct, but
+	 * must have the default (big-endian) byte order.
+	 * @param buf The destination ByteBuffer
+	 * @param key The byte[] secret key shared between the client and server.
+	 * @param pad The working space for the cipher, e.g. the connection's; null for a new one.
+	 * @throws BufferOverflowException if the buffer hasn't room; its position is then unchanged.
+	 */
+	void encodeTo(ByteBuffer buf, byte[] key, Header.Pad pad) throws IOException
+	{
+		int start = buf.position();
+		if (buf.remaining() < 12) { throw new BufferOverflowException(); }
+		buf.position(start+12);
+		byte[] b = canned;
+		try
+		{
+			if (b != null) { buf.put(b); }
+			else { encodeBody(buf); }
+		}
+		catch (BufferOverflowException e)
+		{
+			buf.position(start);
+			throw e;
+		}
+		int length = buf.position() - start - 12;
+		header.encodeTo(buf, start, length);
+		try { header.toggleCipher(buf, start+12, length, key, pad); } catch (NoSuchAlgorithmException e) { throw new IOException(e.getMessage()); }
+	}
+
+	/**
+	 * Writes the whole packet; encoded by encodeTo() directly into the
+	 * stream's array if it's a Connection.WriteBuffer.
 	 * @param out  The destination OutputStream
 	 * @param key The byte[] secret key shared between the client and server.
 	 * @throws IOException if there is a problem writing to the given OutputStream.
 	 */
-	abstract void write(OutputStream out, byte[] key) throws IOException;
+	void write(OutputStream out, byte[] key) throws IOException
+	{
+		if (out instanceof Connection.WriteBuffer)
+		{
+			((Connection.WriteBuffer)out).encode(this, key);
+			return;
+		}
+		Connection.WriteBuffer buf = new Connection.WriteBuffer(256, null);
+		buf.encode(this, key);
+		buf.writeTo(out);
+	}
+
+	/** @return The encoded (unciphered) body; e.g. for AccountingSpool to store. */
+	byte[] body()
+	{
+		for (int size=256; ; size*=2)
+		{
+			ByteBuffer buf = ByteBuffer.allocate(size);
+			try
+			{
+				encodeBody(buf);
+				return Arrays.copyOf(buf.array(), buf.position());
+			}
+			catch (BufferOverflowException e) {
+				// try again, bigger
+			}
+		}
+	}
 
 	/**
 	 * Reads the next reply packet from the server.
 	 * @param tacacs The TacacsReader providing I/O and session management
 	 * @param key The secret key byte[] shared with the server
 	 * @return A Packet subclass instance: AuthenReply, AcctReply, or AuthorReply
-	 * @throws IOException
+	 * @throws IOException if the packet is bad, or larger than the TacacsReader's maximum size.
 	 */
 	public static Packet readNext(TacacsReader tacacs, byte[] key, DebugLogger logger) throws IOException
 	{
-		byte[] headerBytes = new byte[12];
-//		System.out.println("Waiting to read a header...");
-		tacacs.readFully(headerBytes);
-		Header header = new Header(headerBytes);
-//		System.out.println("Got header="+header);
-		byte[] body = new byte[header.bodyLength];
-		tacacs.readFully(body); // read the body before potentially throwing any exceptions below, so that the input stream is left clean
-		if (header.version==null) { throw new IOException("Received unknown packet header version code: "+((headerBytes[0]&0xf0)>>>4)+"."+(headerBytes[0]&0x0f)); }
-		if (header.type==null) { throw new IOException("Received unknown packet header type code: "+headerBytes[1]); }
+		// The whole packet is read before potentially throwing any exceptions in decode(), so that the input stream is left clean
+		return decode(tacacs, tacacs.readFrame(), key, logger);
+	}
+
+
+	/**
+	 * Decodes the packet at the buffer's position, if the buffer holds the
+	 * whole of it, advancing the position past it; for transports that read
+	 * into ByteBuffers.  The buffer's contents are left unchanged; the body is
+	 * deciphered in the copy its fields are decoded from.
+	 * @param tacacs The connection providing session management
+	 * @param buf The ByteBuffer, heap or direct, with the default (big-endian) byte order
+	 * @param key The secret key byte[] shared with the server
+	 * @return A Packet subclass instance, as from readNext(); or null, leaving
+	 *   the position unchanged, if the buffer doesn't hold the whole packet yet.
+	 * @throws IOException if the packet is bad, or larger than the connection's maximum size.
+	 */
+	static Packet decode(Connection tacacs, ByteBuffer buf, byte[] key, DebugLogger logger) throws IOException
+	{
+		if (buf.remaining() < 12) { return null; }
+		int length = Connection.checkBodyLength(buf.getInt(buf.position()+8), tacacs.getMaxPacketBytes());
+		if (buf.remaining()-12 < length) { return null; }
+		return decode(tacacs, tacacs instanceof TacacsServer, buf, length, key, logger, tacacs.decoder.pad);
+	}
+
+
+	/**
+	 * Decodes the packet at the buffer's position, advancing the position past
+	 * it; for FrameDecoder, which has already found the buffer holds the whole
+	 * of it, and checked its length.
+	 * @param tacacs The connection providing session management; or null, to
+	 *   decode without sessions, as readNextRequest() does.
+	 * @param requests True if the packet is a request, from a client; false if a reply.
+	 * @param length The body length, from the packet's header.
+	 * @param pad The working space for the cipher; the FrameDecoder's.
+	 */
+	static Packet decode(Connection tacacs, boolean requests, ByteBuffer buf, int length, byte[] key, DebugLogger logger, Header.Pad pad) throws IOException
+	{
+		int start = buf.position();
+		Header header = new Header(buf);
+		byte[] body = new byte[length];
+		buf.get(body);
+		return decode(tacacs, requests, buf.get(start), buf.get(start+1), header, body, key, logger, pad);
+	}
+
+
+	/**
+	 * Decodes a packet whose header and (still ciphered) body have already been
+	 * read from the connection; see decode(ByteBuffer).
+	 * @param tacacs The connection providing session management, or null
+	 * @param requests True if the packet is a request, from a client; false if a reply
+	 * @param versionCode The raw version byte of the header, for error messages
+	 * @param typeCode The raw type byte of the header, for error messages
+	 * @param header The decoded Header
+	 * @param body The ciphered body byte[]
+	 * @param key The secret key byte[] shared with the server
+	 * @param pad The working space for the cipher
+	 * @return A Packet subclass instance: AuthenReply, AcctReply, or AuthorReply
+	 *   (or the request types, if decoding requests)
+	 * @throws IOException
+	 */
+	private static Packet decode(Connection tacacs, boolean requests, byte versionCode, byte typeCode, Header header, byte[] body, byte[] key, DebugLogger logger, Header.Pad pad) throws IOException
+	{
+		if (header.version==null) { throw new IOException("Received unknown packet header version code: "+((versionCode&0xf0)>>>4)+"."+(versionCode&0x0f)); }
+		if (header.type==null) { throw new IOException("Received unknown packet header type code: "+typeCode); }
 		byte[] bodyClear;
-		try { bodyClear = header.toggleCipher(body, key); } catch (NoSuchAlgorithmException e) { throw new IOException(e.getMessage()); }
-		if (tacacs instanceof TacacsServer)
+		try { bodyClear = header.toggleCipher(body, key, pad); } catch (NoSuchAlgorithmException e) { throw new IOException(e.getMessage()); }
+		if (requests)
 		{
 			//System.out.println("Reading as a TacacsServer");
 			switch (header.type)
 			{
 				case AUTHEN:
-					Session s = tacacs.findSession(header.sessionID);
+					if (tacacs==null) // no sessions to consult, so go by the sequence number, as readNextRequest() does
+					{
+						if (header.seqNum==1) { return new AuthenStart(header, bodyClear); }
+						else { return new AuthenContinue(header, bodyClear); }
+					}
+					Session s = tacacs.findSession(header.intSessionID());
 					if (s==null) // This is the only way to know the packet is AuthenStart and not AuthenContinue!
 					{
 						AuthenStart p = new AuthenStart(header, bodyClear);
@@ -79,13 +232,11 @@ public abstract class Packet
 					else { return new AuthenContinue(header, bodyClear); }
 				case ACCT:
 						AcctRequest acp = new AcctRequest(header, bodyClear);
-						s = new SessionServer(acp.authen_service, acp.port, acp.rem_addr, acp.priv_lvl, tacacs, header.sessionID, logger);
-						tacacs.addSession(s);
+						if (tacacs != null) { tacacs.addSession(new SessionServer(acp.authen_service, acp.port, acp.rem_addr, acp.priv_lvl, tacacs, header.sessionID, logger)); }
 						return acp;
 				case AUTHOR:
 						AuthorRequest aup = new AuthorRequest(header, bodyClear);
-						s = new SessionServer(aup.authen_service, aup.port, aup.rem_addr, aup.priv_lvl, tacacs, header.sessionID, logger);
-						tacacs.addSession(s);
+						if (tacacs != null) { tacacs.addSession(new SessionServer(aup.authen_service, aup.port, aup.rem_addr, aup.priv_lvl, tacacs, header.sessionID, logger)); }
 						return aup;
 				default: throw new IOException("Server-side packet header type not supported: " + header.type); // shouldn't happen
 			}
@@ -106,6 +257,7 @@ public abstract class Packet
 
 	/**
 	 * Reads the next request packet from the client; THIS IS FOR USE ON A SERVER ONLY.
+	 * Packets larger than TacacsReader.DEFAULT_MAX_PACKET_BYTES are rejected.
 	 * @param din The DataInputStream
 	 * @param key The secret key byte[] shared with the server
 	 * @return A Packet subclass instance: AuthenReply, AcctReply, or AuthorReply
@@ -116,7 +268,7 @@ public abstract class Packet
 		byte[] headerBytes = new byte[12];
 		din.readFully(headerBytes);
 		Header header = new Header(headerBytes);
-		byte[] body = new byte[header.bodyLength];
+		byte[] body = new byte[Connection.checkBodyLength(header.bodyLength, TacacsReader.DEFAULT_MAX_PACKET_BYTES)];
 		din.readFully(body); // read the body before potentially throwing any exceptions below, so that the input stream is left clean
 		if (header.version==null) { throw new IOException("Received unknown packet header version code: "+((headerBytes[0]&0xf0)>>>4)+"."+(headerBytes[0]&0x0f)); }
 		if (header.type==null) { throw new IOException("Received unknown packet header type code: "+headerBytes[1]); }
@@ -144,7 +296,7 @@ public abstract class Packet
 
 	static int toInt(byte a, byte b, byte c, byte d)
 	{
-		return ((a&FF)<<24) | (b&FF<<16) | ((c&FF)<<8) | (d&FF);
+		return ((a&FF)<<24) | ((b&FF)<<16) | ((c&FF)<<8) | (d&FF);
 	}
 
 	static String toHex(byte[] bytes)
@@ -0,0 +1,122 @@
+package com.augur.tacacs;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The parts of an AuthorRequest or AcctRequest body that a client sends the
+ * same in every request: the port, the rem_addr, and any arguments common to
+ * all (e.g. service=shell), sent before each request's own.  These are encoded
+ * once, here; so encoding a request made from the template just copies them,
+ * patching in the fields of the request itself (the user, its arguments, and
+ * the few single-byte fields).
+ * <p>
+ * Immutable, so shared by any number of sessions; see TacacsClient.setCommonArguments().
+ * </p>
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+final class RequestTemplate
+{
+	final String port;
+	final String rem_addr;
+	/** The arguments sent first in every request. */
+	final Argument[] arguments;
+	/** The port's bytes, then the rem_addr's; each truncated to fit. */
+	private final byte[] portRema;
+	private final int portLen;
+	private final int remaLen;
+	/** The common arguments' length bytes. */
+	private final byte[] argLengths;
+	/** The common arguments' bytes, one after another. */
+	private final byte[] argBytes;
+
+
+	RequestTemplate(String port, String rem_addr, Argument[] arguments)
+	{
+		this.port = port;
+		this.rem_addr = rem_addr;
+		this.arguments = (arguments==null) ? new Argument[0] : arguments;
+		byte[] portBytes = port.getBytes(StandardCharsets.UTF_8);
+		byte[] remaBytes = rem_addr.getBytes(StandardCharsets.UTF_8);
+		// Truncating to fit packet...  lengths are limited to a byte
+		portLen = Math.min(Packet.FF, portBytes.length);
+		remaLen = Math.min(Packet.FF, remaBytes.length);
+		portRema = new byte[portLen+remaLen];
+		System.arraycopy(portBytes, 0, portRema, 0, portLen);
+		System.arraycopy(remaBytes, 0, portRema, portLen, remaLen);
+		argLengths = new byte[Math.min(Packet.FF, this.arguments.length)];
+		int size = 0;
+		for (int i=0; i<argLengths.length; i++) { size += Math.min(Packet.FF, this.arguments[i].bytes().length); }
+		argBytes = new byte[size];
+		for (int i=0, at=0; i<argLengths.length; i++)
+		{
+			byte[] aBytes = this.arguments[i].bytes();
+			int aLen = Math.min(Packet.FF, aBytes.length);
+			argLengths[i] = (byte)aLen;
+			System.arraycopy(aBytes, 0, argBytes, at, aLen);
+			at += aLen;
+		}
+	}
+
+
+	/** @return Whether requests with this port and rem_addr can be made from this template. */
+	boolean fits(String port, String rem_addr)
+	{
+		return this.port.equals(port) && this.rem_addr.equals(rem_addr);
+	}
+
+
+	/** @return A template for the port and rem_addr, with the same common arguments; this, if it fits. */
+	RequestTemplate forSession(String port, String rem_addr)
+	{
+		return fits(port, rem_addr) ? this : new RequestTemplate(port, rem_addr, arguments);
+	}
+
+
+	/** @return The arguments sent by a request made from this template: the common ones, then its own. */
+	Argument[] arguments(Argument[] own)
+	{
+		if (own==null || own.length==0) { return arguments; }
+		if (arguments.length==0) { return own; }
+		Argument[] all = new Argument[arguments.length+own.length];
+		System.arraycopy(arguments, 0, all, 0, arguments.length);
+		System.arraycopy(own, 0, all, arguments.length, own.length);
+		return all;
+	}
+
+
+	/**
+	 * Puts the body of a request made from this template, unciphered, at the
+	 * buffer's position; from authen_method on (i.e. after an AcctRequest's flags).
+	 * @param all The request's arguments, from arguments(): starting with the common ones.
+	 * @throws java.nio.BufferOverflowException if the buffer hasn't room.
+	 */
+	void encode(ByteBuffer body, TAC_PLUS.AUTHEN.METH authen_method, byte priv_lvl, TAC_PLUS.AUTHEN.TYPE authen_type, TAC_PLUS.AUTHEN.SVC authen_service, String user, Argument[] all)
+	{
+		byte[] userBytes = user.getBytes(StandardCharsets.UTF_8);
+		int userLen = Math.min(Packet.FF, userBytes.length);
+		// Truncating the number of arguments, and the length of the byte[] representations... limited to a byte
+		int count = Math.min(Packet.FF, all.length);
+		body.put(authen_method.code());
+		body.put(priv_lvl);
+		body.put(authen_type.code());
+		body.put(authen_service.code());
+		body.put((byte)userLen);
+		body.put((byte)portLen);
+		body.put((byte)remaLen);
+		body.put((byte)count);
+		body.put(argLengths);
+		for (int i=argLengths.length; i<count; i++) { body.put((byte)Math.min(Packet.FF, all[i].bytes().length)); }
+		body.put(userBytes, 0, userLen);
+		body.put(portRema);
+		body.put(argBytes);
+		for (int i=argLengths.length; i<count; i++)
+		{
+			byte[] aBytes = all[i].bytes();
+			body.put(aBytes, 0, Math.min(Packet.FF, aBytes.length));
+		}
+	}
+
+}
@@ -0,0 +1,169 @@
+package com.augur.tacacs;
+
+import java.security.GeneralSecurityException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The scrypt password-based key derivation function, as defined by RFC 7914;
+ * a salted hash that is expensive in memory as well as time, so that a stolen
+ * hash is slow to brute-force, even with custom hardware.  Used by
+ * AuthenticationCache, so that it never holds passwords.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+final class Scrypt
+{
+
+	private Scrypt() {}
+
+
+	/**
+	 * @param passwd The password; must not be empty.
+	 * @param salt The salt.
+	 * @param n The CPU/memory cost; a power of two greater than one.  Uses 128*r*n bytes.
+	 * @param r The block size.
+	 * @param p The parallelization; the number of times the costly mixing is done, here serially.
+	 * @param dkLen The length of the hash, in bytes.
+	 * @return The derived hash.
+	 */
+	static byte[] hash(byte[] passwd, byte[] salt, int n, int r, int p, int dkLen)
+	{
+		if (n<2 || (n & (n-1))!=0) { throw new IllegalArgumentException("scrypt N must be a power of two greater than one: "+n); }
+		Mac mac;
+		try
+		{
+			mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(passwd, "HmacSHA256"));
+		}
+		catch (GeneralSecurityException e) { throw new IllegalStateException("HmacSHA256 is required of every JRE", e); }
+		byte[] b = pbkdf2(mac, salt, p*128*r);
+		byte[] xy = new byte[256*r];
+		byte[] v = new byte[128*r*n];
+		Scratch scratch = new Scratch();
+		for (int i=0; i<p; i++) { smix(b, i*128*r, r, n, v, xy, scratch); }
+		return pbkdf2(mac, b, dkLen);
+	}
+
+
+	/** PBKDF2-HMAC-SHA256 with one iteration, as scrypt uses it. */
+	private static byte[] pbkdf2(Mac mac, byte[] salt, int dkLen)
+	{
+		byte[] dk = new byte[dkLen];
+		byte[] block = new byte[4];
+		for (int i=1, off=0; off<dkLen; i++, off+=32)
+		{
+			block[0] = (byte)(i>>>24); block[1] = (byte)(i>>>16); block[2] = (byte)(i>>>8); block[3] = (byte)i;
+			mac.update(salt);
+			byte[] t = mac.doFinal(block);
+			System.arraycopy(t, 0, dk, off, Math.min(32, dkLen-off));
+		}
+		return dk;
+	}
+
+
+	private static void smix(byte[] b, int bi, int r, int n, byte[] v, byte[] xy, Scratch scratch)
+	{
+		int len = 128*r;
+		int xi = 0;
+		int yi = len;
+		System.arraycopy(b, bi, xy, xi, len);
+		for (int i=0; i<n; i++)
+		{
+			System.arraycopy(xy, xi, v, i*len, len);
+			blockMixSalsa8(xy, xi, yi, r, scratch);
+		}
+		for (int i=0; i<n; i++)
+		{
+			int j = integerify(xy, xi, r) & (n-1);
+			xor(v, j*len, xy, xi, len);
+			blockMixSalsa8(xy, xi, yi, r, scratch);
+		}
+		System.arraycopy(xy, xi, b, bi, len);
+	}
+
+
+	/** Mixes the 2*r 64-byte blocks at bi, using the same space at yi for scratch. */
+	private static void blockMixSalsa8(byte[] by, int bi, int yi, int r, Scratch scratch)
+	{
+		byte[] x = scratch.block;
+		System.arraycopy(by, bi+(2*r-1)*64, x, 0, 64);
+		for (int i=0; i<2*r; i++)
+		{
+			xor(by, bi+i*64, x, 0, 64);
+			salsa20_8(x, scratch);
+			System.arraycopy(x, 0, by, yi+i*64, 64);
+		}
+		// The even blocks, then the odd ones
+		for (int i=0; i<r; i++) { System.arraycopy(by, yi+(2*i)*64, by, bi+i*64, 64); }
+		for (int i=0; i<r; i++) { System.arraycopy(by, yi+(2*i+1)*64, by, bi+(i+r)*64, 64); }
+	}
+
+
+	private static int integerify(byte[] b, int bi, int r)
+	{
+		return int32(b, bi+(2*r-1)*64);
+	}
+
+
+	private static void xor(byte[] src, int si, byte[] dst, int di, int len)
+	{
+		for (int i=0; i<len; i++) { dst[di+i] ^= src[si+i]; }
+	}
+
+
+	private static void salsa20_8(byte[] b, Scratch scratch)
+	{
+		int[] b32 = scratch.b32;
+		int[] x = scratch.x;
+		for (int i=0; i<16; i++) { b32[i] = x[i] = int32(b, i*4); }
+		for (int i=8; i>0; i-=2)
+		{
+			x[ 4] ^= rotl(x[ 0]+x[12], 7);  x[ 8] ^= rotl(x[ 4]+x[ 0], 9);
+			x[12] ^= rotl(x[ 8]+x[ 4],13);  x[ 0] ^= rotl(x[12]+x[ 8],18);
+			x[ 9] ^= rotl(x[ 5]+x[ 1], 7);  x[13] ^= rotl(x[ 9]+x[ 5], 9);
+			x[ 1] ^= rotl(x[13]+x[ 9],13);  x[ 5] ^= rotl(x[ 1]+x[13],18);
+			x[14] ^= rotl(x[10]+x[ 6], 7);  x[ 2] ^= rotl(x[14]+x[10], 9);
+			x[ 6] ^= rotl(x[ 2]+x[14],13);  x[10] ^= rotl(x[ 6]+x[ 2],18);
+			x[ 3] ^= rotl(x[15]+x[11], 7);  x[ 7] ^= rotl(x[ 3]+x[15], 9);
+			x[11] ^= rotl(x[ 7]+x[ 3],13);  x[15] ^= rotl(x[11]+x[ 7],18);
+			x[ 1] ^= rotl(x[ 0]+x[ 3], 7);  x[ 2] ^= rotl(x[ 1]+x[ 0], 9);
+			x[ 3] ^= rotl(x[ 2]+x[ 1],13);  x[ 0] ^= rotl(x[ 3]+x[ 2],18);
+			x[ 6] ^= rotl(x[ 5]+x[ 4], 7);  x[ 7] ^= rotl(x[ 6]+x[ 5], 9);
+			x[ 4] ^= rotl(x[ 7]+x[ 6],13);  x[ 5] ^= rotl(x[ 4]+x[ 7],18);
+			x[11] ^= rotl(x[10]+x[ 9], 7);  x[ 8] ^= rotl(x[11]+x[10], 9);
+			x[ 9] ^= rotl(x[ 8]+x[11],13);  x[10] ^= rotl(x[ 9]+x[ 8],18);
+			x[12] ^= rotl(x[15]+x[14], 7);  x[13] ^= rotl(x[12]+x[15], 9);
+			x[14] ^= rotl(x[13]+x[12],13);  x[15] ^= rotl(x[14]+x[13],18);
+		}
+		for (int i=0; i<16; i++)
+		{
+			int s = b32[i] + x[i];
+			b[i*4] = (byte)s; b[i*4+1] = (byte)(s>>>8); b[i*4+2] = (byte)(s>>>16); b[i*4+3] = (byte)(s>>>24);
+		}
+	}
+
+
+	private static int rotl(int a, int bits)
+	{
+		return (a << bits) | (a >>> (32-bits));
+	}
+
+
+	/** @return The little-endian int at the offset. */
+	private static int int32(byte[] b, int off)
+	{
+		return (b[off] & 0xFF) | (b[off+1] & 0xFF)<<8 | (b[off+2] & 0xFF)<<16 | (b[off+3] & 0xFF)<<24;
+	}
+
+
+	/** Working space for one hash, reused by every block. */
+	private static final class Scratch
+	{
+		final byte[] block = new byte[64];
+		final int[] b32 = new int[16];
+		final int[] x = new int[16];
+	}
+
+}
@@ -1,9 +1,16 @@
 package com.augur.tacacs;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * In TACACS+ parlance, a "session" is the client/server exchange of packets for
@@ -20,7 +27,7 @@ import java.util.concurrent.TimeoutException;
 public abstract class Session
 {
 	static final byte FLAG_ZERO = (byte)0x0;
-	final TacacsReader tacacs;
+	final Connection tacacs;
 
 	/* Common fields for all actions; provided in client's first packet */
 	protected String rem_addr;
@@ -28,10 +35,19 @@ public abstract class Session
 	protected byte priv_lvl;
 	protected TAC_PLUS.AUTHEN.SVC authen_svc;
 	protected byte[] id;
-	protected Packet result = null;
+	/** The same session ID as an int; the key in its connection's session table. */
+	int intID;
+	protected volatile Packet result = null;
 
-	private Thread waitingThread = null;
-	private IOException ioe = null;
+	/**
+	 * Serializes a session's requests.  A ReentrantLock rather than synchronized,
+	 * because a virtual thread blocked while holding a monitor (e.g. waiting for
+	 * the reply) would pin its carrier thread.
+	 */
+	final ReentrantLock lock = new ReentrantLock();
+	/** Completed by the reader thread when the session ends, with the final Packet or an IOException. */
+	final CompletableFuture<Packet> reply = new CompletableFuture<>();
+	private volatile IOException ioe = null;
 	private Packet firstPacket = null;
 
 
@@ -45,7 +61,7 @@ public abstract class Session
 	 * @param tacacs
 	 * @param id A four-byte session ID byte[]; if null, a new ID will be generated (needed for a new client session).
 	 */
-	Session(TAC_PLUS.AUTHEN.SVC authen_svc, String port, String rem_addr, byte priv_lvl, TacacsReader tacacs, byte[] id)
+	Session(TAC_PLUS.AUTHEN.SVC authen_svc, String port, String rem_addr, byte priv_lvl, Connection tacacs, byte[] id)
 	{
 		this.tacacs = tacacs;
 		this.rem_addr = rem_addr;
@@ -53,6 +69,15 @@ public abstract class Session
 		this.priv_lvl = priv_lvl;
 		this.authen_svc = authen_svc;
 		this.id = id==null? generateRandomBytes(4): id;
+		this.intID = Packet.toInt(this.id[0], this.id[1], this.id[2], this.id[3]);
+	}
+
+
+	/** Replaces a generated session ID that collides with another session on the same connection. */
+	final void newID()
+	{
+		this.id = generateRandomBytes(4);
+		this.intID = Packet.toInt(id[0], id[1], id[2], id[3]);
 	}
 
 
@@ -74,64 +99,110 @@ public abstract class Session
 	}
 
 
+	/**
+	 * Ends the session with its final reply.  The reply future is completed
+	 * outside any lock, so its dependent stages may safely run here on the reader thread.
+	 */
 	@SuppressWarnings("hiding")
-    protected synchronized void end(Packet result)
+    protected void end(Packet result)
 	{
 		this.result = result;
 		if (!isSingleConnectMode()) { tacacs.shutdown(); } // isSingleConnectMode() is overriden by SessionClient
-		notifyAll();
+		reply.complete(result);
 	}
 
-	synchronized void end(IOException endReason)
+	void end(IOException endReason)
 	{
 		result = null;
 		this.ioe = endReason;
 		tacacs.shutdown();
-		if (waitingThread!=null) waitingThread.interrupt();
+		reply.completeExceptionally(endReason);
+	}
+
+	/**
+	 * Ends the session without a reply, e.g. after the client aborted it, but
+	 * leaves open a single-connect connection that other sessions may be using.
+	 */
+	final void abandon(IOException endReason)
+	{
+		tacacs.removeSession(this);
+		if (!isSingleConnectMode()) { end(endReason); return; }
+		this.ioe = endReason;
+		reply.completeExceptionally(endReason);
 	}
 
 	boolean isEnd() { return ioe!=null || result!=null; }
 
 
-	@SuppressWarnings("hiding")
-    final boolean isID(byte[] id)
+	/**
+	 * Waits for the final reply; on time-out, the session is failed and dropped
+	 * from the connection's session table at once, so a late reply is ignored.
+	 */
+	protected final void waitForReply(long timeoutMillis) throws TimeoutException, IOException
 	{
-		if (id.length != this.id.length) return false;
-		for (int i=0; i<id.length; i++) { if (id[i] != this.id[i]) { return false; } }
-		return true;
+		try { reply.get(timeoutMillis, TimeUnit.MILLISECONDS); }
+		catch (TimeoutException te)
+		{
+			if (reply.completeExceptionally(te))
+			{
+				tacacs.removeSession(this);
+				throw te;
+			}
+			waitForeverForReply(); // the reply arrived just now; returns at once
+		}
+		catch (ExecutionException ee) { throw failure(ee); }
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for TACACS+ reply.");
+		}
 	}
 
 
-	protected final synchronized void waitForReply(int timeoutMillis) throws TimeoutException, IOException
+	protected final void waitForeverForReply() throws IOException
 	{
-		waitingThread = Thread.currentThread();
-		long now = System.currentTimeMillis();
-		final long timeoutTime = now + timeoutMillis;
-		while ((timeoutTime > now) && !isEnd())
+		try { reply.get(); }
+		catch (ExecutionException ee) { throw failure(ee); }
+		catch (InterruptedException ie)
 		{
-			try { wait(timeoutTime-now); }
-			catch (InterruptedException ie) {
-			 // will be interrupted by end()
-			}
-			now = System.currentTimeMillis();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for TACACS+ reply.");
 		}
-		if (!isEnd()) throw new TimeoutException();
-		else if (ioe != null) throw ioe;
 	}
 
 
-	protected final synchronized void waitForeverForReply() throws TimeoutException, IOException
+	private static IOException failure(ExecutionException ee)
+	{
+		return (ee.getCause() instanceof IOException) ? (IOException)ee.getCause() : new IOException(ee.getCause());
+	}
+
+
+	/**
+	 * @param timeoutMillis The time to wait for the final reply, after which the
+	 *   returned future fails with a TimeoutException and the session is dropped.
+	 * @return A future completed by the reader thread with the session's final reply.
+	 */
+	final CompletableFuture<Packet> replyAsync(long timeoutMillis)
 	{
-		waitingThread = Thread.currentThread();
-		while (!isEnd())
+		ScheduledFuture<?> timer = Timeouts.EXECUTOR.schedule(() ->
 		{
-			try { wait(); }
-			catch (InterruptedException ie) {
-			 // will be interrupted by end()
-			}
-		}
-		if (!isEnd()) throw new TimeoutException();
-		else if (ioe != null) throw ioe;
+			if (reply.completeExceptionally(new TimeoutException())) { tacacs.removeSession(this); }
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+		reply.whenComplete((p, e) -> timer.cancel(false));
+		return reply;
+	}
+
+
+	/** The shared, lazily started, daemon thread for asynchronous reply time-outs, and other timers. */
+	static final class Timeouts
+	{
+		static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, r ->
+		{
+			Thread t = new Thread(r, "TACACS+ timeouts");
+			t.setDaemon(true);
+			return t;
+		});
+		static { EXECUTOR.setRemoveOnCancelPolicy(true); }
 	}
 
 
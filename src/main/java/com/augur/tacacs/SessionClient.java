@@ -5,6 +5,9 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -14,9 +17,21 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class SessionClient extends Session
 {
-    private static final int TIMEOUT_MILLIS = 5000; // TODO: don't hard-code
+	/** The time to wait for each reply, when the session has no deadline. */
+	static final int DEFAULT_REPLY_TIMEOUT_MILLIS = 5000;
 	private final DebugLogger logger;
-	private UserInterface ui;
+	private volatile UserInterface ui;
+	/** Runs the UserInterface prompts of interactive logins, so they never block the connection's reader. */
+	private final Executor executor;
+	/** Bounds the whole session, from when it was created; null to use replyTimeoutMillis instead. */
+	private final Deadline deadline;
+	private final int replyTimeoutMillis;
+	/** Encodes the common parts of authorization and accounting requests; null if none. */
+	private final RequestTemplate template;
+	/** When the latest request was sent, for measuring the host's reply latency; zero if none sent. */
+	private volatile long sentNanos;
+	/** A boolean indicating if a human was prompted, whose time shouldn't count as reply latency. */
+	private volatile boolean prompted;
 	private final boolean singleConnect;
 	private byte headerFlags;
 	private static final AtomicInteger PPP_ID = new AtomicInteger(); // for CHAP
@@ -26,20 +41,28 @@ public class SessionClient extends Session
 	//private String password;
 
 	/** Client-side constructor; end-user should use newSession() in TacacsReader. */
-	SessionClient(TAC_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl, TacacsReader tacacs, boolean singleConnect, boolean unencrypted, DebugLogger debugLogger)
+	SessionClient(TAC_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl, Connection tacacs, boolean singleConnect, boolean unencrypted, DebugLogger debugLogger)
 	{
-		this(svc, port, rem_addr, priv_lvl, tacacs, null, singleConnect, unencrypted, debugLogger);
+		this(svc, port, rem_addr, priv_lvl, tacacs, null, null, null, null, DEFAULT_REPLY_TIMEOUT_MILLIS, singleConnect, unencrypted, debugLogger);
 	}
 
 	/**
 	 * Client-side constructor; end-user should use newSession() in TacacsReader.
 	 * Only needed for interactive (ASCII) login,
 	 * which needs to prompt user for info via a UserInterface.
+	 * @param executor Runs the UserInterface prompts; if null, a shared pool of daemon threads is used.
+	 * @param deadline Bounds the sending of each request and the wait for its reply; if null, the reply time-out is used instead.
+	 * @param replyTimeoutMillis The time to wait for each reply, when there is no deadline; interactive logins wait forever.
+	 * @param template Encodes the port, rem_addr, and any common arguments of authorization and accounting requests; null to encode them each time.
 	 */
-	SessionClient(TAC_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl, TacacsReader tacacs, UserInterface ui, boolean singleConnect, boolean unencrypted, DebugLogger debugLogger)
+	SessionClient(TAC_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl, Connection tacacs, RequestTemplate template, UserInterface ui, Executor executor, Deadline deadline, int replyTimeoutMillis, boolean singleConnect, boolean unencrypted, DebugLogger debugLogger)
 	{
 		super(svc, port, rem_addr, priv_lvl, tacacs, null);
 		this.ui = ui;
+		this.executor = (executor==null) ? Prompts.EXECUTOR : executor;
+		this.deadline = deadline;
+		this.replyTimeoutMillis = replyTimeoutMillis;
+		this.template = template;
 		this.singleConnect = singleConnect;
 		this.headerFlags = FLAG_ZERO;
 		this.logger = debugLogger;
@@ -61,11 +84,22 @@ public class SessionClient extends Session
 	}
 
 	/**
-	 * Calls notify() to inform public methods when the final reply packet has been received.
+	 * @return The time to wait for a reply: the time left before the session's
+	 *   deadline, if it has one; otherwise the client's reply time-out.
+	 */
+	int getReplyTimeoutMillis()
+	{
+		return (deadline==null) ? replyTimeoutMillis : (int)Math.min(Integer.MAX_VALUE, deadline.remainingMillis());
+	}
+
+	/**
+	 * Ends the session (completing its reply future) when the final reply packet has been received.
+	 * Not locked: it is only called by the connection's reader, and the
+	 * public methods hold this session's lock while they wait for the reply.
 	 * @param p
 	 * @throws IOException
 	 */
-	@Override synchronized void handlePacket(Packet p) throws IOException {
+	@Override void handlePacket(Packet p) throws IOException {
 		super.handlePacket(p); // stores firstPacket, for isSingleConnectMode()
 		if (logger != null) { logger.debug("RCV <-- "+p); }
 		switch(p.header.type)
@@ -78,37 +112,9 @@ public class SessionClient extends Session
 						end(p);
 						break;
 					case GETDATA: // generic authen questions, e.g. favorite teacher?  Only used during ASCII (interactive) AUTHEN LOGIN
-						if (ui==null) { throw new IOException("No interactive user interface available."); } // shouldn't happen
-						String data = ui.getUserInput(authenReply.server_msg, authenReply.hasFlag(TAC_PLUS.REPLY.FLAG.NOECHO), authenReply.status); // blocks for user input
-						tacacs.write(new AuthenContinue
-						(
-							p.getHeader().next(TAC_PLUS.PACKET.VERSION.v13_0),
-							data,
-							FLAG_ZERO,
-							false
-						));
-						break;
 					case GETUSER: // only used during ASCII (interactive) AUTHEN LOGIN
-						if (ui==null) { throw new IOException("No interactive user interface available."); }
-						String username = ui.getUserInput(authenReply.server_msg, authenReply.hasFlag(TAC_PLUS.REPLY.FLAG.NOECHO), authenReply.status); // blocks for user input
-						tacacs.write(new AuthenContinue
-						(
-							p.getHeader().next(TAC_PLUS.PACKET.VERSION.v13_0),
-							username,
-							FLAG_ZERO,
-							false
-						));
-						break;
 					case GETPASS:
-						if (ui==null) { throw new IOException("No interactive user interface available."); }
-						String password = ui.getUserInput(authenReply.server_msg, authenReply.hasFlag(TAC_PLUS.REPLY.FLAG.NOECHO), authenReply.status); // blocks for user input
-						tacacs.write(new AuthenContinue
-						(
-							p.getHeader().next(TAC_PLUS.PACKET.VERSION.v13_0),
-							password,
-							FLAG_ZERO,
-							true
-						));
+						prompt(authenReply);
 						break;
 					case RESTART: // per spec, server didn't like our authen_type; TODO: try types?
 					case ERROR: // per spec, "...should proceed as if that host could not be contacted..."
@@ -131,28 +137,116 @@ public class SessionClient extends Session
 	}
 
 
+	/** Records the reply's latency, then ends the session with the final reply. */
+	@Override protected void end(Packet result)
+	{
+		recordLatency();
+		super.end(result);
+	}
+
+
+	/** Adds the time since the request was sent to its host's statistics, for HostSelectionPolicy. */
+	private void recordLatency()
+	{
+		HostPool pool = tacacs.pool;
+		long sent = sentNanos;
+		if (pool!=null && sent!=0 && !prompted) { pool.recordLatency(System.nanoTime()-sent); }
+	}
+
+
+	/**
+	 * Asks the UserInterface to answer a GETUSER, GETPASS, or GETDATA reply, and
+	 * writes the AuthenContinue when the answer arrives.  The prompt runs on the
+	 * session's executor, so a slow human never blocks the reader thread, which
+	 * is shared by every session on the connection.
+	 */
+	private void prompt(AuthenReply authenReply) throws IOException
+	{
+		if (ui==null) { throw new IOException("No interactive user interface available."); } // shouldn't happen
+		prompted = true;
+		final Header next = authenReply.getHeader().next(TAC_PLUS.PACKET.VERSION.v13_0);
+		final boolean hide = authenReply.status==TAC_PLUS.AUTHEN.STATUS.GETPASS; // to hide password in possible logging
+		ui.getUserInputAsync(authenReply.server_msg, authenReply.hasFlag(TAC_PLUS.REPLY.FLAG.NOECHO), authenReply.status, executor)
+			.whenCompleteAsync((input, error) ->
+			{
+				if (reply.isDone()) { return; } // timed out, or the connection failed, while the user was typing
+				try
+				{
+					if (error==null) { tacacs.write(new AuthenContinue(next, input, FLAG_ZERO, hide)); }
+					else
+					{
+						// Abandon first, so the server's reply to the abort can't end the session as a plain FAIL
+						abandon(new IOException("Login aborted by the user interface.", error));
+						if (!tacacs.isShutdown()) { tacacs.write(new AuthenContinue(next, null, TAC_PLUS.CONTINUE.FLAG.ABORT.code(), false)); }
+					}
+				}
+				catch (IOException e) { end(e); }
+			}, executor);
+	}
+
+
+	/**
+	 * Cancels a session still waiting for its reply, e.g. the loser of a hedged
+	 * request: it's dropped from its connection, so a late reply is ignored, and
+	 * its future is cancelled.  The connection is closed too if it was the
+	 * session's alone: if single-connect mode wasn't requested, or the server
+	 * has declined it.  (A cancelled session usually has no reply of its own
+	 * yet, so the first reply on the connection is what tells.)
+	 */
+	void cancel()
+	{
+		if (reply.cancel(false))
+		{
+			recordLatency(); // at least this slow
+			tacacs.removeSession(this);
+			if (!singleConnect || tacacs.isSingleConnectDeclined()) { tacacs.shutdown(); }
+		}
+	}
+
+
+	/** Fails and drops a session whose deadline passed before its request could be sent. */
+	private TimeoutException expired()
+	{
+		TimeoutException te = new TimeoutException("TACACS+ deadline expired before the request was sent.");
+		reply.completeExceptionally(te);
+		tacacs.removeSession(this);
+		return te;
+	}
+
+
+	/** The shared, lazily started, daemon threads for UserInterface prompts; threads are created as users are prompted. */
+	private static final class Prompts
+	{
+		static final ExecutorService EXECUTOR = Threads.executor("TACACS+ prompt", Threads.VIRTUAL_BY_DEFAULT);
+	}
+
+
 	/**
 	 * @return An AuthenReply representing the result of the login attempt
 	 * possibly null if the connection was closed before a response was processed.
 	 * @throws java.util.concurrent.TimeoutException
 	 * @throws java.io.IOException
 	 */
-	public synchronized AuthenReply authenticate_ASCII() throws TimeoutException, IOException
+	public AuthenReply authenticate_ASCII() throws TimeoutException, IOException
 	{
-		tacacs.write(new AuthenStart
-		(
-			new Header(this.headerFlags, TAC_PLUS.PACKET.VERSION.v13_0, TAC_PLUS.PACKET.TYPE.AUTHEN,id),
-			TAC_PLUS.AUTHEN.ACTION.LOGIN,
-			priv_lvl,
-			TAC_PLUS.AUTHEN.TYPE.ASCII,
-			TAC_PLUS.AUTHEN.SVC.NONE,
-			null, // server will prompts for username
-			port,
-			rem_addr,
-			(String)null // server will prompt for password
-		));
-		waitForeverForReply();
-		return (AuthenReply)result;
+		lock.lock();
+		try
+		{
+			send(new AuthenStart
+			(
+				new Header(this.headerFlags, TAC_PLUS.PACKET.VERSION.v13_0, TAC_PLUS.PACKET.TYPE.AUTHEN,id),
+				TAC_PLUS.AUTHEN.ACTION.LOGIN,
+				priv_lvl,
+				TAC_PLUS.AUTHEN.TYPE.ASCII,
+				TAC_PLUS.AUTHEN.SVC.NONE,
+				null, // server will prompts for username
+				port,
+				rem_addr,
+				(String)null // server will prompt for password
+			), true);
+			return (AuthenReply)result;
+		}
+		finally { lock.unlock(); }
 	}
 
 
@@ -163,22 +257,26 @@ public class SessionClient extends Session
 	 * @throws java.util.concurrent.TimeoutException
 	 * @throws java.io.IOException
 	 */
-	public synchronized AuthenReply authenticate_ASCII(String username) throws TimeoutException, IOException
+	public AuthenReply authenticate_ASCII(String username) throws TimeoutException, IOException
 	{
-		tacacs.write(new AuthenStart
-				(
-						new Header(this.headerFlags, TAC_PLUS.PACKET.VERSION.v13_0, TAC_PLUS.PACKET.TYPE.AUTHEN,id),
-						TAC_PLUS.AUTHEN.ACTION.LOGIN,
-						priv_lvl,
-						TAC_PLUS.AUTHEN.TYPE.ASCII,
-						TAC_PLUS.AUTHEN.SVC.NONE,
-						username, // server will prompts for username
-						port,
-						rem_addr,
-						(String) null// server will prompt for password
-				));
-		waitForeverForReply();
-		return (AuthenReply)result;
+		lock.lock();
+		try
+		{
+			send(new AuthenStart
+					(
+							new Header(this.headerFlags, TAC_PLUS.PACKET.VERSION.v13_0, TAC_PLUS.PACKET.TYPE.AUTHEN,id),
+							TAC_PLUS.AUTHEN.ACTION.LOGIN,
+							priv_lvl,
+							TAC_PLUS.AUTHEN.TYPE.ASCII,
+							TAC_PLUS.AUTHEN.SVC.NONE,
+							username, // server will prompts for username
+							port,
+							rem_addr,
+							(String) null// server will prompt for password
+					), true);
+			return (AuthenReply)result;
+		}
+		finally { lock.unlock(); }
 	}
 
 	/**
@@ -188,32 +286,37 @@ public class SessionClient extends Session
 	 * @throws java.util.concurrent.TimeoutException
 	 * @throws java.io.IOException
 	 */
-	public synchronized AuthenReply authenticate_ASCII(String username, String password) throws TimeoutException, IOException
+	public AuthenReply authenticate_ASCII(String username, String password) throws TimeoutException, IOException
 	{
-		//Save current UI
-		UserInterface currentUi = ui;
+		lock.lock();
+		try
+		{
+			//Save current UI
+			UserInterface currentUi = ui;
 
-		ui = new UserInterface() {
-			@Override
-			public String getUserInput(String prompt, boolean noEcho, TAC_PLUS.AUTHEN.STATUS getWhat) {
-				switch (getWhat) {
-					case GETPASS:
-						return password;
-					case GETUSER:
-						//Not actually needed. But we make it available anyway-
-						return username;
-					default:
-							return "";
-				}
+			ui = new UserInterface() {
+				@Override
+				public String getUserInput(String prompt, boolean noEcho, TAC_PLUS.AUTHEN.STATUS getWhat) {
+					switch (getWhat) {
+						case GETPASS:
+							return password;
+						case GETUSER:
+							//Not actually needed. But we make it available anyway-
+							return username;
+						default:
+								return "";
+					}
 
-			}
-		};
-		AuthenReply authenReply = authenticate_ASCII(username);
-		//Reset existing UI
-		ui = currentUi;
+				}
+			};
+			AuthenReply authenReply = authenticate_ASCII(username);
+			//Reset existing UI
+			ui = currentUi;
 
-		return authenReply;
+			return authenReply;
 
+		}
+		finally { lock.unlock(); }
 	}
 
 
@@ -228,9 +331,39 @@ public class SessionClient extends Session
 	 * @throws java.util.concurrent.TimeoutException
 	 * @throws java.io.IOException
 	 */
-	public synchronized AuthenReply authenticate_PAP(String username, String password) throws TimeoutException, IOException
+	public AuthenReply authenticate_PAP(String username, String password) throws TimeoutException, IOException
+	{
+		lock.lock();
+		try
+		{
+			send(papStart(username, password), false);
+			return (AuthenReply)result;
+		}
+		finally { lock.unlock(); }
+	}
+
+
+	/**
+	 * Authenticates the client using PAP, without blocking the caller.
+	 * The returned future is completed directly by the connection's reader
+	 * thread when the reply arrives, so dependent stages doing real work should
+	 * use the *Async methods of CompletableFuture.
+	 *
+	 * @param username
+	 * @param password
+	 * @param timeoutMillis The time to wait for the server's reply.
+	 * @return A future AuthenReply; failed with an IOException if the connection
+	 *   fails, or a TimeoutException if the server doesn't reply in time.
+	 */
+	public CompletableFuture<AuthenReply> authenticatePapAsync(String username, String password, int timeoutMillis)
 	{
-		tacacs.write(new AuthenStart
+		return sendAsync(papStart(username, password), timeoutMillis).thenApply(p -> (AuthenReply)p);
+	}
+
+
+	private AuthenStart papStart(String username, String password)
+	{
+		return new AuthenStart
 		(
 			new Header(this.headerFlags, TAC_PLUS.PACKET.VERSION.v13_1, TAC_PLUS.PACKET.TYPE.AUTHEN,id),
 			TAC_PLUS.AUTHEN.ACTION.LOGIN,
@@ -241,9 +374,7 @@ public class SessionClient extends Session
 			port,
 			rem_addr,
 			password
-		));
-		waitForReply(TIMEOUT_MILLIS);
-		return (AuthenReply)result;
+		);
 	}
 
 
@@ -262,7 +393,42 @@ public class SessionClient extends Session
 	 * @throws java.util.concurrent.TimeoutException
 	 * @throws java.io.IOException
 	 */
-	public synchronized AuthenReply authenticate_CHAP(String username, String password) throws TimeoutException, IOException, NoSuchAlgorithmException
+	public AuthenReply authenticate_CHAP(String username, String password) throws TimeoutException, IOException, NoSuchAlgorithmException
+	{
+		lock.lock();
+		try
+		{
+			send(chapStart(username, password), false);
+			return (AuthenReply)result;
+		}
+		finally { lock.unlock(); }
+	}
+
+
+	/**
+	 * Authenticates the client using CHAP, without blocking the caller;
+	 * see authenticatePapAsync().
+	 *
+	 * @param username
+	 * @param password
+	 * @param timeoutMillis The time to wait for the server's reply.
+	 * @return A future AuthenReply.
+	 */
+	public CompletableFuture<AuthenReply> authenticateChapAsync(String username, String password, int timeoutMillis)
+	{
+		AuthenStart start;
+		try { start = chapStart(username, password); }
+		catch (NoSuchAlgorithmException e)
+		{
+			CompletableFuture<AuthenReply> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return sendAsync(start, timeoutMillis).thenApply(p -> (AuthenReply)p);
+	}
+
+
+	private AuthenStart chapStart(String username, String password) throws NoSuchAlgorithmException
 	{
 		byte[] data = new byte[1+CHAP_CHALLENGE_LENGTH+16]; // PPP ID byte + challenge + MD5 hash response
 		// The PPP ID needs to be relatively unique per login attempt
@@ -277,7 +443,7 @@ public class SessionClient extends Session
 		System.arraycopy(challenge, 0, data, 1, challenge.length);
 		System.arraycopy(response, 0, data, 1+challenge.length, response.length);
 
-		tacacs.write(new AuthenStart
+		return new AuthenStart
 		(
 			new Header(this.headerFlags, TAC_PLUS.PACKET.VERSION.v13_1, TAC_PLUS.PACKET.TYPE.AUTHEN,id),
 			TAC_PLUS.AUTHEN.ACTION.LOGIN,
@@ -288,9 +454,7 @@ public class SessionClient extends Session
 			port,
 			rem_addr,
 			data
-		));
-		waitForReply(TIMEOUT_MILLIS);
-		return (AuthenReply)result;
+		);
 	}
 
 	/**
@@ -305,11 +469,44 @@ public class SessionClient extends Session
 	 * @throws java.io.IOException
 	 */
 	@SuppressWarnings("hiding")
-    public synchronized AuthorReply authorize(String username, TAC_PLUS.AUTHEN.METH authen_meth, TAC_PLUS.AUTHEN.TYPE authen_type, TAC_PLUS.AUTHEN.SVC authen_svc, Argument[] args) throws TimeoutException, IOException
+    public AuthorReply authorize(String username, TAC_PLUS.AUTHEN.METH authen_meth, TAC_PLUS.AUTHEN.TYPE authen_type, TAC_PLUS.AUTHEN.SVC authen_svc, Argument[] args) throws TimeoutException, IOException
+	{
+		lock.lock();
+		try
+		{
+			send(authorRequest(username, authen_meth, authen_type, authen_svc, args), false);
+			return (AuthorReply)result;
+		}
+		finally { lock.unlock(); }
+	}
+
+
+	/**
+	 * Requests authorization without blocking the caller; see authenticatePapAsync().
+	 *
+	 * @param username
+	 * @param authen_meth
+	 * @param authen_type
+	 * @param authen_svc
+	 * @param args
+	 * @param timeoutMillis The time to wait for the server's reply.
+	 * @return A future AuthorReply.
+	 */
+	@SuppressWarnings("hiding")
+	public CompletableFuture<AuthorReply> authorizeAsync(String username, TAC_PLUS.AUTHEN.METH authen_meth, TAC_PLUS.AUTHEN.TYPE authen_type, TAC_PLUS.AUTHEN.SVC authen_svc, Argument[] args, int timeoutMillis)
 	{
-		tacacs.write(new AuthorRequest
+		return sendAsync(authorRequest(username, authen_meth, authen_type, authen_svc, args), timeoutMillis).thenApply(p -> (AuthorReply)p);
+	}
+
+
+	@SuppressWarnings("hiding")
+	private AuthorRequest authorRequest(String username, TAC_PLUS.AUTHEN.METH authen_meth, TAC_PLUS.AUTHEN.TYPE authen_type, TAC_PLUS.AUTHEN.SVC authen_svc, Argument[] args)
+	{
+		Header header = new Header(this.headerFlags, TAC_PLUS.PACKET.VERSION.v13_0, TAC_PLUS.PACKET.TYPE.AUTHOR,id);
+		if (template != null) { return new AuthorRequest(header, authen_meth, (byte)0, authen_type, authen_svc, username, template, args); }
+		return new AuthorRequest
 		(
-			new Header(this.headerFlags, TAC_PLUS.PACKET.VERSION.v13_0, TAC_PLUS.PACKET.TYPE.AUTHOR,id),
+			header,
 			authen_meth,
 			(byte)0,
 			authen_type,
@@ -318,9 +515,7 @@ public class SessionClient extends Session
 			port,
 			rem_addr,
 			args
-		));
-		waitForReply(TIMEOUT_MILLIS);
-		return (AuthorReply)result;
+		);
 	}
 
 	/**
@@ -336,7 +531,47 @@ public class SessionClient extends Session
 	 * @throws java.io.IOException
 	 */
 	@SuppressWarnings("hiding")
-    public synchronized AcctReply account(byte flags, String username, TAC_PLUS.AUTHEN.METH authen_meth, TAC_PLUS.AUTHEN.TYPE authen_type, TAC_PLUS.AUTHEN.SVC authen_svc, Argument[] args) throws TimeoutException, IOException
+    public AcctReply account(byte flags, String username, TAC_PLUS.AUTHEN.METH authen_meth, TAC_PLUS.AUTHEN.TYPE authen_type, TAC_PLUS.AUTHEN.SVC authen_svc, Argument[] args) throws TimeoutException, IOException
+	{
+		lock.lock();
+		try
+		{
+			send(acctRequest(flags, username, authen_meth, authen_type, authen_svc, args), false);
+			return (AcctReply)result;
+		}
+		finally { lock.unlock(); }
+	}
+
+
+	/**
+	 * Sends an accounting record without blocking the caller; see authenticatePapAsync().
+	 *
+	 * @param flags One of TAC_PLUS.ACCT.FLAG.START, STOP, WATCHDOG, or WATCHDOG+START; if not, the future fails with an IOException.
+	 * @param username
+	 * @param authen_meth
+	 * @param authen_type
+	 * @param authen_svc
+	 * @param args
+	 * @param timeoutMillis The time to wait for the server's reply.
+	 * @return A future AcctReply.
+	 */
+	@SuppressWarnings("hiding")
+	public CompletableFuture<AcctReply> accountAsync(byte flags, String username, TAC_PLUS.AUTHEN.METH authen_meth, TAC_PLUS.AUTHEN.TYPE authen_type, TAC_PLUS.AUTHEN.SVC authen_svc, Argument[] args, int timeoutMillis)
+	{
+		AcctRequest request;
+		try { request = acctRequest(flags, username, authen_meth, authen_type, authen_svc, args); }
+		catch (IOException e)
+		{
+			CompletableFuture<AcctReply> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return sendAsync(request, timeoutMillis).thenApply(p -> (AcctReply)p);
+	}
+
+
+	@SuppressWarnings("hiding")
+	private AcctRequest acctRequest(byte flags, String username, TAC_PLUS.AUTHEN.METH authen_meth, TAC_PLUS.AUTHEN.TYPE authen_type, TAC_PLUS.AUTHEN.SVC authen_svc, Argument[] args) throws IOException
 	{
 		if (
 			flags!=TAC_PLUS.ACCT.FLAG.START.code() &&
@@ -344,9 +579,11 @@ public class SessionClient extends Session
 			flags!=TAC_PLUS.ACCT.FLAG.WATCHDOG.code() &&
 			flags!=(TAC_PLUS.ACCT.FLAG.WATCHDOG.code()+TAC_PLUS.ACCT.FLAG.START.code())
 		) { throw new IOException("Invalid Accounting headerFlags"); }
-		tacacs.write(new AcctRequest
+		Header header = new Header(this.headerFlags, TAC_PLUS.PACKET.VERSION.v13_0, TAC_PLUS.PACKET.TYPE.ACCT,id);
+		if (template != null) { return new AcctRequest(header, flags, authen_meth, TAC_PLUS.PRIV_LVL.USER.code(), authen_type, authen_svc, username, template, args); }
+		return new AcctRequest
 		(
-			new Header(this.headerFlags, TAC_PLUS.PACKET.VERSION.v13_0, TAC_PLUS.PACKET.TYPE.ACCT,id),
+			header,
 			flags,
 			authen_meth,
 			TAC_PLUS.PRIV_LVL.USER.code(),
@@ -356,9 +593,7 @@ public class SessionClient extends Session
 			port,
 			rem_addr,
 			args
-		));
-		waitForReply(TIMEOUT_MILLIS);
-		return (AcctReply)result;
+		);
 	}
 
 	/**
@@ -369,9 +604,67 @@ public class SessionClient extends Session
 	 * @throws java.util.concurrent.TimeoutException
 	 * @throws java.io.IOException
 	 */
-	public synchronized AuthorReply authorize(String username, Argument[] args) throws TimeoutException, IOException
+	public AuthorReply authorize(String username, Argument[] args) throws TimeoutException, IOException
 	{
-		return authorize(username, TAC_PLUS.AUTHEN.METH.TACACSPLUS, TAC_PLUS.AUTHEN.TYPE.PAP, TAC_PLUS.AUTHEN.SVC.LOGIN, args);
+		lock.lock();
+		try
+		{
+			return authorize(username, TAC_PLUS.AUTHEN.METH.TACACSPLUS, TAC_PLUS.AUTHEN.TYPE.PAP, TAC_PLUS.AUTHEN.SVC.LOGIN, args);
+		}
+		finally { lock.unlock(); }
+	}
+
+
+	/**
+	 * Writes the request, and waits for the final reply: until the session's
+	 * deadline, if it has one; otherwise for the reply time-out, or forever for
+	 * an interactive login, whose prompts wait for a human.  A write still
+	 * blocked at the deadline closes the connection; see Connection.write(Packet,Deadline).
+	 */
+	private void send(Packet request, boolean interactive) throws TimeoutException, IOException
+	{
+		if (deadline!=null && deadline.isExpired()) { throw expired(); }
+		sentNanos = System.nanoTime();
+		try { tacacs.write(request, deadline); }
+		catch (IOException e)
+		{
+			if (deadline==null || !deadline.isExpired()) { throw e; }
+			TimeoutException te = new TimeoutException("TACACS+ deadline expired while sending the request.");
+			te.initCause(e);
+			throw te;
+		}
+		try
+		{
+			if (deadline!=null) { waitForReply(deadline.remainingMillis()); }
+			else if (interactive) { waitForeverForReply(); }
+			else { waitForReply(replyTimeoutMillis); }
+		}
+		catch (TimeoutException te)
+		{
+			recordLatency(); // a time-out counts as a slow reply
+			throw te;
+		}
+	}
+
+
+	/**
+	 * Writes the request, and returns the future final reply (with a time-out,
+	 * shortened to the session's deadline) without waiting; a write failure
+	 * fails the returned future.
+	 */
+	private CompletableFuture<Packet> sendAsync(Packet request, int timeoutMillis)
+	{
+		if (deadline!=null && deadline.isExpired())
+		{
+			expired();
+			return reply;
+		}
+		CompletableFuture<Packet> future = replyAsync(deadline==null ? timeoutMillis : Math.min(timeoutMillis, deadline.remainingMillis()));
+		future.whenComplete((p, e) -> { if (e instanceof TimeoutException) { recordLatency(); } }); // a time-out counts as a slow reply
+		sentNanos = System.nanoTime();
+		try { tacacs.write(request, deadline); }
+		catch (IOException e) { end(e); }
+		return future;
 	}
 
 
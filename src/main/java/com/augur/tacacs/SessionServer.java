@@ -8,9 +8,33 @@ import java.io.IOException;
 public class SessionServer extends Session
 {
 	private final DebugLogger logger;
+	/** The replies to every request, until responses are implemented; their bodies are encoded once, and copied for each. */
+	private static final AuthenReply AUTHEN_NOT_IMPLEMENTED = new AuthenReply
+	(
+		null,
+		TAC_PLUS.AUTHEN.STATUS.FAIL,
+		FLAG_ZERO,
+		"The AUTHENTICATION operation is not implemented.",
+		"The AUTHENTICATION operation is not implemented."
+	);
+	private static final AuthorReply AUTHOR_NOT_IMPLEMENTED = new AuthorReply
+	(
+		null,
+		TAC_PLUS.AUTHOR.STATUS.FAIL,
+		"The AUTHORIZATION operation is not implemented.",
+		"The AUTHORIZATION operation is not implemented.",
+		null
+	);
+	private static final AcctReply ACCT_NOT_IMPLEMENTED = new AcctReply
+	(
+		null,
+		TAC_PLUS.ACCT.STATUS.ERROR,
+		"The ACCOUNTING operation is not implemented.",
+		"The ACCOUNTING operation is not implemented."
+	);
 
 	/** Server-side constructor */
-	SessionServer(TAC_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl, TacacsReader tacacs, byte[] sessionID, DebugLogger debugLogger)
+	SessionServer(TAC_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl, Connection tacacs, byte[] sessionID, DebugLogger debugLogger)
 	{
 		super(svc, port, rem_addr, priv_lvl, tacacs, sessionID);
 		this.logger = debugLogger;
@@ -22,51 +46,36 @@ public class SessionServer extends Session
 	 * @param p
 	 * @throws IOException
 	 */
-	@Override synchronized void handlePacket(Packet p) throws IOException
+	@Override void handlePacket(Packet p) throws IOException
 	{
-		super.handlePacket(p);
-		Packet r;
-		if (logger != null) { logger.debug("TACACS rcv <-- "+p); }
-		switch(p.header.type)
+		lock.lock();
+		try
 		{
-			case AUTHEN:
-				r = new AuthenReply
-				(
-					p.getHeader().next(TAC_PLUS.PACKET.VERSION.v13_0),
-					TAC_PLUS.AUTHEN.STATUS.FAIL,
-					FLAG_ZERO,
-					"The AUTHENTICATION operation is not implemented.",
-					"The AUTHENTICATION operation is not implemented."
-				);
-				tacacs.write(r);
-				end(r);
-				break;
-			case AUTHOR:
-				r = new AuthorReply
-				(
-					p.getHeader().next(TAC_PLUS.PACKET.VERSION.v13_0),
-					TAC_PLUS.AUTHOR.STATUS.FAIL,
-					"The AUTHORIZATION operation is not implemented.",
-					"The AUTHORIZATION operation is not implemented.",
-					null
-				);
-				tacacs.write(r);
-				end(r);
-				break;
-			case ACCT:
-				r = new AcctReply
-				(
-					p.getHeader().next(TAC_PLUS.PACKET.VERSION.v13_0),
-					TAC_PLUS.ACCT.STATUS.ERROR,
-					"The ACCOUNTING operation is not implemented.",
-					"The ACCOUNTING operation is not implemented."
-				);
-				tacacs.write(r);
-				end(r);
-				break;
-			default:
-			    break;
+			super.handlePacket(p);
+			Packet r;
+			if (logger != null) { logger.debug("TACACS rcv <-- "+p); }
+			switch(p.header.type)
+			{
+				case AUTHEN:
+					r = new AuthenReply(p.getHeader().next(TAC_PLUS.PACKET.VERSION.v13_0), AUTHEN_NOT_IMPLEMENTED);
+					tacacs.write(r);
+					end(r);
+					break;
+				case AUTHOR:
+					r = new AuthorReply(p.getHeader().next(TAC_PLUS.PACKET.VERSION.v13_0), AUTHOR_NOT_IMPLEMENTED);
+					tacacs.write(r);
+					end(r);
+					break;
+				case ACCT:
+					r = new AcctReply(p.getHeader().next(TAC_PLUS.PACKET.VERSION.v13_0), ACCT_NOT_IMPLEMENTED);
+					tacacs.write(r);
+					end(r);
+					break;
+				default:
+				    break;
+			}
 		}
+		finally { lock.unlock(); }
 	}
 
 
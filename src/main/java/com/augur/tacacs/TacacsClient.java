@@ -1,12 +1,28 @@
 package com.augur.tacacs;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  * This is a TACACS+ client, implementing methods for authentication,
@@ -36,9 +52,44 @@ public class TacacsClient extends Object
 	private final int timeoutMillis;
 	final boolean singleConnect;
 	final boolean unencrypted;
-	/** Note: instance methods are synchronized to protect access to tacacs. */
-	private TacacsReader tacacs;
+	/** One pool of connections per configured host, in the configured order. */
+	final HostPool[] pools;
+	/** The servers, as "host:port" sorted and comma-separated; part of each AuthorizationCache.Key. */
+	private final String servers;
 	private DebugLogger logger;
+	/** Number of TacacsSelector event loops for non-blocking connections; zero for a blocking TacacsReader thread per connection. */
+	private volatile int selectorThreads;
+	/** Created lazily; guarded by 'this'. */
+	private TacacsSelector[] selectors;
+	private int nextSelector;
+	/** Runs UserInterface prompts for interactive sessions; null for SessionClient's shared daemon pool. */
+	private volatile Executor promptExecutor;
+	/** The time to wait for each reply, for sessions without a deadline. */
+	private volatile int replyTimeoutMillis;
+	/** The budget for each new session given no Deadline of its own; zero for none. */
+	private volatile long deadlineMillis;
+	/** A boolean indicating if blocking connections are read by virtual threads, where supported. */
+	private volatile boolean virtualThreads;
+	/** The delay before racing a connection to the next host; zero to try hosts one at a time. */
+	private volatile long connectStaggerMillis;
+	private volatile HostSelectionPolicy selectionPolicy;
+	/** Counts new sessions, for HostSelectionPolicy.ROUND_ROBIN. */
+	private final AtomicInteger turn;
+	/** The percentile of a host's recent reply latencies after which a request is hedged; zero to never hedge. */
+	private volatile double hedgePercentile;
+	private volatile long hedgeMinDelayMillis;
+	/** Answers repeated authorization requests; null for none. */
+	private volatile AuthorizationCache authorizationCache;
+	/** Answers repeated PAP logins; null for none. */
+	private volatile AuthenticationCache authenticationCache;
+	/** The authorization requests waiting for replies, shared by identical requests made meanwhile. */
+	private final ConcurrentHashMap<AuthorizationCache.Key,CompletableFuture<AuthorReply>> authorizing;
+	/** The common parts of requests from sessions on the "console" port, encoded once; see setCommonArguments(). */
+	private volatile RequestTemplate requestTemplate;
+	/** The templates for sessions on other ports or rem_addrs, by port and rem_addr; in access order, eldest first; guarded by itself. */
+	private final LinkedHashMap<String,RequestTemplate> requestTemplates;
+	/** The most templates kept in requestTemplates; the least recently used is dropped to make room. */
+	private static final int MAX_REQUEST_TEMPLATES = 256;
 
 	/**
 	 * Constructs a new TacacsClient that may be used for multiple calls to newSession().
@@ -65,6 +116,18 @@ public class TacacsClient extends Object
 		this.ports = new int[hosts.length];
 		this.singleConnect = singleConnect;
 		this.unencrypted = unencrypted;
+		this.replyTimeoutMillis = SessionClient.DEFAULT_REPLY_TIMEOUT_MILLIS;
+		this.deadlineMillis = 0;
+		this.virtualThreads = Threads.VIRTUAL_BY_DEFAULT;
+		this.selectionPolicy = HostSelectionPolicy.FAILOVER;
+		this.turn = new AtomicInteger();
+		this.authorizing = new ConcurrentHashMap<>();
+		this.requestTemplate = new RequestTemplate("console", "localhost", null);
+		this.requestTemplates = new LinkedHashMap<String,RequestTemplate>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+			@Override protected boolean removeEldestEntry(Map.Entry<String,RequestTemplate> eldest) { return size() > MAX_REQUEST_TEMPLATES; }
+		};
 		for (int i=hosts.length-1; i>=0; i--)
 		{
 			try
@@ -87,7 +150,16 @@ public class TacacsClient extends Object
 				ports[i] = TacacsReader.PORT_TACACS;
 			}
 		}
-
+		this.pools = new HostPool[hosts.length];
+		String[] servers = new String[hosts.length];
+		for (int i=0; i<hosts.length; i++)
+		{
+			String k = (i<keys.length) ? keys[i] : keys[keys.length-1]; // reuse last only if not enough
+			pools[i] = new HostPool(hosts[i], ports[i], k);
+			servers[i] = hosts[i]+":"+ports[i];
+		}
+		Arrays.sort(servers);
+		this.servers = String.join(",", servers);
 	}
 
     /**
@@ -140,13 +212,281 @@ public class TacacsClient extends Object
         this.logger = new StandardJavaLogger(cl.getName());
     }
 
+    /**
+     * Configures the pool of connections kept for each configured host.
+     * Connections are only shared by concurrent sessions in single-connect mode;
+     * a new connection is opened (up to the maximum) only when every existing
+     * connection to the host already has sessions outstanding.  Without
+     * single-connect, each session always gets its own connection.
+     * The default is a minimum of 0 and a maximum of 1.
+     *
+     * @param minConnections The number of connections per host that are never evicted for being idle.
+     * @param maxConnections The maximum number of single-connect connections per host.
+     */
+    public void setPoolSize(int minConnections, int maxConnections)
+    {
+        if (minConnections<0 || maxConnections<1 || minConnections>maxConnections)
+        {
+            throw new IllegalArgumentException("Bad pool size: min="+minConnections+", max="+maxConnections);
+        }
+        for (HostPool pool : pools) { pool.setSize(minConnections, maxConnections); }
+    }
+
+    /**
+     * Limits the number of sessions pipelined at once on each single-connect
+     * connection.  Sessions on a connection are independent: replies are routed
+     * by session ID, so a slow session doesn't hold up the others.  When every
+     * connection to a host is at this limit (and the pool is at its maximum
+     * size), the next host is tried; if all are busy, newSession() throws an IOException.
+     *
+     * @param maxSessions The cap on outstanding sessions per connection; unlimited by default.
+     */
+    public void setMaxSessionsPerConnection(int maxSessions)
+    {
+        if (maxSessions<1) { throw new IllegalArgumentException("Bad maximum sessions per connection: "+maxSessions); }
+        for (HostPool pool : pools) { pool.setMaxSessionsPerConnection(maxSessions); }
+    }
+
+    /**
+     * Limits the size of the packets accepted from the servers.  A larger
+     * packet (e.g. with a corrupt length) closes its
+     * connection, failing its sessions, rather than allocating memory for it.
+     *
+     * @param maxPacketBytes The limit, header included; the default, TacacsReader.DEFAULT_MAX_PACKET_BYTES, fits any well-formed packet.
+     */
+    public void setMaxPacketBytes(int maxPacketBytes)
+    {
+        if (maxPacketBytes<12) { throw new IllegalArgumentException("Bad maximum packet size: "+maxPacketBytes); }
+        for (HostPool pool : pools) { pool.setMaxPacketBytes(maxPacketBytes); }
+    }
+
+    /**
+     * Sets how long a connection without outstanding sessions is kept open
+     * before it is closed, as long as more than the pool's minimum are open.
+     * Idle connections are checked periodically, not only when a session
+     * starts, until shutdown().
+     *
+     * @param idleTimeoutMillis The idle time-out; zero (the default) to never close idle connections.
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis)
+    {
+        for (HostPool pool : pools) { pool.setIdleTimeoutMillis(idleTimeoutMillis); }
+    }
+
+    /**
+     * Selects the transport for new connections.  By default each connection has
+     * its own TacacsReader thread doing blocking reads.  With one or more selector
+     * threads, all connections are instead multiplexed by java.nio Selector event
+     * loops, which avoids a thread (and its stack) per connection; useful when
+     * many connections are open, or when servers don't support single-connect mode.
+     * This should be set before use; changing it closes any existing non-blocking connections.
+     *
+     * @param selectorThreads The number of event loop threads; zero for the blocking transport.
+     */
+    public synchronized void setSelectorThreads(int selectorThreads)
+    {
+        if (selectorThreads<0) { throw new IllegalArgumentException("Bad number of selector threads: "+selectorThreads); }
+        this.selectorThreads = selectorThreads;
+        shutdownSelectors();
+    }
+
+    /**
+     * Sets the time to wait for the server's reply to each request, for sessions
+     * without a deadline.  (Interactive logins without a deadline wait forever,
+     * since the server may be waiting for a human.)
+     *
+     * @param replyTimeoutMillis The reply time-out; the default is 5 seconds.
+     */
+    public void setReplyTimeoutMillis(int replyTimeoutMillis)
+    {
+        if (replyTimeoutMillis<1) { throw new IllegalArgumentException("Bad reply time-out: "+replyTimeoutMillis); }
+        this.replyTimeoutMillis = replyTimeoutMillis;
+    }
+
+    /**
+     * Gives every new session created without its own Deadline an end-to-end
+     * budget, starting when newSession() is called.  It covers connecting
+     * (including fail-over to the other servers), sending, and waiting for the
+     * reply; each connection attempt is also still limited by the connection time-out.
+     *
+     * @param deadlineMillis The budget per session; zero (the default) for none,
+     *   in which case only the connection and reply time-outs apply.
+     * @see Deadline
+     */
+    public void setDeadlineMillis(long deadlineMillis)
+    {
+        if (deadlineMillis<0) { throw new IllegalArgumentException("Bad deadline: "+deadlineMillis); }
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Selects how the configured servers are chosen for each new session, e.g.
+     * to spread the load across a farm of servers, or favor the fastest ones.
+     * The other servers are still tried, in the chosen order, if the first can't
+     * provide a connection.
+     *
+     * @param policy The HostSelectionPolicy; the default is FAILOVER, i.e. the configured order.
+     */
+    public void setHostSelectionPolicy(HostSelectionPolicy policy)
+    {
+        if (policy==null) { throw new IllegalArgumentException("No host selection policy"); }
+        this.selectionPolicy = policy;
+    }
+
+    /**
+     * Enables hedging of idempotent requests: authorizeAsync(), and accountAsync()
+     * for WATCHDOG-only records.  If the reply hasn't arrived after the given
+     * percentile of its server's recent reply latencies, the same request is sent
+     * to a different server; the first reply wins, and the other session is
+     * cancelled.  This trims the tail latency caused by an occasionally slow
+     * server, for the cost of a few percent more requests.  (Needs at least two servers.)
+     *
+     * @param percentile The percentile of recent latencies to wait before hedging,
+     *   e.g. 95; zero (the default) disables hedging.
+     * @param minDelayMillis The least time to wait before hedging; also the wait
+     *   used until the server's latency has been measured enough.
+     */
+    public void setHedging(double percentile, long minDelayMillis)
+    {
+        if (percentile<0 || percentile>=100 || minDelayMillis<0) { throw new IllegalArgumentException("Bad hedging: percentile="+percentile+", delay="+minDelayMillis); }
+        this.hedgeMinDelayMillis = minDelayMillis;
+        this.hedgePercentile = percentile;
+    }
+
+    /**
+     * Races connections to the configured servers, rather than trying them one at
+     * a time.  When a new connection is needed, connecting to the first server
+     * starts at once, then to the next one after each stagger delay (or as soon
+     * as an attempt fails); the first to connect is used, and the others are
+     * closed.  So an unreachable server delays a login by the stagger delay,
+     * instead of by the whole connection time-out.  Servers skipped by their
+     * circuit breakers don't race.  Nor do those after the first server with a
+     * pooled connection to share; that connection is used only if none of the
+     * servers before it connect.
+     *
+     * @param staggerMillis The delay between starting each connection attempt,
+     *   e.g. 250; zero (the default) to try servers one at a time.
+     */
+    public void setConnectStaggerMillis(long staggerMillis)
+    {
+        if (staggerMillis<0) { throw new IllegalArgumentException("Bad connect stagger: "+staggerMillis); }
+        this.connectStaggerMillis = staggerMillis;
+    }
+
+    /**
+     * Configures the circuit breaker kept for each server, so a dead server
+     * doesn't cost a connection time-out for every login.  After the given
+     * number of consecutive connection failures, the server is skipped (failing
+     * over at once to the next one) for a back-off period; then one caller
+     * probes it, while others continue to skip it.  Each failed probe doubles the
+     * back-off period, up to the maximum; a successful one restores the server.
+     * It is disabled by default (a threshold of 0), so every login tries each
+     * server in turn; a threshold of 1 with back-off from 1 second
+     * to 1 minute suits most fail-over configurations.
+     *
+     * @param failureThreshold The consecutive failures before a server is skipped; zero to disable.
+     * @param initialBackoffMillis The first period a server is skipped.
+     * @param maxBackoffMillis The longest period a server is skipped.
+     */
+    public void setCircuitBreaker(int failureThreshold, long initialBackoffMillis, long maxBackoffMillis)
+    {
+        if (failureThreshold<0 || initialBackoffMillis<1 || maxBackoffMillis<initialBackoffMillis)
+        {
+            throw new IllegalArgumentException("Bad circuit breaker: threshold="+failureThreshold+", backoff="+initialBackoffMillis+"-"+maxBackoffMillis);
+        }
+        for (HostPool pool : pools) { pool.health.configure(failureThreshold, initialBackoffMillis, maxBackoffMillis); }
+    }
+
+    /**
+     * Selects virtual threads (JDK 21 and later) for reading new blocking
+     * connections, instead of a daemon platform thread each; so many thousands of
+     * connections cost little memory.  On older JVMs this is ignored.  The default
+     * comes from the system property "com.augur.tacacs.virtualThreads".
+     *
+     * @param virtualThreads A boolean indicating if virtual threads should be used.
+     * @return A boolean indicating if virtual threads are supported by this JVM.
+     */
+    public boolean setVirtualThreads(boolean virtualThreads)
+    {
+        this.virtualThreads = virtualThreads;
+        return Threads.isVirtualSupported();
+    }
+
+    /**
+     * Sets the executor that runs UserInterface prompts for interactive (ASCII)
+     * logins, so that waiting for a human never blocks the connection's reader,
+     * which is shared by other sessions in single-connect mode.  By default, a
+     * shared pool of daemon threads is used.
+     *
+     * @param executor The executor for new interactive sessions; null for the default.
+     */
+    public void setPromptExecutor(Executor executor)
+    {
+        this.promptExecutor = executor;
+    }
+
+    /**
+     * Caches the replies to authorize() and authorizeAsync(), so that repeating
+     * the same request, e.g. for the same user on every page view, is answered
+     * without asking the server again.  See AuthorizationCache for what is
+     * cached, and for how long.  (Requests sent with a SessionClient's own
+     * authorize() aren't cached.)
+     *
+     * @param cache The cache to use, which may be shared by other clients (the
+     *   servers and common arguments are part of each key); null (the default) for none.
+     */
+    public void setAuthorizationCache(AuthorizationCache cache)
+    {
+        this.authorizationCache = cache;
+    }
+
+    /**
+     * Caches successful PAP logins by authenticate_PAP() and authenticatePapAsync(),
+     * so that an application whose clients send their credentials with every
+     * call doesn't ask the server every time.  No passwords are kept; see
+     * AuthenticationCache for what is cached, and for how long.
+     *
+     * @param cache The cache to use; null (the default) for none.
+     */
+    public void setAuthenticationCache(AuthenticationCache cache)
+    {
+        this.authenticationCache = cache;
+    }
+
+    /** @return The AuthenticationCache, or null if logins aren't cached. */
+    public AuthenticationCache getAuthenticationCache()
+    {
+        return authenticationCache;
+    }
+
+    /** @return The AuthorizationCache, or null if replies aren't cached. */
+    public AuthorizationCache getAuthorizationCache()
+    {
+        return authorizationCache;
+    }
+
+    /**
+     * Sets arguments to send in every authorization and accounting request,
+     * before the request's own; e.g. "service=shell".  They're encoded once,
+     * along with the port and rem_addr, rather than for every request.
+     *
+     * @param arguments The common arguments; none (the default) for none.
+     */
+    public void setCommonArguments(Argument... arguments)
+    {
+        synchronized (requestTemplates)
+        {
+            this.requestTemplate = new RequestTemplate(requestTemplate.port, requestTemplate.rem_addr, arguments);
+            requestTemplates.clear();
+        }
+    }
+
     /**
 	 * Creates a new session and registers it with communications thread, to process
 	 * the server's reply.  Note that a session may only be used once, per protocol specs!
  So if you need to authenticate a user, then ask for authorizations, that requires two
  sessions.  (However, those sessions will reuse the underlying socket
  connection to the remote TACACS+ server, so it's not too inefficient.)
- Synchronized to protect creation/shutdown of TacacsReader.
 	 *
 	 * @param svc  The TAC_PLUS.AUTHEN.SVC requesting the action
 	 * @param port The String port identifier where the user is attached;
@@ -160,75 +500,300 @@ public class TacacsClient extends Object
 	 * @throws SocketTimeoutException (a subclass of IOException!) if the connection isn't made before the timeout.
 	 * @throws java.io.IOException if there is any problem, other than SocketTimeoutException.
 	 */
-	public synchronized SessionClient newSession(TAC_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl) throws IOException {
-		TacacsReader t = getTacacs(); // throws IOException and SocketTimeoutException (a subclass of IOException!)
-		SessionClient s = new SessionClient(svc, port, rem_addr, priv_lvl, t, singleConnect, unencrypted, logger);
-		t.addSession(s);
-		return s;
+	public SessionClient newSession(TAC_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl) throws IOException {
+		return newSession(svc, port, rem_addr, priv_lvl, (Deadline)null);
+	}
+
+	/**
+	 * This is the same as the other newSession(), except that the whole session
+	 * (connecting, with fail-over to other servers, then each request and its
+	 * reply) must finish before the given deadline.
+	 *
+	 * @param deadline The end-to-end Deadline; if null, the client's default (see setDeadlineMillis()).
+	 * @throws SocketTimeoutException if the deadline passes before a connection is made.
+	 */
+	public SessionClient newSession(TAC_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl, Deadline deadline) throws IOException {
+		return newSessionInteractive(svc, port, rem_addr, priv_lvl, null, deadline);
 	}
 
 	/**
 	 * This is the same as the other newSessionInteractive(), except it includes a
 	 * UserInterface parameter.  This is only needed for interactive authentications,
 	 * i.e. authentication type = TAC_PLUS.AUTHEN.TYPE.ASCII.
-	 * Synchronized to protect creation/shutdown of TacacsReader.
 	 * @throws IOException
 	 */
-	public synchronized SessionClient newSessionInteractive(TAC_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl, UserInterface ui) throws IOException {
-		TacacsReader t = getTacacs(); // throws IOException and SocketTimeoutException (a subclass of IOException!)
-		SessionClient s = new SessionClient(svc, port, rem_addr, priv_lvl, t, ui, singleConnect, unencrypted, logger);
-		t.addSession(s);
-		return s;
+	public SessionClient newSessionInteractive(TAC_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl, UserInterface ui) throws IOException {
+		return newSessionInteractive(svc, port, rem_addr, priv_lvl, ui, null);
 	}
 
 	/**
-	 * Synchronized to protect creation/shutdown of TacacsReader.
+	 * This is the same as the other newSessionInteractive(), except that the
+	 * whole session, including the user's time to answer prompts, must finish
+	 * before the given deadline.
+	 *
+	 * @param deadline The end-to-end Deadline; if null, the client's default (see setDeadlineMillis()).
+	 * @throws IOException
+	 */
+	public SessionClient newSessionInteractive(TAC_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl, UserInterface ui, Deadline deadline) throws IOException {
+		return newSession(svc, port, rem_addr, priv_lvl, ui, deadline, null);
+	}
+
+	/** @param avoid A host not to use, e.g. for a hedged request; null for none. */
+	private SessionClient newSession(TAC_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl, UserInterface ui, Deadline deadline, HostPool avoid) throws IOException {
+		if (deadline==null && deadlineMillis>0) { deadline = Deadline.after(deadlineMillis); }
+		RequestTemplate template = (port==null || rem_addr==null) ? null : requestTemplate(port, rem_addr);
+		while (true)
+		{
+			Connection t = getTacacs(deadline, avoid); // throws IOException and SocketTimeoutException (a subclass of IOException!)
+			SessionClient s = new SessionClient(svc, port, rem_addr, priv_lvl, t, template, ui, promptExecutor, deadline, replyTimeoutMillis, singleConnect, unencrypted, logger);
+			if (t.addSession(s)) { return s; } // else another caller just took the connection's last slot
+		}
+	}
+
+	/**
+	 * @return The template for requests from sessions on the given port and
+	 *   rem_addr: the "console" one, or one made for them on first use, and
+	 *   kept for the sessions after, while recently used.
 	 */
-	public synchronized void shutdown()
+	private RequestTemplate requestTemplate(String port, String rem_addr)
+	{
+		RequestTemplate console = requestTemplate;
+		if (console.fits(port, rem_addr)) { return console; }
+		String key = port+'\n'+rem_addr;
+		synchronized (requestTemplates)
+		{
+			RequestTemplate t = requestTemplates.get(key);
+			if (t == null || !t.fits(port, rem_addr))
+			{
+				t = requestTemplate.forSession(port, rem_addr); // the current common arguments
+				requestTemplates.put(key, t);
+			}
+			return t;
+		}
+	}
+
+	/**
+	 * Closes all pooled connections; sessions still outstanding will end with an IOException.
+	 */
+	public void shutdown()
+	{
+		for (HostPool pool : pools) { pool.shutdown(); }
+		shutdownSelectors();
+	}
+
+
+	private synchronized void shutdownSelectors()
 	{
-		if (tacacs!=null && !tacacs.isShutdown())
+		if (selectors!=null)
 		{
-			tacacs.shutdown();
-			tacacs=null;
+			for (TacacsSelector sel : selectors) { sel.shutdown(); }
+			selectors = null;
 		}
 	}
 
 
 	/**
-	 * Synchronized to protect creation/shutdown of TacacsReader.
+	 * Leases a pooled connection, trying hosts in the order chosen by the
+	 * HostSelectionPolicy (by default, the configured order), and opening
+	 * a new connection when the host's pool has none to share.  No lock is held
+	 * while connecting, so callers using healthy connections are never blocked
+	 * behind a slow or dead server.  Fail-over stops when the deadline, if any, passes.
+	 * Hosts whose circuit breakers are open (see setCircuitBreaker()) are skipped.
 	 */
-	private synchronized TacacsReader getTacacs() throws IOException {
-		if (tacacs==null || tacacs.isShutdown())
+	private Connection getTacacs(Deadline deadline, HostPool avoid) throws IOException {
+		IOException busy = null;
+		int down = 0; // hosts skipped by their circuit breakers
+		List<HostPool> racing = (connectStaggerMillis>0) ? new ArrayList<>() : null;
+		Connection pooled = null; // a lower-priority host's connection, used if none of those racing connects
+		for (HostPool pool : selectionPolicy.order(pools, turn.getAndIncrement()))
 		{
-			tacacs = null;
-			Socket sock=null;
-			for (int i=0; i<hosts.length; i++)
+			if (pool==avoid) { continue; }
+			if (deadline!=null && deadline.isExpired())
 			{
-				try
+				unrace(racing);
+				throw new SocketTimeoutException("Deadline expired before contacting a TACACS+ server.");
+			}
+			Connection t;
+			try { t = pool.lease(singleConnect, deadline); }
+			catch (IOException ioe)
+			{
+				if (Thread.currentThread().isInterrupted())
 				{
-					//System.out.println("TACACS+: Trying server at "+hosts[i]+":"+ports[i]);
-					sock = new Socket();
-					sock.connect(new InetSocketAddress(hosts[i],ports[i]), timeoutMillis); // throws IOException
-					String key = (i<keys.length) ? keys[i] : keys[keys.length-1]; // reuse last only if not enough
-					tacacs = new TacacsReader(sock, key, logger);
-					tacacs.start();
-					debug("TACACS: Connected to server at "+hosts[i]+":"+ports[i]);
-					return tacacs;
+					unrace(racing);
+					throw ioe; // the caller was interrupted; don't go on to the next host
 				}
-				catch(IOException ioe)
+				busy = ioe; // every connection to this host is at its in-flight limit; try the next host
+				continue;
+			}
+			if (t!=null)
+			{
+				if (racing==null || racing.isEmpty()) { return t; }
+				pooled = t; // but first race the hosts preferred to this one
+				break;
+			}
+			if (!pool.health.tryAcquire())
+			{
+				pool.abandoned(); // known to be down, and not yet due for a probe; skip it
+				down++;
+				continue;
+			}
+			if (racing!=null)
+			{
+				racing.add(pool); // connected below, in parallel with the others
+				continue;
+			}
+			try
+			{
+				//System.out.println("TACACS+: Trying server at "+pool.host+":"+pool.port);
+				t = connect(pool, deadline); // throws IOException
+				pool.health.succeeded();
+				t.start(virtualThreads);
+				pool.added(t);
+				debug("TACACS: Connected to server at "+pool.host+":"+pool.port);
+				return t;
+			}
+			catch(IOException ioe)
+			{
+				pool.abandoned();
+				if (ioe instanceof SocketTimeoutException && deadline!=null && deadline.isExpired())
+				{
+					pool.health.released(); // our deadline cut the attempt short; not the server's fault
+				}
+				else if (pool.health.failed())
 				{
-				    try { sock.close(); } catch (IOException ioe2) {
-				        // ignore
-				    }
- 					tacacs = null;
- 					if (logger != null) {
- 					    logger.error("TACACS: Unable to contact TACACS+ server @ "+hosts[i]+" ("+ioe+")");
- 					}
+					debug("TACACS: Skipping server at "+pool.host+" for "+pool.health.getRetryMillis()+"ms");
+				}
+				if (logger != null) {
+				    logger.error("TACACS: Unable to contact TACACS+ server @ "+pool.host+" ("+ioe+")");
 				}
 			}
-			if (tacacs == null) { throw new IOException("Unable to contact any TACACS+ server(s)."); }
 		}
-		return tacacs;
+		if (racing!=null && !racing.isEmpty())
+		{
+			if (pooled==null) { return race(racing, deadline); }
+			try { return race(racing, deadline); }
+			catch (IOException ioe)
+			{
+				if (Thread.currentThread().isInterrupted() || (deadline!=null && deadline.isExpired())) { throw ioe; }
+				debug("TACACS: Falling back to a connection to "+pooled.pool.host+" ("+ioe+")");
+				return pooled;
+			}
+		}
+		if (busy!=null) { throw busy; }
+		if (down>0 && down==pools.length-(avoid==null ? 0 : 1)) { throw new IOException("All TACACS+ server(s) are down; retrying them after a back-off period."); }
+		throw new IOException("Unable to contact any TACACS+ server(s).");
+	}
+
+
+	/**
+	 * Races new connections to the given hosts (see setConnectStaggerMillis()), and
+	 * starts the winner.
+	 */
+	private Connection race(List<HostPool> racing, Deadline deadline) throws IOException
+	{
+		ConnectRace race = new ConnectRace(racing, connectStaggerMillis, timeoutMillis, deadline, logger);
+		SocketChannel channel = race.run(); // throws IOException if none connected
+		HostPool pool = race.winner();
+		Connection t;
+		try { t = newReader(channel, pool); }
+		catch (IOException ioe)
+		{
+			try { channel.close(); } catch (IOException ioe2) {
+				// ignore
+			}
+			pool.abandoned();
+			pool.health.released();
+			throw ioe;
+		}
+		pool.health.succeeded();
+		t.start(virtualThreads);
+		pool.added(t);
+		debug("TACACS: Connected to server at "+pool.host+":"+pool.port);
+		return t;
+	}
+
+
+	/** Releases the hosts reserved for a connection race that won't be run. */
+	private static void unrace(List<HostPool> racing)
+	{
+		if (racing==null) { return; }
+		for (HostPool pool : racing)
+		{
+			pool.abandoned();
+			pool.health.released();
+		}
+	}
+
+
+	/**
+	 * @param channel A connected SocketChannel.
+	 * @return A new, unstarted connection using the channel, with the configured transport.
+	 */
+	private Connection newReader(SocketChannel channel, HostPool pool) throws IOException
+	{
+		TacacsSelector sel = nextSelector();
+		if (sel!=null) { return new NioTacacsReader(channel, pool.key, logger, sel); }
+		channel.configureBlocking(true);
+		return new TacacsReader(channel.socket(), pool.key, logger);
+	}
+
+
+	/**
+	 * Opens a new, unstarted connection to the given host, using the configured
+	 * transport, within the connection time-out and the remaining deadline.
+	 */
+	private Connection connect(HostPool pool, Deadline deadline) throws IOException
+	{
+		InetSocketAddress addr = new InetSocketAddress(pool.host, pool.port);
+		int timeout = (deadline==null) ? timeoutMillis : deadline.clamp(timeoutMillis);
+		if (selectorThreads==0)
+		{
+			Socket sock = new Socket();
+			try
+			{
+				sock.connect(addr, timeout);
+				return new TacacsReader(sock, pool.key, logger);
+			}
+			catch(IOException ioe)
+			{
+			    try { sock.close(); } catch (IOException ioe2) {
+			        // ignore
+			    }
+			    throw ioe;
+			}
+		}
+		else
+		{
+			SocketChannel channel = SocketChannel.open();
+			try
+			{
+				channel.socket().connect(addr, timeout); // blocking connect honors the time-out
+				return newReader(channel, pool); // the selector is chosen once connected, in case they were replaced meanwhile
+			}
+			catch(IOException ioe)
+			{
+			    try { channel.close(); } catch (IOException ioe2) {
+			        // ignore
+			    }
+			    throw ioe;
+			}
+		}
+	}
+
+
+	/**
+	 * @return The event loop for the next non-blocking connection, round-robin;
+	 *   null for the blocking transport.  A loop that has stopped (e.g. its
+	 *   Selector failed) is replaced, rather than handed to a new connection.
+	 */
+	private synchronized TacacsSelector nextSelector() throws IOException
+	{
+		if (selectorThreads==0) { return null; }
+		if (selectors==null) { selectors = new TacacsSelector[selectorThreads]; }
+		nextSelector = (nextSelector+1) % selectors.length;
+		TacacsSelector sel = selectors[nextSelector];
+		if (sel==null || !sel.isRunning()) { sel = selectors[nextSelector] = new TacacsSelector("TACACS+ selector "+nextSelector); }
+		return sel;
 	}
 
 
@@ -236,7 +801,8 @@ public class TacacsClient extends Object
 	 * This is a convenience method that creates a new session using some default
 	 * default parameters, then attempts to authenticate.  For full control,
 	 * instantiate your own SessionClient with your own parameters, then call its
-	 * authenticate_PAP() method.
+	 * authenticate_PAP() method.  A recent identical login may be answered
+	 * without asking the server; see setAuthenticationCache().
 	 *
 	 * @param username The String id for authentication
 	 * @param password The String password for authentication
@@ -247,8 +813,417 @@ public class TacacsClient extends Object
 	 */
 	public AuthenReply authenticate_PAP(String username, String password) throws IOException, TimeoutException
 	{
-		SessionClient session = newSession(TAC_PLUS.AUTHEN.SVC.LOGIN, "console", "localhost", TAC_PLUS.PRIV_LVL.USER.code()); // throws exceptions if can't contact TACACS+
-		return session.authenticate_PAP(username, password);
+		return authenticate_PAP(username, password, null);
+	}
+
+
+	/**
+	 * This is the same as the other authenticate_PAP(), except that connecting
+	 * (with fail-over) and waiting for the reply must all finish before the deadline.
+	 *
+	 * @param username The String id for authentication
+	 * @param password The String password for authentication
+	 * @param deadline The end-to-end Deadline; if null, the client's default (see setDeadlineMillis()).
+	 * @return AuthenReply
+	 * @throws IOException if there is a problem communicating with the TACACS+ server,
+	 *   including a SocketTimeoutException if the deadline passes before a connection is made.
+	 * @throws TimeoutException if the deadline passes, or the reply time-out, while waiting for the reply.
+	 */
+	public AuthenReply authenticate_PAP(String username, String password, Deadline deadline) throws IOException, TimeoutException
+	{
+		AuthenticationCache cache = authenticationCache;
+		AuthenReply cached = (cache == null) ? null : cache.get(username, password);
+		if (cached != null) { return cached; }
+		long generation = (cache == null) ? 0 : cache.generation();
+		SessionClient session = newSession(TAC_PLUS.AUTHEN.SVC.LOGIN, "console", "localhost", TAC_PLUS.PRIV_LVL.USER.code(), deadline); // throws exceptions if can't contact TACACS+
+		AuthenReply reply = session.authenticate_PAP(username, password);
+		if (cache != null && reply != null && cache.isCacheable(reply)) { cache.put(username, cache.credential(username, password), reply, generation); }
+		return reply;
+	}
+
+
+	/**
+	 * This is the non-blocking version of authenticate_PAP().  The reply is
+	 * awaited without parking the caller; only opening a new connection (when
+	 * the pool has none to share) is done on the calling thread.
+	 *
+	 * @param username The String id for authentication
+	 * @param password The String password for authentication
+	 * @return A future AuthenReply, completed by the connection's reader thread;
+	 *   failed with an IOException or TimeoutException.
+	 */
+	public CompletableFuture<AuthenReply> authenticatePapAsync(String username, String password)
+	{
+		return authenticatePapAsync(username, password, null);
+	}
+
+
+	/**
+	 * This is the non-blocking version of authenticate_PAP(String,String,Deadline).
+	 * With an AuthenticationCache, its scrypt hashing is done in the common
+	 * ForkJoinPool, never on the calling thread or the connection's reader:
+	 * checking a cached login (and then, on a miss, sending the request), and
+	 * hashing the credential to cache a reply, after the reply is completed.
+	 *
+	 * @param username The String id for authentication
+	 * @param password The String password for authentication
+	 * @param deadline The end-to-end Deadline; if null, the client's default (see setDeadlineMillis()).
+	 * @return A future AuthenReply; see authenticatePapAsync().
+	 */
+	public CompletableFuture<AuthenReply> authenticatePapAsync(String username, String password, Deadline deadline)
+	{
+		AuthenticationCache cache = authenticationCache;
+		if (cache == null) { return sendPapAsync(null, username, password, deadline); }
+		if (!cache.has(username))
+		{
+			cache.get(username, password); // a miss, counted without hashing
+			return sendPapAsync(cache, username, password, deadline);
+		}
+		return CompletableFuture.supplyAsync(() -> cache.get(username, password))
+			.thenCompose(cached -> (cached != null) ? CompletableFuture.completedFuture(cached) : sendPapAsync(cache, username, password, deadline));
+	}
+
+
+	/** Sends a PAP login not answered by the cache; then caches its reply, if it may be, hashing in the common ForkJoinPool. */
+	private CompletableFuture<AuthenReply> sendPapAsync(AuthenticationCache cache, String username, String password, Deadline deadline)
+	{
+		long generation = (cache == null) ? 0 : cache.generation();
+		CompletableFuture<AuthenReply> reply;
+		try
+		{
+			SessionClient session = newSession(TAC_PLUS.AUTHEN.SVC.LOGIN, "console", "localhost", TAC_PLUS.PRIV_LVL.USER.code(), deadline);
+			reply = session.authenticatePapAsync(username, password, session.getReplyTimeoutMillis());
+		}
+		catch (IOException e) { return failed(e); }
+		if (cache == null) { return reply; }
+		reply.thenAccept(r ->
+		{
+			if (cache.isCacheable(r)) { CompletableFuture.runAsync(() -> cache.put(username, cache.credential(username, password), r, generation)); }
+		});
+		return reply;
+	}
+
+
+	/**
+	 * Requests authorization in a new session, assuming authen_meth=TACACS+,
+	 * authen_type=PAP, and authen_svc=LOGIN; see authorize(String,METH,TYPE,SVC,Argument[],Deadline).
+	 *
+	 * @param username The String id of the (previously authenticated) user
+	 * @param args The Argument[] for the request; e.g. "service=..." is required by most servers.
+	 * @return AuthorReply
+	 * @throws IOException if there is a problem communicating with the TACACS+ server.
+	 * @throws TimeoutException if there is a time-out waiting for the TACACS+ server's reply.
+	 */
+	public AuthorReply authorize(String username, Argument[] args) throws IOException, TimeoutException
+	{
+		return authorize(username, TAC_PLUS.AUTHEN.METH.TACACSPLUS, TAC_PLUS.AUTHEN.TYPE.PAP, TAC_PLUS.AUTHEN.SVC.LOGIN, args, null);
+	}
+
+
+	/**
+	 * Requests authorization in a new session, assuming authen_meth=TACACS+,
+	 * authen_type=PAP, and authen_svc=LOGIN, within the given deadline; see
+	 * authorize(String,METH,TYPE,SVC,Argument[],Deadline).
+	 *
+	 * @param username The String id of the (previously authenticated) user
+	 * @param args The Argument[] for the request; e.g. "service=..." is required by most servers.
+	 * @param deadline The end-to-end Deadline; if null, the client's default (see setDeadlineMillis()).
+	 * @return AuthorReply
+	 * @throws IOException if there is a problem communicating with the TACACS+ server.
+	 * @throws TimeoutException if the deadline passes, or the reply time-out, while waiting for the reply.
+	 */
+	public AuthorReply authorize(String username, Argument[] args, Deadline deadline) throws IOException, TimeoutException
+	{
+		return authorize(username, TAC_PLUS.AUTHEN.METH.TACACSPLUS, TAC_PLUS.AUTHEN.TYPE.PAP, TAC_PLUS.AUTHEN.SVC.LOGIN, args, deadline);
+	}
+
+
+	/**
+	 * Requests authorization in a new session; see authorize(String,METH,TYPE,SVC,Argument[],Deadline).
+	 *
+	 * @param username The String id of the (previously authenticated) user
+	 * @param authen_meth How the user was authenticated
+	 * @param authen_type The type of authentication
+	 * @param authen_svc The service requesting authorization
+	 * @param args The Argument[] for the request; e.g. "service=..." is required by most servers.
+	 * @return AuthorReply
+	 * @throws IOException if there is a problem communicating with the TACACS+ server.
+	 * @throws TimeoutException if there is a time-out waiting for the TACACS+ server's reply.
+	 */
+	public AuthorReply authorize(String username, TAC_PLUS.AUTHEN.METH authen_meth, TAC_PLUS.AUTHEN.TYPE authen_type, TAC_PLUS.AUTHEN.SVC authen_svc, Argument[] args) throws IOException, TimeoutException
+	{
+		return authorize(username, authen_meth, authen_type, authen_svc, args, null);
+	}
+
+
+	/**
+	 * Requests authorization in a new session; answered from the
+	 * AuthorizationCache if the same request was recently authorized (see
+	 * setAuthorizationCache()).  If the same request is already waiting for a
+	 * reply, e.g. for another of the user's browser tabs, no new session is
+	 * sent; the reply to that one is shared, if it comes within this deadline.
+	 *
+	 * @param username The String id of the (previously authenticated) user
+	 * @param authen_meth How the user was authenticated
+	 * @param authen_type The type of authentication
+	 * @param authen_svc The service requesting authorization
+	 * @param args The Argument[] for the request; e.g. "service=..." is required by most servers.
+	 * @param deadline The end-to-end Deadline; if null, the client's default (see setDeadlineMillis()).
+	 * @return AuthorReply
+	 * @throws IOException if there is a problem communicating with the TACACS+ server,
+	 *   including a SocketTimeoutException if the deadline passes before a connection is made.
+	 * @throws TimeoutException if the deadline passes, or the reply time-out, while waiting for the reply.
+	 */
+	public AuthorReply authorize(String username, TAC_PLUS.AUTHEN.METH authen_meth, TAC_PLUS.AUTHEN.TYPE authen_type, TAC_PLUS.AUTHEN.SVC authen_svc, Argument[] args, Deadline deadline) throws IOException, TimeoutException
+	{
+		AuthorizationCache cache = authorizationCache;
+		RequestTemplate template = requestTemplate;
+		AuthorizationCache.Key key = new AuthorizationCache.Key(servers, username, authen_meth, authen_type, authen_svc, template.arguments(args));
+		AuthorReply cached = (cache == null) ? null : cache.get(key);
+		if (cached != null) { return cached; }
+		long generation = (cache == null) ? 0 : cache.generation();
+		CompletableFuture<AuthorReply> flight = new CompletableFuture<>();
+		CompletableFuture<AuthorReply> shared = authorizing.putIfAbsent(key, flight);
+		if (shared != null) { return await(shared, deadline); }
+		try
+		{
+			SessionClient session = newSession(TAC_PLUS.AUTHEN.SVC.LOGIN, "console", "localhost", TAC_PLUS.PRIV_LVL.USER.code(), deadline);
+			AuthorReply reply = session.authorize(username, authen_meth, authen_type, authen_svc, args);
+			landed(key, flight, reply, null, (requestTemplate==template) ? cache : null, generation);
+			return reply;
+		}
+		catch (IOException | TimeoutException | RuntimeException e)
+		{
+			landed(key, flight, null, e, cache, generation);
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Requests authorization in a new session, assuming authen_meth=TACACS+,
+	 * authen_type=PAP, and authen_svc=LOGIN, without blocking for the reply;
+	 * see authorizeAsync(String,METH,TYPE,SVC,Argument[],Deadline).
+	 *
+	 * @param username The String id of the (previously authenticated) user
+	 * @param args The Argument[] for the request; e.g. "service=..." is required by most servers.
+	 * @return A future AuthorReply; see authenticatePapAsync().
+	 */
+	public CompletableFuture<AuthorReply> authorizeAsync(String username, Argument[] args)
+	{
+		return authorizeAsync(username, TAC_PLUS.AUTHEN.METH.TACACSPLUS, TAC_PLUS.AUTHEN.TYPE.PAP, TAC_PLUS.AUTHEN.SVC.LOGIN, args, null);
+	}
+
+
+	/**
+	 * Requests authorization in a new session, assuming authen_meth=TACACS+,
+	 * authen_type=PAP, and authen_svc=LOGIN, without blocking for the reply;
+	 * see authorizeAsync(String,METH,TYPE,SVC,Argument[],Deadline).
+	 *
+	 * @param username The String id of the (previously authenticated) user
+	 * @param args The Argument[] for the request; e.g. "service=..." is required by most servers.
+	 * @param deadline The end-to-end Deadline; if null, the client's default (see setDeadlineMillis()).
+	 * @return A future AuthorReply; see authenticatePapAsync().
+	 */
+	public CompletableFuture<AuthorReply> authorizeAsync(String username, Argument[] args, Deadline deadline)
+	{
+		return authorizeAsync(username, TAC_PLUS.AUTHEN.METH.TACACSPLUS, TAC_PLUS.AUTHEN.TYPE.PAP, TAC_PLUS.AUTHEN.SVC.LOGIN, args, deadline);
+	}
+
+
+	/**
+	 * Requests authorization in a new session, without blocking for the reply;
+	 * see authorizeAsync(String,METH,TYPE,SVC,Argument[],Deadline).
+	 *
+	 * @param username The String id of the (previously authenticated) user
+	 * @param authen_meth How the user was authenticated
+	 * @param authen_type The type of authentication
+	 * @param authen_svc The service requesting authorization
+	 * @param args The Argument[] for the request; e.g. "service=..." is required by most servers.
+	 * @return A future AuthorReply; see authenticatePapAsync().
+	 */
+	public CompletableFuture<AuthorReply> authorizeAsync(String username, TAC_PLUS.AUTHEN.METH authen_meth, TAC_PLUS.AUTHEN.TYPE authen_type, TAC_PLUS.AUTHEN.SVC authen_svc, Argument[] args)
+	{
+		return authorizeAsync(username, authen_meth, authen_type, authen_svc, args, null);
+	}
+
+
+	/**
+	 * Requests authorization in a new session, without blocking for the reply.
+	 * The request may be hedged; see setHedging(); answered from the
+	 * AuthorizationCache; see setAuthorizationCache(); or share the reply to
+	 * the same request already in flight; see authorize().
+	 *
+	 * @param username The String id of the (previously authenticated) user
+	 * @param authen_meth How the user was authenticated
+	 * @param authen_type The type of authentication
+	 * @param authen_svc The service requesting authorization
+	 * @param args The Argument[] for the request; e.g. "service=..." is required by most servers.
+	 * @param deadline The end-to-end Deadline, shared by any hedge; if null, the client's default (see setDeadlineMillis()).
+	 * @return A future AuthorReply; see authenticatePapAsync().
+	 */
+	public CompletableFuture<AuthorReply> authorizeAsync(String username, TAC_PLUS.AUTHEN.METH authen_meth, TAC_PLUS.AUTHEN.TYPE authen_type, TAC_PLUS.AUTHEN.SVC authen_svc, Argument[] args, Deadline deadline)
+	{
+		AuthorizationCache cache = authorizationCache;
+		RequestTemplate template = requestTemplate;
+		AuthorizationCache.Key key = new AuthorizationCache.Key(servers, username, authen_meth, authen_type, authen_svc, template.arguments(args));
+		AuthorReply cached = (cache == null) ? null : cache.get(key);
+		if (cached != null) { return CompletableFuture.completedFuture(cached); }
+		long generation = (cache == null) ? 0 : cache.generation();
+		CompletableFuture<AuthorReply> flight = new CompletableFuture<>();
+		CompletableFuture<AuthorReply> shared = authorizing.putIfAbsent(key, flight);
+		if (shared != null) { return within(shared, deadline); } // a copy, so one caller can't cancel it for all
+		hedged(hedgePercentile>0, deadline, session -> session.authorizeAsync(username, authen_meth, authen_type, authen_svc, args, session.getReplyTimeoutMillis()))
+			.whenComplete((reply, error) -> landed(key, flight, reply, error, (requestTemplate==template) ? cache : null, generation));
+		return flight.thenApply(Function.identity());
+	}
+
+
+	/**
+	 * Completes an authorization request in flight: caching the reply, if
+	 * any, before the request is removed from flight, so that no identical
+	 * request sent meanwhile misses both.
+	 * @param cache The cache; null if the reply mustn't be cached, e.g. because
+	 *   the common arguments changed while it was in flight, so it may not match its key.
+	 */
+	private void landed(AuthorizationCache.Key key, CompletableFuture<AuthorReply> flight, AuthorReply reply, Throwable error, AuthorizationCache cache, long generation)
+	{
+		if (error == null && reply != null && cache != null) { cache.put(key, reply, generation); }
+		authorizing.remove(key, flight);
+		if (error == null) { flight.complete(reply); }
+		else { flight.completeExceptionally(error); }
+	}
+
+
+	/**
+	 * Waits for the reply to a request sent by another caller, for no longer
+	 * than this caller's own request could have taken: the given deadline, or
+	 * else the client's (see setDeadlineMillis()), if any; otherwise the reply time-out.
+	 */
+	private AuthorReply await(CompletableFuture<AuthorReply> flight, Deadline deadline) throws IOException, TimeoutException
+	{
+		long wait = (deadline!=null) ? deadline.remainingMillis() : (deadlineMillis>0) ? deadlineMillis : replyTimeoutMillis;
+		try { return flight.get(wait, TimeUnit.MILLISECONDS); }
+		catch (TimeoutException te) { throw new TimeoutException("Timed out waiting for the reply to the same request, sent by another caller."); }
+		catch (ExecutionException ee)
+		{
+			Throwable t = ee.getCause();
+			if (t instanceof TimeoutException) { throw (TimeoutException)t; }
+			throw (t instanceof IOException) ? (IOException)t : new IOException(t);
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for TACACS+ reply.");
+		}
+	}
+
+
+	/**
+	 * @return A copy of the reply to a request sent by another caller, so this
+	 *   caller can't cancel it for all; failed with a TimeoutException if the
+	 *   reply hasn't come by the given deadline.
+	 */
+	private static <T> CompletableFuture<T> within(CompletableFuture<T> flight, Deadline deadline)
+	{
+		CompletableFuture<T> copy = flight.thenApply(Function.identity());
+		if (deadline==null || copy.isDone()) { return copy; }
+		ScheduledFuture<?> timer = Session.Timeouts.EXECUTOR.schedule(() ->
+			copy.completeExceptionally(new TimeoutException("Timed out waiting for the reply to the same request, sent by another caller.")),
+			deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+		copy.whenComplete((r, e) -> timer.cancel(false));
+		return copy;
+	}
+
+
+	/**
+	 * Sends an accounting record in a new session, assuming authen_meth=TACACS+,
+	 * authen_type=PAP, and authen_svc=LOGIN, without blocking for the reply.
+	 * WATCHDOG-only records may be hedged; see setHedging().
+	 *
+	 * @param flags One of TAC_PLUS.ACCT.FLAG.START, STOP, WATCHDOG, or WATCHDOG+START
+	 * @param username The String id of the user this record applies to
+	 * @param args The Argument[] record contents
+	 * @return A future AcctReply; see authenticatePapAsync().
+	 */
+	public CompletableFuture<AcctReply> accountAsync(byte flags, String username, Argument[] args)
+	{
+		return accountAsync(flags, username, args, null);
+	}
+
+
+	/**
+	 * Sends an accounting record in a new session, as accountAsync(byte,String,Argument[]),
+	 * within the given deadline.
+	 *
+	 * @param flags One of TAC_PLUS.ACCT.FLAG.START, STOP, WATCHDOG, or WATCHDOG+START
+	 * @param username The String id of the user this record applies to
+	 * @param args The Argument[] record contents
+	 * @param deadline The end-to-end Deadline, shared by any hedge; if null, the client's default (see setDeadlineMillis()).
+	 * @return A future AcctReply; see authenticatePapAsync().
+	 */
+	public CompletableFuture<AcctReply> accountAsync(byte flags, String username, Argument[] args, Deadline deadline)
+	{
+		boolean idempotent = (flags==TAC_PLUS.ACCT.FLAG.WATCHDOG.code()); // an update; re-sending a START or STOP would duplicate it
+		return hedged(hedgePercentile>0 && idempotent, deadline, session -> session.accountAsync(flags, username, TAC_PLUS.AUTHEN.METH.TACACSPLUS, TAC_PLUS.AUTHEN.TYPE.PAP, TAC_PLUS.AUTHEN.SVC.LOGIN, args, session.getReplyTimeoutMillis()));
+	}
+
+
+	/**
+	 * Creates an AccountingSubmitter, which sends accounting records in the
+	 * background, so the threads producing them never wait for the server.
+	 * Close it before shutting this client down.
+	 *
+	 * @param capacity The most records to queue.
+	 * @param maxInFlight The most sessions waiting for replies at once; with
+	 *   single-connect, these are pipelined over the pooled connections.
+	 * @param backpressure What to do with new records when the queue is full.
+	 * @return A new AccountingSubmitter, whose sender thread is started.
+	 */
+	public AccountingSubmitter newAccountingSubmitter(int capacity, int maxInFlight, AccountingSubmitter.Backpressure backpressure)
+	{
+		return new AccountingSubmitter(this, capacity, maxInFlight, backpressure);
+	}
+
+
+	/**
+	 * Sends a request in a new session; if hedging, the request is also sent to
+	 * a different server if the first hasn't replied in time (see setHedging()).
+	 */
+	private <T> CompletableFuture<T> hedged(boolean hedge, Deadline callDeadline, Function<SessionClient,CompletableFuture<T>> request)
+	{
+		Deadline deadline = (callDeadline==null && deadlineMillis>0) ? Deadline.after(deadlineMillis) : callDeadline; // shared by the hedge, which only has what's left of it
+		SessionClient first;
+		try { first = newSession(TAC_PLUS.AUTHEN.SVC.LOGIN, "console", "localhost", TAC_PLUS.PRIV_LVL.USER.code(), null, deadline, null); }
+		catch (IOException e) { return failed(e); }
+		HostPool pool = first.tacacs.pool;
+		if (!hedge || pools.length<2 || pool==null) { return request.apply(first); }
+		long delay = Math.max(hedgeMinDelayMillis, pool.getLatencyPercentileMillis(hedgePercentile));
+		HedgedRequest<T> hedged = new HedgedRequest<>(request);
+		hedged.send(first);
+		ScheduledFuture<?> timer = Session.Timeouts.EXECUTOR.schedule(() -> Hedges.EXECUTOR.execute(() ->
+		{
+			if (hedged.result.isDone()) { return; }
+			try { hedged.send(newSession(TAC_PLUS.AUTHEN.SVC.LOGIN, "console", "localhost", TAC_PLUS.PRIV_LVL.USER.code(), null, deadline, pool)); }
+			catch (IOException e) { debug("TACACS: Unable to hedge request ("+e+")"); }
+		}), delay, TimeUnit.MILLISECONDS);
+		hedged.result.whenComplete((r, e) -> timer.cancel(false));
+		return hedged.result;
+	}
+
+
+	/** The shared daemon threads that open hedge sessions, which may block while connecting. */
+	private static final class Hedges
+	{
+		static final ExecutorService EXECUTOR = Threads.executor("TACACS+ hedge", Threads.VIRTUAL_BY_DEFAULT);
+	}
+
+
+	private static <T> CompletableFuture<T> failed(Throwable t)
+	{
+		CompletableFuture<T> f = new CompletableFuture<>();
+		f.completeExceptionally(t);
+		return f;
 	}
 
 
@@ -395,7 +1370,7 @@ public class TacacsClient extends Object
 		System.out.println("");
 	}
 
-	private void debug(String msg) {
+	void debug(String msg) {
 	    if (logger != null) {
 	        logger.debug(msg);
 	    }
@@ -4,12 +4,21 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This is used by both TACACS+ client and server for reading incoming packet.
+ * Each instance is one connection, read from a blocking Socket on a thread of
+ * its own; see start().
+ * <p>
+ * Since the non-blocking transport (NioTacacsReader) was added, this is no
+ * longer a Thread itself, but a Runnable that starts its own (daemon or
+ * virtual) thread.  Call start() as before, and shutdown() to stop reading;
+ * join(), isAlive(), and interrupt() are kept, and apply to the reading thread,
+ * which is also available from getThread().
  * <p>
  * The TACACS+ Protocol (version 1.78) is defined at
  * <a href='https://tools.ietf.org/html/draft-grant-tacacs-02'>IETF.org</a>.
@@ -18,90 +27,127 @@ import java.util.List;
  * Copyright 2016 Augur Systems, Inc.  All rights reserved.
  */
 
-public class TacacsReader extends Thread
+public class TacacsReader extends Connection implements Runnable
 {
     public static final int PORT_TACACS = 49;
-	public final DebugLogger logger;
+	/** The default maximum size of a packet read, header included; more than any well-formed packet needs. */
+	public static final int DEFAULT_MAX_PACKET_BYTES = 256<<10;
 
-	private final List<Session> sessions;
-	private final byte[] key;
-	private volatile boolean runnable;
 	private final Socket socket;
 	private final DataInputStream din;
 	private final OutputStream out;
+	/** Serializes writes; not synchronized, which would pin a virtual thread blocked in a socket write. */
+	private final ReentrantLock writeLock = new ReentrantLock();
+	/** Packets waiting to be written, by whichever writer next holds the writeLock. */
+	private final ConcurrentLinkedQueue<PendingWrite> writes = new ConcurrentLinkedQueue<>();
+	/** Each batch of packets is encoded here, then written at once; guarded by writeLock. */
+	private final WriteBuffer buffer = new WriteBuffer();
+	private final ArrayList<PendingWrite> batch = new ArrayList<>();
+	/** The thread reading the socket; null until started. */
+	private volatile Thread thread;
 
 
 	protected TacacsReader(Socket socket, String key, DebugLogger debugLogger) throws IOException
 	{
-		super("TACACS+");
-		setDaemon(true);
-		this.key = key.getBytes(StandardCharsets.UTF_8);
-		this.runnable = true;
-		this.sessions = new ArrayList<>();
+		super(key, debugLogger);
 		this.socket = socket;
-		this.logger = debugLogger;
 		din = new DataInputStream(socket.getInputStream());
 		out = socket.getOutputStream();
+		socket.setTcpNoDelay(true); // writes are already coalesced; see write()
+	}
+
+
+	/** Starts the daemon thread that reads packets from the socket; see run(). */
+	public void start()
+	{
+		start(Threads.VIRTUAL_BY_DEFAULT);
 	}
 
 
-	public void shutdown()
+	/**
+	 * Starts the thread that reads packets from the socket; see run().
+	 * @param virtual A boolean indicating if a virtual thread should be used, if
+	 *   supported by the JVM (JDK 21+); otherwise a daemon platform thread is used.
+	 */
+	@Override public void start(boolean virtual)
 	{
-		if (runnable)
+		Thread t;
+		synchronized (this)
 		{
-			runnable = false;
-			if (socket!=null)
-			{
-				try { socket.close(); }
-				catch(IOException ioe) {
-				    // empty
-				}
-			}
+			if (thread!=null) { throw new IllegalThreadStateException("Already started"); }
+			t = thread = Threads.factory("TACACS+", virtual).newThread(this);
 		}
+		t.start();
+	}
+
+
+	/** @return The thread reading the socket, or null if not yet started. */
+	public Thread getThread()
+	{
+		return thread;
 	}
 
+
+	/** @return A boolean indicating if the reading thread has started and not yet ended. */
+	public boolean isAlive()
+	{
+		Thread t = thread;
+		return t!=null && t.isAlive();
+	}
+
+
+	/** Interrupts the reading thread, if started. */
+	public void interrupt()
+	{
+		Thread t = thread;
+		if (t!=null) { t.interrupt(); }
+	}
+
+
 	/**
-	 * @return A boolean indicating if this connection can be reused
-	 * to create new sessions.  (Some servers may not support socket reuse, and so
-	 * you will need a new TracacsClient for subsequent communications.)
+	 * Waits for the reading thread to end, e.g. after shutdown(); returns at once if not started.
+	 * @throws InterruptedException if the calling thread is interrupted while waiting.
 	 */
-	public boolean isShutdown()
+	public void join() throws InterruptedException
 	{
-		return !runnable;
+		Thread t = thread;
+		if (t!=null) { t.join(); }
 	}
 
-	protected final void addSession(Session s)
+
+	/**
+	 * @param millis The longest time to wait, or 0 to wait forever.
+	 * @throws InterruptedException if the calling thread is interrupted while waiting.
+	 * @see #join()
+	 */
+	public void join(long millis) throws InterruptedException
 	{
-		synchronized(sessions) { sessions.add(s); }
+		Thread t = thread;
+		if (t!=null) { t.join(millis); }
+	}
+
+
+	@Override public void shutdown()
+	{
+		if (!isShutdown())
+		{
+			super.shutdown();
+			try { socket.close(); }
+			catch(IOException ioe) {
+			    // empty
+			}
+		}
 	}
 
 	/** Reads packets from server and dispatches them to sessions for handling. */
 	@Override public void run()
 	{
 		IOException error = null;
-		while(runnable)
+		while(!isShutdown())
 		{
 			try
 			{
-				Packet p = Packet.readNext(this, key, logger);
-				synchronized(sessions)
-				{
-					Session s = findSession(p.header.sessionID);
-					if (s!=null)
-					{
-						s.handlePacket(p);
-						if (s.isEnd())
-						{
-							sessions.remove(s);
-							if (!s.isSingleConnectMode())
-							{
-								error = new IOException("Not in 'single connect mode'.");
-								shutdown();
-							}
-						}
-					}
-					else if (logger != null) { logger.debug("TACACS: couldn't find session for: "+p); }
-				}
+				dispatch(Packet.readNext(this, key, logger));
 			}
 			catch (IOException e)
 			{
@@ -110,46 +156,107 @@ public class TacacsReader extends Thread
 			}
 		}
 		if (error==null) { error = new IOException("Shutdown"); }
-		synchronized(sessions)
-		{
-			for (Session s : sessions) { s.end(error); }
-			sessions.clear();
-		}
+		endSessions(error);
 	}
 
 
-	Session findSession(byte[] id)
+	public void readFully(byte[] bytes) throws IOException
 	{
-		synchronized(sessions)
-		{
-			for (Session s: sessions) { if (s.isID(id)) return s; }
-			return null;
-		}
+		din.readFully(bytes);
 	}
 
 
-	public void readFully(byte[] bytes) throws IOException
+	/**
+	 * Reads the next packet, header and (still ciphered) body, into the
+	 * decoder's reused buffer; only for the thread reading this connection.
+	 * @return The buffer, from the packet's start to its end; valid until the next call.
+	 * @throws IOException if the packet is larger than the maximum size; its
+	 *   body is left unread, so the connection can't be used any more.
+	 */
+	ByteBuffer readFrame() throws IOException
 	{
-		din.readFully(bytes);
+		din.readFully(decoder.frame().array(), 0, 12);
+		ByteBuffer f = decoder.frame(checkBodyLength(decoder.frame().getInt(8), getMaxPacketBytes()));
+		din.readFully(f.array(), 12, f.limit()-12);
+		return f;
 	}
 
 
-	public void write(Packet p) throws IOException
+	/**
+	 * Writes the packet, along with any others queued meanwhile by other
+	 * sessions.  Writers queue their packets, then take turns holding the
+	 * writeLock; the holder encodes every packet queued so far into the
+	 * connection's reused buffer, and writes them with one socket write.  So a
+	 * burst of pipelined sessions costs one system call, not one per packet;
+	 * the others find their packets already written when their turn comes.
+	 */
+	@Override public void write(Packet p) throws IOException
 	{
-		synchronized(out)
+		PendingWrite w = new PendingWrite(p);
+		writes.add(w);
+		writeLock.lock();
+		try
 		{
+			if (!w.done) { flushWrites(); }
+		}
+		finally { writeLock.unlock(); }
+		if (w.error instanceof IOException) { throw (IOException)w.error; }
+		if (w.error instanceof RuntimeException) { throw (RuntimeException)w.error; }
+	}
+
+
+	/** Writes every queued packet; called holding the writeLock. */
+	private void flushWrites()
+	{
+		buffer.reset();
+		PendingWrite w;
+		while ((w = writes.poll()) != null)
+		{
+			int mark = buffer.size();
 			try
 			{
-				p.write(out, key);
-				if (logger != null) { logger.debug("TX --> "+p); }
+				buffer.encode(w.packet, key);
+				batch.add(w);
+			}
+			catch (IOException | RuntimeException e)
+			{
+				// Only this packet is bad
+				buffer.truncate(mark);
+				w.error = e;
+				w.done = true;
 			}
-			catch(IOException e)
+		}
+		try
+		{
+			out.write(buffer.array(), 0, buffer.size());
+			out.flush();
+			for (PendingWrite b : batch)
 			{
-				shutdown();// try { socket.close(); } catch (IOException io) { }
-				throw e;
+				b.done = true;
+				if (logger != null) { logger.debug("TX --> "+b.packet); }
 			}
 		}
+		catch (IOException e)
+		{
+			for (PendingWrite b : batch) { b.error = e; b.done = true; }
+			shutdown();// try { socket.close(); } catch (IOException io) { }
+		}
+		finally
+		{
+			batch.clear();
+			buffer.trim();
+		}
 	}
 
 
+	/** A packet queued for write(); its fields are guarded by writeLock. */
+	private static final class PendingWrite
+	{
+		final Packet packet;
+		boolean done;
+		Exception error;
+
+		PendingWrite(Packet packet) { this.packet = packet; }
+	}
+
 }
@@ -0,0 +1,114 @@
+package com.augur.tacacs;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A java.nio Selector event loop that does the I/O for any number of
+ * NioTacacsReader connections on a single daemon thread, instead of the
+ * thread-per-socket used by TacacsReader.
+ * <p>
+ * All channel registration and interest changes happen on the loop's own
+ * thread; other threads just queue the connection via update() and wake the
+ * selector.
+ * </p>
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+class TacacsSelector implements Runnable
+{
+	private final Selector selector;
+	/** Connections needing registration, or an interest update after queuing writes. */
+	private final Queue<NioTacacsReader> updates;
+	private volatile boolean runnable;
+
+
+	TacacsSelector(String name) throws IOException
+	{
+		this.selector = Selector.open();
+		this.updates = new ConcurrentLinkedQueue<>();
+		this.runnable = true;
+		Thread t = new Thread(this, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+
+	/**
+	 * Asks the loop to (re)register the given connection's interests; thread-safe.
+	 * If the loop has stopped, the connection fails instead, rather than waiting
+	 * forever for a loop that will never register it.
+	 */
+	void update(NioTacacsReader r)
+	{
+		updates.add(r);
+		selector.wakeup();
+		// Once stopped, the loop drains the queue only once; whichever removes r fails it
+		if (!runnable && updates.remove(r)) { r.fail(new IOException("Selector shut down")); }
+	}
+
+
+	/** @return A boolean indicating if the loop is still running, so may take new connections. */
+	boolean isRunning()
+	{
+		return runnable;
+	}
+
+
+	void shutdown()
+	{
+		if (runnable)
+		{
+			runnable = false;
+			selector.wakeup();
+		}
+	}
+
+
+	@Override public void run()
+	{
+		while (runnable)
+		{
+			try
+			{
+				selector.select();
+				NioTacacsReader r;
+				while ((r = updates.poll()) != null) { r.register(selector); }
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); )
+				{
+					SelectionKey k = it.next();
+					it.remove();
+					r = (NioTacacsReader)k.attachment();
+					try
+					{
+						if (k.isReadable()) { r.onReadable(); }
+						if (k.isValid() && k.isWritable()) { r.onWritable(); }
+					}
+					catch (IOException | CancelledKeyException e)
+					{
+						r.fail(e instanceof IOException ? (IOException)e : new IOException("Shutdown"));
+					}
+				}
+			}
+			catch (IOException | ClosedSelectorException e)
+			{
+				runnable = false;
+			}
+		}
+		// Fail every connection still using this loop
+		for (SelectionKey k : selector.keys()) { ((NioTacacsReader)k.attachment()).fail(new IOException("Shutdown")); }
+		NioTacacsReader r;
+		while ((r = updates.poll()) != null) { r.fail(new IOException("Shutdown")); }
+		try { selector.close(); } catch (IOException e) {
+			// ignore
+		}
+	}
+
+}
@@ -31,15 +31,26 @@ public class TacacsServer extends TacacsReader
 
 
 
+	/**
+	 * Accepts connections forever, each read by its own thread.
+	 * @param args The secret key; then optionally "virtual" to read each
+	 *   connection on a virtual thread (JDK 21+), for very many concurrent
+	 *   connections, e.g. when simulating a large number of NAS clients, or
+	 *   "platform" not to; otherwise the "com.augur.tacacs.virtualThreads"
+	 *   system property decides.
+	 */
 	public static void main(String[] args) throws IOException, TimeoutException
 	{
 		String key = args[0];
+		boolean virtual = Threads.VIRTUAL_BY_DEFAULT;
+		if (args.length>1 && "virtual".equalsIgnoreCase(args[1])) { virtual = true; }
+		else if (args.length>1 && "platform".equalsIgnoreCase(args[1])) { virtual = false; }
 		try (ServerSocket ss = new ServerSocket(PORT_TACACS)) {
             while (true)
             {
             	Socket s = ss.accept();
             	TacacsServer ts = new TacacsServer(s, key, null);
-            	ts.start();
+            	ts.start(virtual);
             }
         }
 	}
@@ -0,0 +1,110 @@
+package com.augur.tacacs;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads that read connections, either as daemon platform threads
+ * or, on JDK 21 and later, as virtual threads.  Virtual threads are found by
+ * reflection, so this library still builds and runs on Java 8; where they
+ * aren't available, platform threads are used instead.
+ * <p>
+ * Virtual threads are opt-in: per TacacsClient (setVirtualThreads()), or for
+ * the whole JVM with the system property "com.augur.tacacs.virtualThreads=true".
+ * Code that may block on a virtual thread uses ReentrantLock rather than
+ * synchronized, which would pin the virtual thread to its carrier.
+ * </p>
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+final class Threads
+{
+	/** The default for new readers, from the "com.augur.tacacs.virtualThreads" system property. */
+	static final boolean VIRTUAL_BY_DEFAULT = Boolean.getBoolean("com.augur.tacacs.virtualThreads");
+
+	/**
+	 * Thread.ofVirtual(), Thread.Builder.name(String), Thread.Builder.factory(),
+	 * and Executors.newThreadPerTaskExecutor(ThreadFactory); null before JDK 21.
+	 */
+	private static final Method OF_VIRTUAL, NAME, FACTORY, THREAD_PER_TASK;
+	static
+	{
+		Method ofVirtual = null, name = null, factory = null, threadPerTask = null;
+		try
+		{
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			factory = builder.getMethod("factory");
+			threadPerTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+		}
+		catch (ClassNotFoundException | NoSuchMethodException e)
+		{
+			ofVirtual = null; // older JDK
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		FACTORY = factory;
+		THREAD_PER_TASK = threadPerTask;
+	}
+
+
+	private Threads() {}
+
+
+	/** @return A boolean indicating if this JVM supports virtual threads. */
+	static boolean isVirtualSupported()
+	{
+		return OF_VIRTUAL!=null;
+	}
+
+
+	/**
+	 * @param name The name for each new thread.
+	 * @param virtual A boolean indicating if virtual threads are wanted.
+	 * @return A factory of virtual threads, if wanted and supported; otherwise of daemon platform threads.
+	 */
+	static ThreadFactory factory(String name, boolean virtual)
+	{
+		if (virtual && OF_VIRTUAL!=null)
+		{
+			try { return (ThreadFactory)FACTORY.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), name)); }
+			catch (ReflectiveOperationException e) {
+				// fall back to platform threads
+			}
+		}
+		return r ->
+		{
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+
+	/**
+	 * Virtual threads are cheap to create and are not meant to be pooled, so
+	 * when they are wanted and supported, each task gets a new one; otherwise
+	 * idle daemon platform threads are cached for reuse.
+	 *
+	 * @param name The name for each new thread.
+	 * @param virtual A boolean indicating if virtual threads are wanted.
+	 * @return An executor running each task on a thread from factory(name, virtual).
+	 */
+	static ExecutorService executor(String name, boolean virtual)
+	{
+		ThreadFactory factory = factory(name, virtual);
+		if (virtual && OF_VIRTUAL!=null)
+		{
+			try { return (ExecutorService)THREAD_PER_TASK.invoke(null, factory); }
+			catch (ReflectiveOperationException e) {
+				// fall back to a cached pool
+			}
+		}
+		return Executors.newCachedThreadPool(factory);
+	}
+
+}
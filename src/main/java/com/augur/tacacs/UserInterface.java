@@ -1,5 +1,8 @@
 package com.augur.tacacs;
 import java.io.Console;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
 /**
  * This class handles interactive authentication requests; 
@@ -21,6 +24,25 @@ public abstract class UserInterface
 	public abstract String getUserInput(String prompt, boolean noEcho, TAC_PLUS.AUTHEN.STATUS getWhat);
 	
 	
+	/**
+	 * Asks for the user's input without blocking the connection's reader thread,
+	 * which is shared by every session on the connection.  The default
+	 * implementation just runs getUserInput() on the given executor; user
+	 * interfaces that are naturally asynchronous (e.g. a web form) may override
+	 * this to complete the returned stage when the user answers.
+	 * 
+	 * @param prompt The prompt to be shown to the user, e.g. "Password:"
+	 * @param noEcho A boolean indicating if the human user's input should not be echoed to the screen.
+	 * @param getWhat The TAC_PLUS.AUTHEN.STATUS, used to determine what type of information is requested.
+	 * @param executor The session's executor, for running blocking prompts.
+	 * @return A stage completed with the user's input; completing exceptionally aborts the login.
+	 */
+	public CompletionStage<String> getUserInputAsync(String prompt, boolean noEcho, TAC_PLUS.AUTHEN.STATUS getWhat, Executor executor)
+	{
+		return CompletableFuture.supplyAsync(() -> getUserInput(prompt, noEcho, getWhat), executor);
+	}
+	
+	
 	/**
 	 * @return The username given to this UserInterface; possibly null if not yet collected.
 	 */
@@ -0,0 +1,226 @@
+package com.augur.tacacs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Recovery of an AccountingSpool reopened on the directory of a previous one.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class AccountingSpoolTest
+{
+	/** The smallest segment allowed, so a few hundred records span several. */
+	private static final int SEGMENT_BYTES = 1<<16;
+
+	@Rule public TemporaryFolder folder = new TemporaryFolder();
+
+
+	@Test public void reopenedSpoolReplaysWhatWasSpilled() throws IOException
+	{
+		File dir = folder.newFolder();
+		try (AccountingSpool spool = new AccountingSpool(dir, SEGMENT_BYTES, 4L*SEGMENT_BYTES))
+		{
+			for (int i=0; i<5; i++) { spool.spill(record("user"+i)); }
+		}
+		try (AccountingSpool spool = new AccountingSpool(dir, SEGMENT_BYTES, 4L*SEGMENT_BYTES))
+		{
+			assertEquals(names("user0", "user1", "user2", "user3", "user4"), replayAll(spool));
+		}
+	}
+
+
+	@Test public void recordWithoutUsernameReplaysAsEmpty() throws IOException
+	{
+		File dir = folder.newFolder();
+		try (AccountingSpool spool = new AccountingSpool(dir, SEGMENT_BYTES, 4L*SEGMENT_BYTES))
+		{
+			spool.spill(record(null));
+			AccountingSubmitter.Record r = spool.replay();
+			assertEquals("", r.getUsername()); // not null, which a new AcctRequest can't encode
+			spool.acknowledge(r);
+			assertNull(spool.replay());
+		}
+	}
+
+
+	@Test public void reopenedSpoolResumesFromCheckpoint() throws IOException
+	{
+		File dir = folder.newFolder();
+		try (AccountingSpool spool = new AccountingSpool(dir, SEGMENT_BYTES, 4L*SEGMENT_BYTES))
+		{
+			for (int i=0; i<6; i++) { spool.spill(record("user"+i)); }
+			AccountingSubmitter.Record r0 = spool.replay(), r1 = spool.replay(), r2 = spool.replay(), r3 = spool.replay();
+			spool.acknowledge(r0);
+			spool.acknowledge(r1);
+			spool.acknowledge(r3); // r2 was replayed, but never acknowledged
+			assertEquals("user2", r2.getUsername());
+		}
+		try (AccountingSpool spool = new AccountingSpool(dir, SEGMENT_BYTES, 4L*SEGMENT_BYTES))
+		{
+			// From the oldest record not acknowledged; so user3 is replayed again
+			assertEquals(names("user2", "user3", "user4", "user5"), replayAll(spool));
+		}
+	}
+
+
+	@Test public void tornRecordIsNeverReplayedAndIsOverwritten() throws IOException
+	{
+		File dir = folder.newFolder();
+		try (AccountingSpool spool = new AccountingSpool(dir, SEGMENT_BYTES, 4L*SEGMENT_BYTES))
+		{
+			for (int i=0; i<3; i++) { spool.spill(record("user"+i)); }
+		}
+		// As if the JVM died while appending: the length is written, but not all of the record
+		File segment = new File(dir, "acct-0000000000.spool");
+		try (RandomAccessFile raf = new RandomAccessFile(segment, "rw"))
+		{
+			int end = endOfRecords(raf);
+			raf.seek(end);
+			raf.writeInt(100);
+			raf.writeInt(0x12345678);
+			raf.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+		}
+		try (AccountingSpool spool = new AccountingSpool(dir, SEGMENT_BYTES, 4L*SEGMENT_BYTES))
+		{
+			spool.spill(record("after"));
+			assertEquals(names("user0", "user1", "user2", "after"), replayAll(spool));
+		}
+	}
+
+
+	@Test public void corruptRecordSkipsRestOfSegment() throws IOException
+	{
+		File dir = folder.newFolder();
+		try (AccountingSpool spool = new AccountingSpool(dir, SEGMENT_BYTES, 4L*SEGMENT_BYTES))
+		{
+			for (int i=0; i<3; i++) { spool.spill(record("user"+i)); }
+		}
+		File segment = new File(dir, "acct-0000000000.spool");
+		try (RandomAccessFile raf = new RandomAccessFile(segment, "rw"))
+		{
+			raf.seek(4); // the first record's CRC
+			raf.writeInt(raf.readInt() ^ 1);
+		}
+		try (AccountingSpool spool = new AccountingSpool(dir, SEGMENT_BYTES, 4L*SEGMENT_BYTES))
+		{
+			assertEquals(new ArrayList<String>(), replayAll(spool));
+			spool.spill(record("after"));
+			assertEquals(names("after"), replayAll(spool));
+		}
+	}
+
+
+	@Test public void acknowledgedSegmentsAreDeleted() throws IOException
+	{
+		File dir = folder.newFolder();
+		int count = 0;
+		try (AccountingSpool spool = new AccountingSpool(dir, SEGMENT_BYTES, 4L*SEGMENT_BYTES))
+		{
+			while (segmentFiles(dir) < 3) { spool.spill(record("user"+(count++))); }
+			// Replay and acknowledge the first segment's records, until it is deleted
+			List<AccountingSubmitter.Record> replayed = new ArrayList<>();
+			AccountingSubmitter.Record r;
+			while ((r = spool.replay()) != null)
+			{
+				replayed.add(r);
+				spool.acknowledge(r);
+				if (segmentFiles(dir) < 3) { break; }
+			}
+			assertEquals(2, segmentFiles(dir));
+			assertFalse(new File(dir, "acct-0000000000.spool").exists());
+			int next = replayed.size();
+			spool.close();
+			try (AccountingSpool reopened = new AccountingSpool(dir, SEGMENT_BYTES, 4L*SEGMENT_BYTES))
+			{
+				List<String> rest = replayAll(reopened);
+				assertEquals(count-next, rest.size());
+				assertEquals("user"+next, rest.get(0));
+				assertEquals("user"+(count-1), rest.get(rest.size()-1));
+			}
+		}
+	}
+
+
+	@Test public void fullSpoolRefusesRecords() throws IOException
+	{
+		File dir = folder.newFolder();
+		try (AccountingSpool spool = new AccountingSpool(dir, SEGMENT_BYTES, 2L*SEGMENT_BYTES))
+		{
+			try
+			{
+				for (int i=0; i<100000; i++) { spool.spill(record("user"+i)); }
+				fail("Expected the spool to fill up");
+			}
+			catch (IOException e) { assertTrue(e.getMessage().startsWith("Accounting spool full")); }
+			assertEquals(2, segmentFiles(dir));
+		}
+	}
+
+
+	private static AccountingSubmitter.Record record(String username)
+	{
+		return new AccountingSubmitter.Record(TAC_PLUS.ACCT.FLAG.START.code(), username, new Argument[] { new Argument("service=shell"), new Argument("task_id=1") });
+	}
+
+
+	/** Replays, and acknowledges, every record left. */
+	private static List<String> replayAll(AccountingSpool spool) throws IOException
+	{
+		List<String> names = new ArrayList<>();
+		AccountingSubmitter.Record r;
+		while ((r = spool.replay()) != null)
+		{
+			names.add(r.getUsername());
+			assertEquals(TAC_PLUS.ACCT.FLAG.START.code(), r.getFlags());
+			assertEquals(2, r.getArguments().length);
+			spool.acknowledge(r);
+		}
+		assertNull(spool.replay());
+		return names;
+	}
+
+
+	private static List<String> names(String... names)
+	{
+		List<String> list = new ArrayList<>();
+		for (String n : names) { list.add(n); }
+		return list;
+	}
+
+
+	/** @return The offset after the last record in the segment file. */
+	private static int endOfRecords(RandomAccessFile raf) throws IOException
+	{
+		int offset = 0;
+		while (true)
+		{
+			raf.seek(offset);
+			int length = raf.readInt();
+			if (length == 0) { return offset; }
+			offset += 8 + length;
+		}
+	}
+
+
+	private static int segmentFiles(File dir)
+	{
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".spool"));
+		return (files == null) ? 0 : files.length;
+	}
+
+}
@@ -0,0 +1,234 @@
+package com.augur.tacacs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * AccountingSubmitter against a local server: retries after ERROR but not
+ * after a time-out, each Backpressure policy once the sessions in flight and
+ * the queue are full, close() draining the records accepted, and a record that
+ * can't be encoded not disturbing the others on its connection.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class AccountingSubmitterTest
+{
+	private static final byte START = TAC_PLUS.ACCT.FLAG.START.code();
+
+	private FakeServer server;
+	private TacacsClient client;
+	/** Holds the server's replies, until opened. */
+	private final CountDownLatch gate = new CountDownLatch(1);
+
+
+	@After public void tearDown() throws Exception
+	{
+		gate.countDown();
+		if (client != null) { client.shutdown(); }
+		if (server != null) { server.close(); }
+	}
+
+
+	@Test public void recordsSent() throws Exception
+	{
+		AccountingSubmitter submitter = submitter(TAC_PLUS.ACCT.STATUS.SUCCESS, 10, 2, AccountingSubmitter.Backpressure.BLOCK);
+		gate.countDown();
+		for (int i=0; i<5; i++) { assertTrue(submitter.submit(START, "user"+i, args())); }
+		assertTrue(submitter.close(10000));
+		assertEquals(5, submitter.getSent());
+		assertEquals(5, server.received().size());
+		assertEquals(0, submitter.getPending());
+	}
+
+
+	@Test public void retriedAfterError() throws Exception
+	{
+		AccountingSubmitter submitter = submitter(TAC_PLUS.ACCT.STATUS.ERROR, 10, 2, AccountingSubmitter.Backpressure.BLOCK);
+		submitter.setRetry(3, 10);
+		submitter.submit(START, "alice", args());
+		assertTrue(submitter.close(10000));
+		assertEquals(3, server.received().size());
+		assertEquals(2, submitter.getRetried());
+		assertEquals(1, submitter.getFailed());
+		assertEquals(0, submitter.getSent());
+	}
+
+
+	@Test public void notRetriedAfterTimeout() throws Exception
+	{
+		server = new FakeServer(request -> null); // never replies
+		client = new TacacsClient(server.host(), FakeServer.KEY, 5000, true);
+		client.setReplyTimeoutMillis(200);
+		AccountingSubmitter submitter = client.newAccountingSubmitter(10, 2, AccountingSubmitter.Backpressure.BLOCK);
+		submitter.setRetry(3, 10);
+		submitter.submit(START, "alice", args());
+		assertTrue(submitter.close(10000));
+		assertEquals(1, server.received().size()); // the server may have recorded it
+		assertEquals(0, submitter.getRetried());
+		assertEquals(1, submitter.getFailed());
+	}
+
+
+	@Test public void dropOldestWhenFull() throws Exception
+	{
+		AccountingSubmitter submitter = submitter(TAC_PLUS.ACCT.STATUS.SUCCESS, 2, 1, AccountingSubmitter.Backpressure.DROP_OLDEST);
+		fill(submitter);
+		assertTrue(submitter.submit(START, "user3", args()));
+		assertEquals(1, submitter.getDropped());
+		gate.countDown();
+		assertTrue(submitter.close(10000));
+		assertEquals(3, submitter.getSent());
+		assertEquals(names("user0", "user2", "user3"), names(server.received()));
+	}
+
+
+	@Test public void spillWhenFull() throws Exception
+	{
+		AccountingSubmitter submitter = submitter(TAC_PLUS.ACCT.STATUS.SUCCESS, 2, 1, AccountingSubmitter.Backpressure.SPILL);
+		List<String> spilled = spill(submitter);
+		fill(submitter);
+		assertTrue(submitter.submit(START, "user3", args()));
+		assertEquals(names("user3"), spilled);
+		assertEquals(1, submitter.getSpilled());
+		gate.countDown();
+		assertTrue(submitter.close(10000));
+		assertEquals(3, submitter.getSent());
+	}
+
+
+	@Test public void blockWhenFull() throws Exception
+	{
+		AccountingSubmitter submitter = submitter(TAC_PLUS.ACCT.STATUS.SUCCESS, 2, 1, AccountingSubmitter.Backpressure.BLOCK);
+		fill(submitter);
+		CountDownLatch submitted = new CountDownLatch(1);
+		Thread t = new Thread(() ->
+		{
+			submitter.submit(START, "user3", args());
+			submitted.countDown();
+		});
+		t.start();
+		assertFalse(submitted.await(300, TimeUnit.MILLISECONDS)); // waiting for room in the queue
+		gate.countDown();
+		assertTrue(submitted.await(10, TimeUnit.SECONDS));
+		assertTrue(submitter.close(10000));
+		assertEquals(4, submitter.getSent());
+		assertEquals(0, submitter.getDropped());
+	}
+
+
+	@Test public void closeWaitsForRecordsAccepted() throws Exception
+	{
+		AccountingSubmitter submitter = submitter(TAC_PLUS.ACCT.STATUS.SUCCESS, 10, 1, AccountingSubmitter.Backpressure.BLOCK);
+		fill(submitter);
+		new Thread(() ->
+		{
+			try { Thread.sleep(300); }
+			catch (InterruptedException e) { /* open now */ }
+			gate.countDown();
+		}).start();
+		assertTrue(submitter.close(10000));
+		assertEquals(3, submitter.getSent());
+		assertFalse(submitter.submit(START, "late", args()));
+		assertEquals(1, submitter.getDropped());
+	}
+
+
+	@Test public void closeTimeoutSpillsRecordsUnsent() throws Exception
+	{
+		AccountingSubmitter submitter = submitter(TAC_PLUS.ACCT.STATUS.SUCCESS, 10, 1, AccountingSubmitter.Backpressure.BLOCK);
+		List<String> spilled = spill(submitter);
+		fill(submitter);
+		assertFalse(submitter.close(300));
+		assertEquals(names("user1", "user2"), spilled);
+		assertEquals(0, submitter.getSent());
+		assertEquals(1, submitter.getPending()); // user0, still in flight
+	}
+
+
+	@Test public void badRecordLeavesSharedConnectionOpen() throws Exception
+	{
+		AccountingSubmitter submitter = submitter(TAC_PLUS.ACCT.STATUS.SUCCESS, 10, 2, AccountingSubmitter.Backpressure.BLOCK);
+		submitter.submit(START, "alice", args());
+		server.awaitReceived(1); // in flight on the shared connection
+		submitter.submit(START, null, args()); // can't be encoded
+		long giveUpAt = System.currentTimeMillis() + 10000;
+		while (submitter.getFailed() == 0)
+		{
+			if (System.currentTimeMillis() > giveUpAt) { fail("Bad record never failed"); }
+			Thread.sleep(10);
+		}
+		gate.countDown();
+		assertTrue(submitter.close(10000));
+		assertEquals(1, submitter.getSent());
+		assertEquals(1, submitter.getFailed());
+		assertEquals(0, submitter.getRetried());
+		assertEquals(1, server.connections.get());
+	}
+
+
+	/** @return A submitter of a single-connect client, whose server replies with the status once the gate opens. */
+	private AccountingSubmitter submitter(TAC_PLUS.ACCT.STATUS status, int capacity, int maxInFlight, AccountingSubmitter.Backpressure backpressure) throws Exception
+	{
+		boolean gated = (status == TAC_PLUS.ACCT.STATUS.SUCCESS);
+		server = new FakeServer(request ->
+		{
+			if (gated) { gate.await(); }
+			return FakeServer.acct(request, status);
+		});
+		client = new TacacsClient(server.host(), FakeServer.KEY, 5000, true);
+		return client.newAccountingSubmitter(capacity, maxInFlight, backpressure);
+	}
+
+
+	/** Fills a submitter, with one session in flight and a queue of 2: user0 is sent, and user1 and user2 are queued. */
+	private void fill(AccountingSubmitter submitter) throws Exception
+	{
+		assertTrue(submitter.submit(START, "user0", args()));
+		server.awaitReceived(1);
+		assertTrue(submitter.submit(START, "user1", args()));
+		assertTrue(submitter.submit(START, "user2", args()));
+	}
+
+
+	/** @return The usernames given to the submitter's new Spill. */
+	private static List<String> spill(AccountingSubmitter submitter)
+	{
+		List<String> spilled = new CopyOnWriteArrayList<>();
+		submitter.setSpill(record -> spilled.add(record.getUsername()));
+		return spilled;
+	}
+
+
+	private static Argument[] args()
+	{
+		return new Argument[] { new Argument("task_id=1"), new Argument("service=shell") };
+	}
+
+
+	private static List<String> names(String... names)
+	{
+		return Arrays.asList(names);
+	}
+
+
+	private static List<String> names(List<Packet> requests)
+	{
+		List<String> names = new ArrayList<>();
+		for (Packet p : requests) { names.add(((AcctRequest)p).user); }
+		return names;
+	}
+
+}
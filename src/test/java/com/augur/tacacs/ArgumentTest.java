@@ -0,0 +1,144 @@
+package com.augur.tacacs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parsing an Argument, from a String or straight from the bytes of a packet:
+ * the two agree on separators, missing separators, and empty attributes or
+ * values; common attribute names are interned; and requests with fields or
+ * arguments of 128 bytes or more (whose length bytes are negative if signed)
+ * decode as sent.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class ArgumentTest
+{
+	private static final byte[] KEY = "testkey".getBytes(StandardCharsets.UTF_8);
+
+
+	@Test public void separators()
+	{
+		assertArgument("service", "shell", false, "service=shell");
+		assertArgument("acl", "5", true, "acl*5");
+		assertArgument("a", "b*c", false, "a=b*c"); // the first separator counts
+		assertArgument("a", "b=c", true, "a*b=c");
+	}
+
+
+	@Test public void missingSeparator()
+	{
+		assertArgument("noescape", null, false, "noescape");
+		assertEquals("noescape=", new Argument("noescape").toString()); // sent with '=', as always
+	}
+
+
+	@Test public void emptyParts()
+	{
+		assertArgument("cmd", "", false, "cmd=");
+		assertArgument("cmd", "", true, "cmd*");
+		assertArgument("", "x", false, "=x");
+		assertArgument("", null, false, "");
+	}
+
+
+	@Test public void multiByteCharacters()
+	{
+		assertArgument("x-na\u00efve", "\u65e5\u672c\u8a9e", false, "x-na\u00efve=\u65e5\u672c\u8a9e");
+		assertArgument("\u00fc", "*\u00e9", true, "\u00fc**\u00e9");
+	}
+
+
+	@Test public void commonNamesInterned()
+	{
+		String name = new String("priv-lvl".toCharArray()); // not the literal
+		assertSame(Argument.intern("priv-lvl"), Argument.intern(name));
+		assertSame(new Argument("priv-lvl=15").getAttribute(), parse("priv-lvl=1").getAttribute());
+		assertSame(new Argument("task_id=7").getAttribute(), parse("task_id=8").getAttribute());
+		assertEquals("x-custom", parse("x-custom=1").getAttribute());
+	}
+
+
+	@Test public void bytesCached()
+	{
+		Argument a = new Argument("service", "na\u00efve", true);
+		assertArrayEquals("service*na\u00efve".getBytes(StandardCharsets.UTF_8), a.bytes());
+		assertSame(a.bytes(), a.bytes());
+	}
+
+
+	@Test public void longFieldsDecoded() throws Exception
+	{
+		String user = repeat('u', 200), port = repeat('p', 128), remAddr = repeat('r', 255);
+		Argument[] args = { new Argument("service=shell"), new Argument("cmd-arg", repeat('a', 180), false), new Argument("x", repeat('b', 253), true) };
+		Header header = new Header((byte)0, TAC_PLUS.PACKET.VERSION.v13_0, TAC_PLUS.PACKET.TYPE.AUTHOR, new byte[] { 1, 2, 3, 4 });
+		AuthorRequest sent = new AuthorRequest(header, TAC_PLUS.AUTHEN.METH.TACACSPLUS, TAC_PLUS.PRIV_LVL.USER.code(), TAC_PLUS.AUTHEN.TYPE.PAP,
+			TAC_PLUS.AUTHEN.SVC.LOGIN, user, port, remAddr, args);
+		AuthorRequest received = (AuthorRequest)decodeRequest(sent);
+		assertEquals(user, received.user);
+		assertEquals(port, received.port);
+		assertEquals(remAddr, received.rem_addr);
+		assertEquals(Arrays.toString(args), Arrays.toString(received.arguments));
+
+		header = new Header((byte)0, TAC_PLUS.PACKET.VERSION.v13_0, TAC_PLUS.PACKET.TYPE.ACCT, new byte[] { 1, 2, 3, 4 });
+		AcctRequest record = new AcctRequest(header, TAC_PLUS.ACCT.FLAG.START.code(), TAC_PLUS.AUTHEN.METH.TACACSPLUS, TAC_PLUS.PRIV_LVL.USER.code(),
+			TAC_PLUS.AUTHEN.TYPE.PAP, TAC_PLUS.AUTHEN.SVC.LOGIN, user, port, remAddr, args);
+		AcctRequest recorded = (AcctRequest)decodeRequest(record);
+		assertEquals(user, recorded.user);
+		assertEquals(remAddr, recorded.rem_addr);
+		assertEquals(Arrays.toString(args), Arrays.toString(recorded.getArguments()));
+		assertEquals(repeat('a', 180), recorded.getValue("cmd-arg"));
+	}
+
+
+	/** Asserts that both parsers give the argument; the bytes are parsed in place, within a larger array. */
+	private static void assertArgument(String attribute, String value, boolean optional, String arg)
+	{
+		for (Argument a : new Argument[] { new Argument(arg), parse(arg) })
+		{
+			assertEquals(attribute, a.getAttribute());
+			assertEquals(value, a.getValue());
+			if (optional) { assertTrue(a.isOptional()); }
+			else { assertFalse(a.isOptional()); }
+		}
+	}
+
+
+	private static Argument parse(String arg)
+	{
+		byte[] b = arg.getBytes(StandardCharsets.UTF_8);
+		byte[] body = new byte[b.length+6];
+		Arrays.fill(body, (byte)'=');
+		System.arraycopy(b, 0, body, 3, b.length);
+		return new Argument(body, 3, b.length);
+	}
+
+
+	private static Packet decodeRequest(Packet p) throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		p.write(out, KEY);
+		return Packet.readNextRequest(new DataInputStream(new ByteArrayInputStream(out.toByteArray())), KEY);
+	}
+
+
+	private static String repeat(char c, int n)
+	{
+		char[] chars = new char[n];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+}
@@ -0,0 +1,80 @@
+package com.augur.tacacs;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The logins cached by authenticatePapAsync(), whose scrypt hashing is done
+ * off the calling thread: a PASS is cached, so the same login is answered
+ * without the server, but an ERROR isn't, nor hashed.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class AuthenticationCacheTest
+{
+	private FakeServer server;
+	private TacacsClient client;
+
+
+	@After public void tearDown() throws Exception
+	{
+		if (client != null) { client.shutdown(); }
+		if (server != null) { server.close(); }
+	}
+
+
+	@Test public void passCachedAsync() throws Exception
+	{
+		AuthenticationCache cache = client(TAC_PLUS.AUTHEN.STATUS.PASS);
+		assertTrue(client.authenticatePapAsync("alice", "secret").get().isOK());
+		awaitCached(cache, "alice");
+		assertTrue(client.authenticatePapAsync("alice", "secret").get().isOK());
+		assertEquals(1, server.received().size());
+		assertEquals(1, cache.getHits());
+
+		assertTrue(client.authenticatePapAsync("alice", "other").get().isOK()); // a different password misses
+		assertEquals(2, server.received().size());
+	}
+
+
+	@Test public void errorNotCached() throws Exception
+	{
+		AuthenticationCache cache = client(TAC_PLUS.AUTHEN.STATUS.ERROR);
+		assertEquals(TAC_PLUS.AUTHEN.STATUS.ERROR, client.authenticate_PAP("alice", "secret").status);
+		assertEquals(TAC_PLUS.AUTHEN.STATUS.ERROR, client.authenticatePapAsync("alice", "secret").get().status);
+		Thread.sleep(200); // any hashing would be done by now
+		assertFalse(cache.has("alice"));
+		assertEquals(2, server.received().size());
+		assertEquals(2, cache.getMisses());
+	}
+
+
+	/** @return The cache of a new client, whose server replies to every login with the status. */
+	private AuthenticationCache client(TAC_PLUS.AUTHEN.STATUS status) throws Exception
+	{
+		server = new FakeServer(request -> FakeServer.authen(request, status));
+		client = new TacacsClient(server.host(), FakeServer.KEY, 5000, true);
+		AuthenticationCache cache = new AuthenticationCache(100, 60000, 0);
+		client.setAuthenticationCache(cache);
+		return cache;
+	}
+
+
+	/** Waits for the login to be cached, which is done after the reply is completed. */
+	private static void awaitCached(AuthenticationCache cache, String username) throws InterruptedException
+	{
+		long giveUpAt = System.currentTimeMillis() + 10000;
+		while (!cache.has(username))
+		{
+			if (System.currentTimeMillis() > giveUpAt) { fail("Login never cached"); }
+			Thread.sleep(5);
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+package com.augur.tacacs;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * The invalidation of AuthorizationCache: a reply to a request sent before its
+ * user's invalidation isn't cached, while other users' replies still are; and
+ * its keys, so a reply isn't shared by requests with other common arguments.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class AuthorizationCacheTest
+{
+	private static final AuthorReply PASS = new AuthorReply(new Header((byte)0, TAC_PLUS.PACKET.VERSION.v13_0, TAC_PLUS.PACKET.TYPE.AUTHOR, new byte[4]),
+		TAC_PLUS.AUTHOR.STATUS.PASS_ADD, null, null, new Argument[0]);
+	/** The test clients' server, as in their keys; nothing listens on port 1. */
+	private static final String SERVERS = "127.0.0.1:1";
+
+
+	@Test public void invalidatingUserSkipsOnlyThatUsersReplyInFlight()
+	{
+		AuthorizationCache cache = new AuthorizationCache(100, 60000, 0);
+		long generation = cache.generation(); // both requests sent
+		cache.invalidate("alice");
+		cache.put(key("alice"), PASS, generation);
+		cache.put(key("bob"), PASS, generation);
+		assertNull(cache.get(key("alice")));
+		assertSame(PASS, cache.get(key("bob")));
+
+		cache.put(key("alice"), PASS, cache.generation()); // sent after the invalidation
+		assertNotNull(cache.get(key("alice")));
+	}
+
+
+	@Test public void invalidatingAllSkipsEveryReplyInFlight()
+	{
+		AuthorizationCache cache = new AuthorizationCache(100, 60000, 0);
+		long generation = cache.generation();
+		cache.invalidate("alice");
+		cache.invalidateAll();
+		cache.put(key("bob"), PASS, generation);
+		assertNull(cache.get(key("bob")));
+	}
+
+
+	@Test public void forgottenInvalidationStillSkipsReplyInFlight()
+	{
+		AuthorizationCache cache = new AuthorizationCache(2, 60000, 0);
+		long generation = cache.generation();
+		cache.invalidate("alice");
+		cache.invalidate("bob");
+		cache.invalidate("carol"); // alice's invalidation is forgotten, to bound the memory used
+		cache.put(key("alice"), PASS, generation);
+		assertNull(cache.get(key("alice")));
+	}
+
+
+	@Test public void replyNotSharedWithOtherCommonArguments() throws Exception
+	{
+		AuthorizationCache cache = new AuthorizationCache(100, 60000, 0);
+		TacacsClient shell = client(cache, "service=shell");
+		TacacsClient ppp = client(cache, "service=ppp");
+		cache.put(key("alice"), PASS, cache.generation()); // as cached by shell
+		assertSame(PASS, shell.authorize("alice", new Argument[0]));
+		assertNotSent(ppp);
+		shell.setCommonArguments(new Argument("service=ppp"));
+		assertNotSent(shell);
+		shell.setCommonArguments(new Argument("service=shell"));
+		assertSame(PASS, shell.authorize("alice", new Argument[0]));
+	}
+
+
+	@Test public void replyNotSharedWithOtherServers() throws Exception
+	{
+		AuthorizationCache cache = new AuthorizationCache(100, 60000, 0);
+		TacacsClient other = new TacacsClient("127.0.0.1:2", "test key", 1000, true);
+		other.setCommonArguments(new Argument("service=shell"));
+		other.setAuthorizationCache(cache);
+		cache.put(key("alice"), PASS, cache.generation());
+		assertNotSent(other);
+	}
+
+
+	/** A client of a server that refuses connections, so a request not answered from the cache fails. */
+	private static TacacsClient client(AuthorizationCache cache, String common)
+	{
+		TacacsClient c = new TacacsClient(SERVERS, "test key", 1000, true);
+		c.setCommonArguments(new Argument(common));
+		c.setAuthorizationCache(cache);
+		return c;
+	}
+
+
+	private static void assertNotSent(TacacsClient c) throws Exception
+	{
+		try
+		{
+			c.authorize("alice", new Argument[0]);
+			fail("Expected a cache miss, and a failure to connect");
+		}
+		catch (IOException e) { /* not answered from the cache */ }
+		finally { c.shutdown(); }
+	}
+
+
+	private static AuthorizationCache.Key key(String username)
+	{
+		return new AuthorizationCache.Key(SERVERS, username, TAC_PLUS.AUTHEN.METH.TACACSPLUS, TAC_PLUS.AUTHEN.TYPE.PAP, TAC_PLUS.AUTHEN.SVC.LOGIN,
+			new Argument[] { new Argument("service=shell") });
+	}
+
+}
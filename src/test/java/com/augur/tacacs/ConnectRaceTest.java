@@ -0,0 +1,203 @@
+package com.augur.tacacs;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The connection race of ConnectRace: the first host to connect wins and its
+ * channel is kept, while the others are closed, their reservations abandoned,
+ * and their circuit breakers released; only a failed attempt counts against
+ * its host.  And TacacsClient releases the hosts it reserved to race, if the
+ * caller is interrupted before the race is run.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class ConnectRaceTest
+{
+	private final List<AutoCloseable> closeables = new ArrayList<>();
+
+
+	@After public void tearDown() throws Exception
+	{
+		for (AutoCloseable c : closeables) { c.close(); }
+	}
+
+
+	@Test public void winnerKeptLosersClosed() throws Exception
+	{
+		ServerSocket a = listen(), b = listen();
+		HostPool unreachable = pool(blackhole()), poolA = pool(a), poolB = pool(b);
+		List<HostPool> pools = Arrays.asList(unreachable, poolA, poolB);
+		ConnectRace race = new ConnectRace(pools, 0, 10000, null, null); // all started at once
+		SocketChannel channel = race.run();
+		closeables.add(channel);
+		HostPool winner = race.winner();
+		assertTrue(winner==poolA || winner==poolB);
+		assertTrue(channel.isConnected());
+		assertEquals(winner.port, ((InetSocketAddress)channel.getRemoteAddress()).getPort());
+
+		assertEquals(1, winner.getOutstanding()); // still reserved, for the caller to complete
+		for (HostPool p : pools)
+		{
+			assertFalse(p.health.isDown()); // losing isn't a failure
+			if (p==winner) { continue; }
+			assertEquals(0, p.getOutstanding());
+			assertTrue(p.health.tryAcquire()); // nor is the probe left taken
+		}
+
+		Socket won = accept(winner==poolA ? a : b);
+		won.setSoTimeout(200);
+		try
+		{
+			won.getInputStream().read();
+			fail("Expected the winning connection to stay open");
+		}
+		catch (SocketTimeoutException e) { /* open, and idle */ }
+		Socket lost = accept(winner==poolA ? b : a); // null if never started, e.g. the winner connected at once
+		if (lost != null) { assertEquals(-1, lost.getInputStream().read()); }
+	}
+
+
+	@Test public void failedAttemptCountedAndNextStartedAtOnce() throws Exception
+	{
+		HostPool refused = pool(closedPort()), live = pool(listen());
+		long start = System.currentTimeMillis();
+		ConnectRace race = new ConnectRace(Arrays.asList(refused, live), 10000, 10000, null, null);
+		closeables.add(race.run());
+		assertSame(live, race.winner());
+		assertTrue(System.currentTimeMillis()-start < 5000); // not after the stagger delay
+		assertTrue(refused.health.isDown());
+		assertEquals(0, refused.getOutstanding());
+		assertFalse(live.health.isDown());
+	}
+
+
+	@Test public void deadlineReleasesUnsettled() throws Exception
+	{
+		HostPool unreachable = pool(blackhole());
+		try
+		{
+			new ConnectRace(Arrays.asList(unreachable), 50, 10000, Deadline.after(200), null).run();
+			fail("Expected the deadline to expire");
+		}
+		catch (SocketTimeoutException e) { /* expected */ }
+		assertEquals(0, unreachable.getOutstanding());
+		assertFalse(unreachable.health.isDown()); // cut short; not the server's fault
+		assertTrue(unreachable.health.tryAcquire());
+	}
+
+
+	@Test public void interruptedLeaseReleasesRacingHosts() throws Exception
+	{
+		ServerSocket first = listen(), second = listen();
+		TacacsClient client = new TacacsClient("127.0.0.1:"+first.getLocalPort()+", 127.0.0.1:"+second.getLocalPort(), FakeServer.KEY, 5000, true);
+		closeables.add(client::shutdown);
+		client.setConnectStaggerMillis(50);
+		client.setCircuitBreaker(1, 50, 60000);
+		HostPool racing = client.pools[0], busy = client.pools[1];
+		assertTrue(racing.health.tryAcquire());
+		racing.health.failed(); // down, until a probe after the back-off
+		assertNull(busy.lease(true, null)); // another caller is opening the only connection allowed
+		Thread.sleep(100);
+
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		Thread caller = new Thread(() ->
+		{
+			try { client.newSession(TAC_PLUS.AUTHEN.SVC.LOGIN, "console", "localhost", TAC_PLUS.PRIV_LVL.USER.code()); }
+			catch (Throwable t) { error.set(t); }
+		});
+		caller.start();
+		long giveUpAt = System.currentTimeMillis() + 10000;
+		while (racing.getOutstanding()==0 || (caller.getState()!=Thread.State.WAITING && caller.getState()!=Thread.State.TIMED_WAITING))
+		{ // reserved the probe of the first, and waiting on the second
+			if (System.currentTimeMillis() > giveUpAt) { fail("Never waited for the busy host"); }
+			Thread.sleep(10);
+		}
+		caller.interrupt();
+		caller.join(10000);
+		assertTrue(String.valueOf(error.get()), error.get() instanceof IOException);
+		assertEquals(0, racing.getOutstanding());
+		assertTrue(racing.health.tryAcquire()); // the probe is free for the next caller
+		busy.abandoned();
+	}
+
+
+	private HostPool pool(ServerSocket server)
+	{
+		HostPool pool = new HostPool("127.0.0.1", server.getLocalPort(), FakeServer.KEY);
+		pool.health.configure(1, 60000, 60000);
+		try { assertNull(pool.lease(false, null)); } // reserves a pending connection, as TacacsClient does
+		catch (IOException e) { throw new AssertionError(e); }
+		assertTrue(pool.health.tryAcquire());
+		return pool;
+	}
+
+
+	private ServerSocket listen() throws IOException
+	{
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		closeables.add(server);
+		return server;
+	}
+
+
+	/** @return A server that never completes a connection: its backlog is full, so new ones are ignored. */
+	private ServerSocket blackhole() throws Exception
+	{
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		closeables.add(server);
+		for (int i=0; i<4; i++)
+		{
+			SocketChannel filler = SocketChannel.open();
+			closeables.add(filler);
+			filler.configureBlocking(false);
+			filler.connect(new InetSocketAddress(server.getInetAddress(), server.getLocalPort()));
+		}
+		Thread.sleep(100);
+		return server;
+	}
+
+
+	/** @return A server socket already closed, so connections to its port are refused. */
+	private static ServerSocket closedPort() throws IOException
+	{
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		server.close();
+		return server;
+	}
+
+
+	/** @return The connection accepted within a second, or null if none. */
+	private Socket accept(ServerSocket server) throws IOException
+	{
+		server.setSoTimeout(1000);
+		try
+		{
+			Socket s = server.accept();
+			closeables.add(s);
+			return s;
+		}
+		catch (SocketTimeoutException e) { return null; }
+	}
+
+}
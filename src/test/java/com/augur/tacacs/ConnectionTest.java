@@ -0,0 +1,82 @@
+package com.augur.tacacs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Connection.addSession() once the connection is shut down: the session is
+ * refused, even when added while endSessions() runs, so none is left waiting
+ * on a closed connection, or counted against it.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class ConnectionTest
+{
+
+	@Test public void refusedAfterShutdown()
+	{
+		StubConnection c = new StubConnection();
+		assertTrue(c.addSession(session(c)));
+		c.shutdown();
+		c.endSessions(new IOException("Shutdown"));
+		SessionClient late = session(c);
+		assertFalse(c.addSession(late));
+		assertEquals(0, c.getSessionCount());
+		assertFalse(late.reply.isDone()); // the caller is free to retry it on another connection
+	}
+
+
+	@Test public void noneStrandedWhileEndingSessions() throws Exception
+	{
+		for (int round=0; round<200; round++)
+		{
+			StubConnection c = new StubConnection();
+			List<SessionClient> added = new ArrayList<>();
+			CountDownLatch start = new CountDownLatch(1);
+			Thread adder = new Thread(() ->
+			{
+				try { start.await(); }
+				catch (InterruptedException e) { return; }
+				for (int i=0; i<50; i++)
+				{
+					SessionClient s = session(c);
+					if (c.addSession(s)) { added.add(s); }
+				}
+			});
+			adder.start();
+			start.countDown();
+			c.shutdown();
+			c.endSessions(new IOException("Shutdown"));
+			adder.join(10000);
+			assertEquals(0, c.getSessionCount());
+			for (SessionClient s : added) { assertTrue(s.reply.isCompletedExceptionally()); } // ended by endSessions()
+		}
+	}
+
+
+	private static SessionClient session(Connection c)
+	{
+		return new SessionClient(TAC_PLUS.AUTHEN.SVC.LOGIN, "console", "localhost", TAC_PLUS.PRIV_LVL.USER.code(), c, true, false, null);
+	}
+
+
+	/** A connection without a transport; nothing is written. */
+	private static final class StubConnection extends Connection
+	{
+		StubConnection() { super("test key", null); }
+
+		@Override public void start(boolean virtual) {}
+
+		@Override public void write(Packet p) {}
+	}
+
+}
@@ -0,0 +1,157 @@
+package com.augur.tacacs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * The arguments of a received AuthorReply or AcctRequest, left encoded until
+ * asked for: each decodes as the Argument[] it was encoded from, and encodes
+ * again to the same bytes; and arguments that Argument(String) would parse
+ * differently (a zero-length one, or one without a separator) still decode and
+ * encode as they always did.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class EncodedArgumentsTest
+{
+	private static final byte[] KEY = "testkey".getBytes(StandardCharsets.UTF_8);
+
+	private static final Argument[] ARGS =
+	{
+		new Argument("service=shell"),
+		new Argument("priv-lvl=15"),
+		new Argument("acl*"),
+		new Argument("x-custom*optional value"),
+		new Argument("cmd="),
+	};
+
+
+	@Test public void authorReplyRoundTrip() throws Exception
+	{
+		AuthorReply sent = new AuthorReply(header(TAC_PLUS.PACKET.TYPE.AUTHOR, 2), TAC_PLUS.AUTHOR.STATUS.PASS_ADD, "Welcome", "logged", ARGS);
+		byte[] body = sent.body();
+		AuthorReply received = new AuthorReply(sent.header, body.clone());
+		assertEquals("Welcome", received.getServerMsg());
+		assertEquals("logged", received.getData());
+		assertEquals("15", received.getValue("priv-lvl"));
+		assertArrayEquals(body, received.body());
+		assertArguments(ARGS, received.getArguments());
+	}
+
+
+	@Test public void authorReplyWithoutArgumentsOrMessages() throws Exception
+	{
+		AuthorReply sent = new AuthorReply(header(TAC_PLUS.PACKET.TYPE.AUTHOR, 2), TAC_PLUS.AUTHOR.STATUS.FAIL, null, null, null);
+		byte[] body = sent.body();
+		AuthorReply received = new AuthorReply(sent.header, body.clone());
+		assertNull(received.getServerMsg());
+		assertNull(received.getData());
+		assertEquals(0, received.getArguments().length);
+		assertNull(received.getValue("service"));
+		assertArrayEquals(body, received.body());
+	}
+
+
+	@Test public void acctRequestRoundTrip() throws Exception
+	{
+		AcctRequest sent = new AcctRequest(header(TAC_PLUS.PACKET.TYPE.ACCT, 1), TAC_PLUS.ACCT.FLAG.STOP.code(), TAC_PLUS.AUTHEN.METH.TACACSPLUS,
+			TAC_PLUS.PRIV_LVL.USER.code(), TAC_PLUS.AUTHEN.TYPE.PAP, TAC_PLUS.AUTHEN.SVC.LOGIN, "alice", "tty0", "10.0.0.1", ARGS);
+		byte[] body = sent.body();
+		AcctRequest received = (AcctRequest)Packet.readNextRequest(new DataInputStream(new ByteArrayInputStream(packet(sent))), KEY); // through the cipher
+		assertEquals("alice", received.user);
+		assertEquals("shell", received.getValue("service"));
+		assertArrayEquals(body, received.body());
+		assertArguments(ARGS, received.getArguments());
+	}
+
+
+	@Test public void manyArgumentsIndexed() throws Exception
+	{
+		Argument[] args = new Argument[200];
+		for (int i=0; i<args.length; i++) { args[i] = new Argument("attr"+i, "value"+i, (i%2)==1); }
+		AuthorReply sent = new AuthorReply(header(TAC_PLUS.PACKET.TYPE.AUTHOR, 2), TAC_PLUS.AUTHOR.STATUS.PASS_REPL, "", "", args);
+		ByteBuffer buf = ByteBuffer.wrap(packet(sent));
+		AuthorReply received = (AuthorReply)Packet.decode(null, false, buf, buf.remaining()-12, KEY, null, new Header.Pad());
+		for (int i=args.length-1; i>=0; i-=7) { assertEquals("value"+i, received.getValue("attr"+i)); } // more than enough lookups to build the index
+		assertNull(received.getValue("attr200"));
+		assertArrayEquals(sent.body(), received.body());
+		assertArguments(args, received.getArguments());
+		assertSame(received.getArguments(), received.getArguments()); // decoded once
+	}
+
+
+	@Test public void oddArgumentsAsBefore() throws Exception
+	{
+		// A zero-length argument, and one without a separator; as a server might send them
+		String[] raw = { "", "noseparator", "service=shell" };
+		byte[] body = authorBody(raw);
+		AuthorReply received = new AuthorReply(header(TAC_PLUS.PACKET.TYPE.AUTHOR, 2), body);
+		// As the arguments were parsed before they were left encoded: by Argument(String)
+		Argument[] parsed = new Argument[raw.length];
+		for (int i=0; i<raw.length; i++) { parsed[i] = new Argument(raw[i]); }
+		assertArguments(parsed, received.getArguments());
+		assertNull(received.getValue("noseparator"));
+		assertEquals("shell", received.getValue("service"));
+		AuthorReply eager = new AuthorReply(received.header, TAC_PLUS.AUTHOR.STATUS.PASS_ADD, null, null, parsed);
+		assertArrayEquals(eager.body(), received.body());
+	}
+
+
+	private static void assertArguments(Argument[] expected, Argument[] actual)
+	{
+		assertEquals(expected.length, actual.length);
+		for (int i=0; i<expected.length; i++)
+		{
+			assertEquals(expected[i].getAttribute(), actual[i].getAttribute());
+			assertEquals(expected[i].getValue(), actual[i].getValue());
+			assertEquals(expected[i].isOptional(), actual[i].isOptional());
+		}
+	}
+
+
+	private static Header header(TAC_PLUS.PACKET.TYPE type, int seqNum) throws Exception
+	{
+		Header h = new Header((byte)0, TAC_PLUS.PACKET.VERSION.v13_0, type, new byte[] { 1, 2, 3, 4 });
+		for (int i=1; i<seqNum; i++) { h = h.next(TAC_PLUS.PACKET.VERSION.v13_0); }
+		return h;
+	}
+
+
+	/** @return The whole packet, ciphered. */
+	private static byte[] packet(Packet p) throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		p.write(out, KEY);
+		return out.toByteArray();
+	}
+
+
+	/** @return An AuthorReply body of PASS_ADD with the given arguments, encoded by hand. */
+	private static byte[] authorBody(String[] args)
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(TAC_PLUS.AUTHOR.STATUS.PASS_ADD.code());
+		body.write(args.length);
+		body.write(0); body.write(0); // server_msg
+		body.write(0); body.write(0); // data
+		for (String a : args) { body.write(a.getBytes(StandardCharsets.UTF_8).length); }
+		for (String a : args)
+		{
+			byte[] b = a.getBytes(StandardCharsets.UTF_8);
+			body.write(b, 0, b.length);
+		}
+		return body.toByteArray();
+	}
+
+}
@@ -0,0 +1,163 @@
+package com.augur.tacacs;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A TACACS+ server for tests, on an ephemeral local port: each request read
+ * is answered with whatever its Replies returns, if anything.  Each connection
+ * is read on a thread of its own, so a Replies that blocks holds up only the
+ * requests after it on the same connection.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+final class FakeServer implements Closeable
+{
+	/** Decides the reply to each request. */
+	interface Replies
+	{
+		/** @return The reply to send; null to send none. */
+		Packet reply(Packet request) throws Exception;
+	}
+
+
+	/** A key without spaces, which TacacsClient takes as separators. */
+	static final String KEY = "testkey";
+
+	private final ServerSocket ss;
+	private final byte[] key;
+	private volatile Replies replies;
+	private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+	private final List<Packet> received = new CopyOnWriteArrayList<>();
+	final AtomicInteger connections = new AtomicInteger();
+
+
+	FakeServer(Replies replies) throws IOException
+	{
+		this.ss = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		this.key = KEY.getBytes(StandardCharsets.UTF_8);
+		this.replies = replies;
+		Thread t = new Thread(this::accept, "fake TACACS+ server");
+		t.setDaemon(true);
+		t.start();
+	}
+
+
+	/** @return The "host:port" for a TacacsClient. */
+	String host()
+	{
+		return "127.0.0.1:"+ss.getLocalPort();
+	}
+
+
+	void setReplies(Replies replies)
+	{
+		this.replies = replies;
+	}
+
+
+	/** @return The requests read so far, in order. */
+	List<Packet> received()
+	{
+		return new ArrayList<>(received);
+	}
+
+
+	/** Waits for the given number of requests to have been read. */
+	void awaitReceived(int n) throws InterruptedException
+	{
+		long giveUpAt = System.currentTimeMillis() + 10000;
+		while (received.size() < n)
+		{
+			if (System.currentTimeMillis() > giveUpAt) { throw new AssertionError("Only "+received.size()+" of "+n+" requests received"); }
+			Thread.sleep(5);
+		}
+	}
+
+
+	@Override public void close() throws IOException
+	{
+		ss.close();
+		for (Socket s : sockets) { s.close(); }
+	}
+
+
+	private void accept()
+	{
+		try
+		{
+			while (true)
+			{
+				Socket s = ss.accept();
+				sockets.add(s);
+				connections.incrementAndGet();
+				Thread t = new Thread(() -> serve(s), "fake TACACS+ connection");
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+		catch (IOException e) {
+			// closed
+		}
+	}
+
+
+	private void serve(Socket s)
+	{
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			OutputStream out = s.getOutputStream();
+			while (true)
+			{
+				Packet request = Packet.readNextRequest(in, key);
+				received.add(request);
+				Packet reply = replies.reply(request);
+				if (reply != null) { synchronized (out) { reply.write(out, key); } }
+			}
+		}
+		catch (Exception e) {
+			// closed
+		}
+		finally
+		{
+			try { s.close(); } catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+
+	/** @return An authentication reply to the request, keeping its version and flags. */
+	static AuthenReply authen(Packet request, TAC_PLUS.AUTHEN.STATUS status) throws IOException
+	{
+		return new AuthenReply(request.getHeader().next(request.getHeader().version), status, (byte)0, null, null);
+	}
+
+
+	/** @return An accounting reply to the request, keeping its flags, e.g. SINGLE_CONNECT. */
+	static AcctReply acct(Packet request, TAC_PLUS.ACCT.STATUS status) throws IOException
+	{
+		return new AcctReply(request.getHeader().next(TAC_PLUS.PACKET.VERSION.v13_0), status, null, null);
+	}
+
+
+	/** @return An authorization reply to the request, keeping its flags, e.g. SINGLE_CONNECT. */
+	static AuthorReply author(Packet request, TAC_PLUS.AUTHOR.STATUS status) throws IOException
+	{
+		return new AuthorReply(request.getHeader().next(TAC_PLUS.PACKET.VERSION.v13_0), status, null, null, new Argument[0]);
+	}
+
+}
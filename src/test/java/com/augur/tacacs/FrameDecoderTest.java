@@ -0,0 +1,199 @@
+package com.augur.tacacs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * FrameDecoder, given a stream of packets in chunks of any size: split at
+ * every byte, several in one chunk, in heap or direct buffers; an oversize
+ * length rejected before any buffer is allocated for it; and the reuse of its
+ * buffer for split packets, dropping one grown by an unusually large packet.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class FrameDecoderTest
+{
+	private static final String KEY = "testkey";
+
+
+	@Test public void splitAtEveryByte() throws Exception
+	{
+		byte[] stream = stream(reply(1, "first"), reply(2, ""), reply(3, repeat('x', 300)));
+		for (int split=0; split<=stream.length; split++)
+		{
+			FrameDecoder decoder = new FrameDecoder(KEY, false);
+			List<Packet> packets = new ArrayList<>();
+			decodeAll(decoder, ByteBuffer.wrap(stream, 0, split).slice(), packets);
+			decodeAll(decoder, ByteBuffer.wrap(stream, split, stream.length-split).slice(), packets);
+			assertReplies(packets, "first", null, repeat('x', 300));
+		}
+	}
+
+
+	@Test public void oneByteAtATime() throws Exception
+	{
+		byte[] stream = stream(reply(1, "first"), reply(2, "second"));
+		FrameDecoder decoder = new FrameDecoder(KEY, false);
+		List<Packet> packets = new ArrayList<>();
+		ByteBuffer chunk = ByteBuffer.allocateDirect(1);
+		for (byte b : stream)
+		{
+			chunk.clear();
+			chunk.put(b).flip();
+			decodeAll(decoder, chunk, packets);
+		}
+		assertReplies(packets, "first", "second");
+	}
+
+
+	@Test public void severalInOneChunk() throws Exception
+	{
+		byte[] stream = stream(reply(1, "a"), reply(2, "b"), reply(3, "c"));
+		for (ByteBuffer chunk : new ByteBuffer[] { ByteBuffer.wrap(stream), direct(stream) })
+		{
+			FrameDecoder decoder = new FrameDecoder(KEY, false);
+			List<Packet> packets = new ArrayList<>();
+			for (int i=0; i<3; i++) { packets.add(decoder.decode(chunk)); }
+			assertNull(decoder.decode(chunk));
+			assertEquals(0, chunk.remaining());
+			assertReplies(packets, "a", "b", "c");
+		}
+	}
+
+
+	@Test public void oversizeLengthRejected() throws Exception
+	{
+		byte[] header = new byte[12];
+		reply(1, "a").getHeader().encodeTo(ByteBuffer.wrap(header), 0, -16); // about 4 GiB, unsigned; an allocation would fail otherwise
+		try
+		{
+			new FrameDecoder(KEY, false).decode(ByteBuffer.wrap(header));
+			fail("Expected an oversize packet to be rejected");
+		}
+		catch (IOException e) { assertTrue(e.getMessage(), e.getMessage().contains("too large")); }
+
+		FrameDecoder decoder = new FrameDecoder(KEY, false); // with the header split, so it's assembled first
+		assertNull(decoder.decode(ByteBuffer.wrap(header, 0, 5).slice()));
+		try
+		{
+			decoder.decode(ByteBuffer.wrap(header, 5, 7).slice());
+			fail("Expected an oversize packet to be rejected");
+		}
+		catch (IOException e) { assertTrue(e.getMessage(), e.getMessage().contains("too large")); }
+
+		ByteBuffer justOver = ByteBuffer.wrap(header.clone());
+		justOver.putInt(8, TacacsReader.DEFAULT_MAX_PACKET_BYTES-11);
+		try
+		{
+			new FrameDecoder(KEY, false).decode(justOver);
+			fail("Expected an oversize packet to be rejected");
+		}
+		catch (IOException e) { assertTrue(e.getMessage(), e.getMessage().contains("too large")); }
+	}
+
+
+	@Test public void frameReusedAndShrunk() throws Exception
+	{
+		FrameDecoder decoder = new FrameDecoder(KEY, false);
+		decodeSplit(decoder, reply(1, "small"));
+		ByteBuffer frame = decoder.frame();
+		decodeSplit(decoder, reply(2, repeat('s', 1000)));
+		assertSame(frame, decoder.frame()); // reused
+
+		decodeSplit(decoder, reply(3, repeat('m', 10000)));
+		ByteBuffer grown = decoder.frame();
+		assertNotSame(frame, grown);
+		decodeSplit(decoder, reply(4, "small"));
+		assertSame(grown, decoder.frame()); // not unusually large, so kept
+
+		AcctReply large = new AcctReply(header(5), TAC_PLUS.ACCT.STATUS.SUCCESS, repeat('l', 60000), repeat('l', 60000));
+		decodeSplit(decoder, large);
+		assertTrue(decoder.frame().capacity() > 16*4096);
+		decodeSplit(decoder, reply(6, "small"));
+		assertEquals(4096, decoder.frame().capacity()); // dropped for a new one
+	}
+
+
+	private static void decodeAll(FrameDecoder decoder, ByteBuffer chunk, List<Packet> packets) throws IOException
+	{
+		for (Packet p; (p = decoder.decode(chunk)) != null; ) { packets.add(p); }
+		assertEquals(0, chunk.remaining());
+	}
+
+
+	/** Decodes the reply after it arrives in two chunks, so it's assembled in the decoder's frame. */
+	private static void decodeSplit(FrameDecoder decoder, AcctReply reply) throws IOException
+	{
+		byte[] stream = stream(reply);
+		assertNull(decoder.decode(ByteBuffer.wrap(stream, 0, 20).slice()));
+		Packet p = decoder.decode(ByteBuffer.wrap(stream, 20, stream.length-20).slice());
+		assertEquals(reply.data, ((AcctReply)p).data);
+	}
+
+
+	/** Asserts the packets are the replies numbered from 1, with the given data (null for none). */
+	private static void assertReplies(List<Packet> packets, String... data)
+	{
+		assertEquals(data.length, packets.size());
+		for (int i=0; i<data.length; i++)
+		{
+			AcctReply r = (AcctReply)packets.get(i);
+			assertEquals(i+1, r.getHeader().intSessionID());
+			assertEquals(data[i], r.data);
+		}
+	}
+
+
+	private static AcctReply reply(int session, String data)
+	{
+		return new AcctReply(header(session), TAC_PLUS.ACCT.STATUS.SUCCESS, null, data);
+	}
+
+
+	private static Header header(int session)
+	{
+		byte[] id = ByteBuffer.allocate(4).putInt(session).array();
+		return new Header((byte)0, TAC_PLUS.PACKET.VERSION.v13_0, TAC_PLUS.PACKET.TYPE.ACCT, id);
+	}
+
+
+	/** @return The packets, ciphered, one after another. */
+	private static byte[] stream(Packet... packets) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (Packet p : packets) { p.write(out, KEY.getBytes(StandardCharsets.UTF_8)); }
+		return out.toByteArray();
+	}
+
+
+	private static ByteBuffer direct(byte[] bytes)
+	{
+		ByteBuffer b = ByteBuffer.allocateDirect(bytes.length);
+		b.put(bytes).flip();
+		return b;
+	}
+
+
+	private static String repeat(char c, int n)
+	{
+		char[] chars = new char[n];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+}
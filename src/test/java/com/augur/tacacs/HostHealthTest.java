@@ -0,0 +1,121 @@
+package com.augur.tacacs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The circuit breaker of HostHealth: closed until the threshold of failures,
+ * then open for a back-off period, doubled for each failed probe up to the
+ * maximum; and half-open after it, allowing one probe at a time.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class HostHealthTest
+{
+
+	@Test public void disabledByDefault()
+	{
+		HostHealth h = new HostHealth();
+		for (int i=0; i<100; i++)
+		{
+			assertTrue(h.tryAcquire());
+			assertFalse(h.failed());
+		}
+		assertFalse(h.isDown());
+	}
+
+
+	@Test public void opensAfterThreshold()
+	{
+		HostHealth h = breaker(3, 10000, 60000);
+		fail(h, 2);
+		assertFalse(h.isDown());
+		assertTrue(h.tryAcquire());
+		h.succeeded(); // resets the count
+		fail(h, 2);
+		assertFalse(h.isDown());
+		assertTrue(h.tryAcquire());
+		assertTrue(h.failed());
+		assertTrue(h.isDown());
+		assertFalse(h.tryAcquire()); // open: skipped
+		assertTrue(h.getRetryMillis() > 9000);
+	}
+
+
+	@Test public void halfOpenAllowsOneProbe() throws Exception
+	{
+		HostHealth h = breaker(1, 50, 60000);
+		assertTrue(h.tryAcquire());
+		assertTrue(h.failed());
+		assertFalse(h.tryAcquire());
+		Thread.sleep(100);
+		assertEquals(0, h.getRetryMillis());
+		assertTrue(h.tryAcquire()); // the probe
+		assertFalse(h.tryAcquire()); // others still skip it meanwhile
+		h.succeeded();
+		assertFalse(h.isDown());
+		assertTrue(h.tryAcquire());
+		assertTrue(h.tryAcquire());
+	}
+
+
+	@Test public void failedProbeDoublesBackoffUpToMax() throws Exception
+	{
+		HostHealth h = breaker(1, 40, 100);
+		assertTrue(h.tryAcquire());
+		h.failed();
+		assertBackoff(h, 40);
+		Thread.sleep(60);
+		assertTrue(h.tryAcquire());
+		assertTrue(h.failed()); // still down
+		assertBackoff(h, 80);
+		Thread.sleep(100);
+		assertTrue(h.tryAcquire());
+		h.failed();
+		assertBackoff(h, 100); // not 160
+	}
+
+
+	@Test public void releasedProbeAllowsAnother() throws Exception
+	{
+		HostHealth h = breaker(1, 20, 60000);
+		assertTrue(h.tryAcquire());
+		h.failed();
+		Thread.sleep(50);
+		assertTrue(h.tryAcquire());
+		h.released(); // e.g. cut short by the caller's deadline: not counted
+		assertTrue(h.isDown());
+		assertTrue(h.tryAcquire()); // at once, without another back-off
+	}
+
+
+	private static HostHealth breaker(int threshold, long initialBackoffMillis, long maxBackoffMillis)
+	{
+		HostHealth h = new HostHealth();
+		h.configure(threshold, initialBackoffMillis, maxBackoffMillis);
+		return h;
+	}
+
+
+	private static void fail(HostHealth h, int n)
+	{
+		for (int i=0; i<n; i++)
+		{
+			assertTrue(h.tryAcquire());
+			assertFalse(h.failed());
+		}
+	}
+
+
+	/** Asserts the back-off just started is the given length, less the time taken. */
+	private static void assertBackoff(HostHealth h, long millis)
+	{
+		long retry = h.getRetryMillis();
+		assertTrue("Back-off "+retry+" for "+millis, retry <= millis && retry > millis/2);
+	}
+
+}
@@ -0,0 +1,65 @@
+package com.augur.tacacs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The idle eviction of HostPool: idle connections are closed even while no
+ * session is started, i.e. without waiting for the next lease().
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class HostPoolTest
+{
+
+	@Test public void idleConnectionClosedWithoutLease() throws Exception
+	{
+		HostPool pool = new HostPool("localhost", TacacsReader.PORT_TACACS, "test key");
+		pool.setIdleTimeoutMillis(200);
+		try
+		{
+			assertNull(pool.lease(true, null)); // reserves a new connection
+			IdleConnection c = new IdleConnection();
+			pool.added(c);
+			long giveUpAt = System.currentTimeMillis() + 10000;
+			while (!c.isShutdown())
+			{
+				if (System.currentTimeMillis() > giveUpAt) { fail("Idle connection never closed"); }
+				Thread.sleep(10);
+			}
+		}
+		finally { pool.shutdown(); }
+	}
+
+
+	@Test public void noEvictionAfterShutdown() throws Exception
+	{
+		HostPool pool = new HostPool("localhost", TacacsReader.PORT_TACACS, "test key");
+		pool.setIdleTimeoutMillis(200);
+		pool.shutdown();
+		assertNull(pool.lease(true, null));
+		IdleConnection c = new IdleConnection();
+		pool.added(c);
+		Thread.sleep(500);
+		assertFalse(c.isShutdown());
+		assertNull(pool.lease(false, null)); // without single-connect, lease() doesn't hand it out, but prunes it
+		assertTrue(c.isShutdown());
+	}
+
+
+	/** A connection without a transport, which is never used. */
+	private static final class IdleConnection extends Connection
+	{
+		IdleConnection() { super("test key", null); }
+
+		@Override public void start(boolean virtual) {}
+
+		@Override public void write(Packet p) {}
+	}
+
+}
@@ -0,0 +1,154 @@
+package com.augur.tacacs;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The orders of HostSelectionPolicy: FAILOVER keeps the configured order;
+ * ROUND_ROBIN rotates it each turn, even once the counter wraps;
+ * LEAST_OUTSTANDING sorts by sessions outstanding, ties in the configured
+ * order; and EWMA_LATENCY picks the first at random, weighted to the fast and
+ * idle, with unmeasured hosts taken as average, then the rest by cost.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class HostSelectionPolicyTest
+{
+	private static final int TRIALS = 2000;
+
+
+	@Test public void failover()
+	{
+		HostPool[] pools = pools(3);
+		assertSame(pools, HostSelectionPolicy.FAILOVER.order(pools, 7));
+		HostPool[] one = pools(1);
+		for (HostSelectionPolicy policy : HostSelectionPolicy.values()) { assertSame(one, policy.order(one, 1)); }
+	}
+
+
+	@Test public void roundRobinRotates()
+	{
+		HostPool[] p = pools(3);
+		assertArrayEquals(new HostPool[] { p[0], p[1], p[2] }, HostSelectionPolicy.ROUND_ROBIN.order(p, 0));
+		assertArrayEquals(new HostPool[] { p[1], p[2], p[0] }, HostSelectionPolicy.ROUND_ROBIN.order(p, 1));
+		assertArrayEquals(new HostPool[] { p[2], p[0], p[1] }, HostSelectionPolicy.ROUND_ROBIN.order(p, 2));
+		assertArrayEquals(new HostPool[] { p[0], p[1], p[2] }, HostSelectionPolicy.ROUND_ROBIN.order(p, 3));
+		assertArrayEquals(new HostPool[] { p[2], p[0], p[1] }, HostSelectionPolicy.ROUND_ROBIN.order(p, -1)); // after the counter wraps
+		assertArrayEquals(new HostPool[] { p[0], p[1], p[2] }, p); // not rearranged
+	}
+
+
+	@Test public void leastOutstanding() throws Exception
+	{
+		HostPool[] p = pools(4);
+		assertArrayEquals(p, HostSelectionPolicy.LEAST_OUTSTANDING.order(p, 0)); // all idle: the configured order
+		outstanding(p[0], 2);
+		outstanding(p[1], 1);
+		outstanding(p[3], 1);
+		assertArrayEquals(new HostPool[] { p[2], p[1], p[3], p[0] }, HostSelectionPolicy.LEAST_OUTSTANDING.order(p, 0));
+	}
+
+
+	@Test public void ewmaFavoursFast()
+	{
+		HostPool[] p = pools(3);
+		latency(p[0], 100);
+		latency(p[1], 1);
+		latency(p[2], 10);
+		int[] first = new int[3];
+		for (int i=0; i<TRIALS; i++)
+		{
+			HostPool[] order = HostSelectionPolicy.EWMA_LATENCY.order(p, i);
+			first[index(p, order[0])]++;
+			assertEquals(3, distinct(order));
+			if (order[0]==p[1]) { assertArrayEquals(new HostPool[] { p[1], p[2], p[0] }, order); } // the rest by cost
+		}
+		assertTrue(first[1] > TRIALS*8/10); // weights 1, 0.1 and 0.01
+		assertTrue(first[2] > 0);
+		assertTrue(first[1] > first[2] && first[2] > first[0]);
+	}
+
+
+	@Test public void ewmaTakesUnmeasuredAsAverage()
+	{
+		HostPool[] p = pools(3);
+		latency(p[0], 100);
+		latency(p[1], 10); // average 55
+		int[] first = new int[3];
+		for (int i=0; i<TRIALS; i++)
+		{
+			HostPool[] order = HostSelectionPolicy.EWMA_LATENCY.order(p, i);
+			first[index(p, order[0])]++;
+			if (order[0]==p[1]) { assertArrayEquals(new HostPool[] { p[1], p[2], p[0] }, order); }
+		}
+		assertTrue(first[2] > first[0]); // sampled, as if middling; neither shunned nor preferred
+		assertTrue(first[1] > first[2]);
+
+		HostPool[] unmeasured = pools(3);
+		first = new int[3];
+		for (int i=0; i<TRIALS; i++) { first[index(unmeasured, HostSelectionPolicy.EWMA_LATENCY.order(unmeasured, i)[0])]++; }
+		for (int n : first) { assertTrue(n > TRIALS/6); } // each about a third
+	}
+
+
+	@Test public void ewmaDrainsBusy() throws Exception
+	{
+		HostPool[] p = pools(2);
+		latency(p[0], 10);
+		latency(p[1], 10);
+		outstanding(p[0], 9); // ten times the cost
+		int busyFirst = 0;
+		for (int i=0; i<TRIALS; i++)
+		{
+			HostPool[] order = HostSelectionPolicy.EWMA_LATENCY.order(p, i);
+			if (order[0]==p[0]) { busyFirst++; }
+		}
+		assertTrue(busyFirst > 0); // still sampled now and then
+		assertTrue(busyFirst < TRIALS/5);
+	}
+
+
+	private static HostPool[] pools(int n)
+	{
+		HostPool[] pools = new HostPool[n];
+		for (int i=0; i<n; i++) { pools[i] = new HostPool("host"+i, TacacsReader.PORT_TACACS, FakeServer.KEY); }
+		return pools;
+	}
+
+
+	/** Reserves connections being opened, which count as outstanding. */
+	private static void outstanding(HostPool pool, int n) throws Exception
+	{
+		pool.setSize(0, n);
+		for (int i=0; i<n; i++) { pool.lease(true, null); }
+		assertEquals(n, pool.getOutstanding());
+	}
+
+
+	private static void latency(HostPool pool, long millis)
+	{
+		pool.recordLatency(TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+
+	private static int index(HostPool[] pools, HostPool pool)
+	{
+		for (int i=0; i<pools.length; i++) { if (pools[i]==pool) { return i; } }
+		throw new AssertionError("Not a configured host: "+pool.host);
+	}
+
+
+	private static int distinct(HostPool[] order)
+	{
+		return (int)Arrays.stream(order).distinct().count();
+	}
+
+}
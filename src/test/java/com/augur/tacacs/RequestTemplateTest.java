@@ -0,0 +1,146 @@
+package com.augur.tacacs;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Packets encoded from a RequestTemplate, or copied from a canned reply, are
+ * byte-for-byte the packets built by the plain constructors: with and without
+ * common arguments, for each port and rem_addr, and when fields or arguments
+ * are truncated to fit their length bytes.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class RequestTemplateTest
+{
+	private static final byte[] KEY = "testkey".getBytes(StandardCharsets.UTF_8);
+	private static final Argument[] COMMON = { new Argument("service=shell"), new Argument("protocol*ip") };
+	private static final Argument[] OWN = { new Argument("cmd=show"), new Argument("cmd-arg=running-config") };
+
+
+	@Test public void withoutCommonArguments() throws Exception
+	{
+		RequestTemplate t = new RequestTemplate("console", "localhost", null);
+		assertSameRequests(t, "alice", OWN, OWN);
+		assertSameRequests(t, "alice", null, new Argument[0]);
+		assertSameRequests(t, "alice", new Argument[0], new Argument[0]);
+	}
+
+
+	@Test public void withCommonArguments() throws Exception
+	{
+		RequestTemplate t = new RequestTemplate("console", "localhost", COMMON);
+		assertSameRequests(t, "alice", OWN, concat(COMMON, OWN));
+		assertSameRequests(t, "alice", null, COMMON);
+		assertSameRequests(t, "", new Argument[0], COMMON);
+	}
+
+
+	@Test public void perPortAndRemAddr() throws Exception
+	{
+		RequestTemplate t = new RequestTemplate("console", "localhost", COMMON);
+		assertSame(t, t.forSession("console", "localhost"));
+		RequestTemplate tty = t.forSession("tty5", "10.1.2.3");
+		assertNotSame(t, tty);
+		assertEquals("tty5", tty.port);
+		assertEquals("10.1.2.3", tty.rem_addr);
+		assertSameRequests(tty, "bob", OWN, concat(COMMON, OWN));
+		assertSameRequests(t.forSession("", ""), "bob", OWN, concat(COMMON, OWN));
+		assertSameRequests(new RequestTemplate("t\u00fcy", "h\u00f6st", null), "b\u00f6b", OWN, OWN);
+	}
+
+
+	@Test public void truncated() throws Exception
+	{
+		Argument[] common = new Argument[10];
+		for (int i=0; i<common.length; i++) { common[i] = new Argument("common"+i, repeat('c', 300), false); }
+		Argument[] own = new Argument[250]; // 260 in all, of which 255 are sent
+		for (int i=0; i<own.length; i++) { own[i] = new Argument("own"+i, "v"+i, true); }
+		RequestTemplate t = new RequestTemplate(repeat('p', 300), repeat('r', 256), common);
+		assertSameRequests(t, repeat('u', 400), own, concat(common, own));
+
+		Argument[] many = new Argument[300]; // more common arguments than can be sent
+		for (int i=0; i<many.length; i++) { many[i] = new Argument("a"+i, "", false); }
+		assertSameRequests(new RequestTemplate("console", "localhost", many), "alice", OWN, concat(many, OWN));
+	}
+
+
+	@Test public void cannedReplies() throws Exception
+	{
+		AuthenReply authen = new AuthenReply(header(TAC_PLUS.PACKET.TYPE.AUTHEN, 9), TAC_PLUS.AUTHEN.STATUS.FAIL, (byte)0, "Not implemented", null);
+		for (int id=1; id<=3; id++) // the canned body is encoded on the first copy, then shared
+		{
+			Header h = header(TAC_PLUS.PACKET.TYPE.AUTHEN, id);
+			assertSamePacket(new AuthenReply(h, TAC_PLUS.AUTHEN.STATUS.FAIL, (byte)0, "Not implemented", null), new AuthenReply(h, authen));
+		}
+		AcctReply acct = new AcctReply(header(TAC_PLUS.PACKET.TYPE.ACCT, 9), TAC_PLUS.ACCT.STATUS.ERROR, null, "log");
+		Header h = header(TAC_PLUS.PACKET.TYPE.ACCT, 1);
+		assertSamePacket(new AcctReply(h, TAC_PLUS.ACCT.STATUS.ERROR, null, "log"), new AcctReply(h, acct));
+		AuthorReply author = new AuthorReply(header(TAC_PLUS.PACKET.TYPE.AUTHOR, 9), TAC_PLUS.AUTHOR.STATUS.PASS_ADD, "ok", "", COMMON);
+		h = header(TAC_PLUS.PACKET.TYPE.AUTHOR, 1);
+		assertSamePacket(new AuthorReply(h, TAC_PLUS.AUTHOR.STATUS.PASS_ADD, "ok", "", COMMON), new AuthorReply(h, author));
+	}
+
+
+	/** Asserts that the template's AuthorRequest and AcctRequest, with the own arguments, are those built with all. */
+	private static void assertSameRequests(RequestTemplate t, String user, Argument[] own, Argument[] all) throws Exception
+	{
+		Header h = header(TAC_PLUS.PACKET.TYPE.AUTHOR, 1);
+		assertSamePacket(
+			new AuthorRequest(h, TAC_PLUS.AUTHEN.METH.TACACSPLUS, TAC_PLUS.PRIV_LVL.USER.code(), TAC_PLUS.AUTHEN.TYPE.PAP, TAC_PLUS.AUTHEN.SVC.LOGIN, user, t.port, t.rem_addr, all),
+			new AuthorRequest(h, TAC_PLUS.AUTHEN.METH.TACACSPLUS, TAC_PLUS.PRIV_LVL.USER.code(), TAC_PLUS.AUTHEN.TYPE.PAP, TAC_PLUS.AUTHEN.SVC.LOGIN, user, t, own));
+		h = header(TAC_PLUS.PACKET.TYPE.ACCT, 1);
+		byte stop = TAC_PLUS.ACCT.FLAG.STOP.code();
+		assertSamePacket(
+			new AcctRequest(h, stop, TAC_PLUS.AUTHEN.METH.TACACSPLUS, TAC_PLUS.PRIV_LVL.ROOT.code(), TAC_PLUS.AUTHEN.TYPE.ASCII, TAC_PLUS.AUTHEN.SVC.LOGIN, user, t.port, t.rem_addr, all),
+			new AcctRequest(h, stop, TAC_PLUS.AUTHEN.METH.TACACSPLUS, TAC_PLUS.PRIV_LVL.ROOT.code(), TAC_PLUS.AUTHEN.TYPE.ASCII, TAC_PLUS.AUTHEN.SVC.LOGIN, user, t, own));
+	}
+
+
+	/** Asserts the packets have the same body, and the same bytes on the wire. */
+	private static void assertSamePacket(Packet expected, Packet actual) throws Exception
+	{
+		assertArrayEquals(expected.body(), actual.body());
+		assertArrayEquals(wire(expected), wire(actual));
+	}
+
+
+	private static byte[] wire(Packet p) throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		p.write(out, KEY);
+		return out.toByteArray();
+	}
+
+
+	private static Header header(TAC_PLUS.PACKET.TYPE type, int session)
+	{
+		return new Header((byte)0, TAC_PLUS.PACKET.VERSION.v13_0, type, new byte[] { 0, 0, 0, (byte)session });
+	}
+
+
+	private static Argument[] concat(Argument[] a, Argument[] b)
+	{
+		Argument[] all = Arrays.copyOf(a, a.length+b.length);
+		System.arraycopy(b, 0, all, a.length, b.length);
+		return all;
+	}
+
+
+	private static String repeat(char c, int n)
+	{
+		char[] chars = new char[n];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+}
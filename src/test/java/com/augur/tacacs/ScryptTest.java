@@ -0,0 +1,50 @@
+package com.augur.tacacs;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Scrypt against the test vectors of RFC 7914, section 12; the first is left
+ * out, since its password is empty.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class ScryptTest
+{
+
+	@Test public void rfc7914Vector2()
+	{
+		byte[] dk = Scrypt.hash(bytes("password"), bytes("NaCl"), 1024, 8, 16, 64);
+		assertArrayEquals(hex(
+			"fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b373162"+
+			"2eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640"), dk);
+	}
+
+
+	@Test public void rfc7914Vector3()
+	{
+		byte[] dk = Scrypt.hash(bytes("pleaseletmein"), bytes("SodiumChloride"), 16384, 8, 1, 64);
+		assertArrayEquals(hex(
+			"7023bdcb3afd7348461c06cd81fd38ebfda8fbba904f8e3ea9b543f6545da1f2"+
+			"d5432955613f0fcf62d49705242a9af9e61e85dc0d651e40dfcf017b45575887"), dk);
+	}
+
+
+	private static byte[] bytes(String s)
+	{
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+
+	private static byte[] hex(String s)
+	{
+		byte[] b = new byte[s.length()/2];
+		for (int i=0; i<b.length; i++) { b[i] = (byte)Integer.parseInt(s.substring(2*i, 2*i+2), 16); }
+		return b;
+	}
+
+}
@@ -0,0 +1,91 @@
+package com.augur.tacacs;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * SessionClient.cancel(), e.g. of a hedged request's loser: a single-connect
+ * connection shared by other sessions is left open, unless the server has
+ * declined single-connect mode, after which no further session is added.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class SessionClientTest
+{
+
+	@Test public void cancelBeforeAnyReplyLeavesSharedConnectionOpen() throws Exception
+	{
+		StubConnection c = new StubConnection();
+		SessionClient loser = session(c, true);
+		SessionClient other = session(c, true);
+		loser.cancel();
+		assertFalse(c.isShutdown());
+		assertEquals(1, c.getSessionCount());
+
+		c.dispatch(reply(other, TAC_PLUS.PACKET.FLAG.SINGLE_CONNECT.code()));
+		assertTrue(other.reply.isDone());
+		assertFalse(other.reply.isCompletedExceptionally());
+		assertFalse(c.isShutdown());
+	}
+
+
+	@Test public void cancelAfterServerDeclinedClosesConnection() throws Exception
+	{
+		StubConnection c = new StubConnection();
+		SessionClient first = session(c, true);
+		SessionClient loser = session(c, true); // leased before the reply was read
+		try
+		{
+			c.dispatch(reply(first, (byte)0));
+			fail("Expected the connection to be unusable");
+		}
+		catch (IOException e) { /* not in single-connect mode */ }
+		loser.cancel();
+		assertTrue(c.isShutdown());
+		assertEquals(0, c.getSessionCount());
+		assertTrue(loser.reply.isCompletedExceptionally());
+		assertFalse(c.addSession(new SessionClient(TAC_PLUS.AUTHEN.SVC.LOGIN, "console", "localhost", TAC_PLUS.PRIV_LVL.USER.code(), c, true, false, null)));
+	}
+
+
+	@Test public void cancelWithoutSingleConnectClosesConnection() throws Exception
+	{
+		StubConnection c = new StubConnection();
+		session(c, false).cancel();
+		assertTrue(c.isShutdown());
+	}
+
+
+	private static SessionClient session(Connection c, boolean singleConnect)
+	{
+		SessionClient s = new SessionClient(TAC_PLUS.AUTHEN.SVC.LOGIN, "console", "localhost", TAC_PLUS.PRIV_LVL.USER.code(), c, singleConnect, false, null);
+		assertTrue(c.addSession(s));
+		return s;
+	}
+
+
+	private static AuthorReply reply(SessionClient s, byte flags)
+	{
+		Header h = new Header(flags, TAC_PLUS.PACKET.VERSION.v13_0, TAC_PLUS.PACKET.TYPE.AUTHOR, s.id);
+		return new AuthorReply(h, TAC_PLUS.AUTHOR.STATUS.PASS_ADD, null, null, new Argument[0]);
+	}
+
+
+	/** A connection without a transport; nothing is written. */
+	private static final class StubConnection extends Connection
+	{
+		StubConnection() { super("test key", null); }
+
+		@Override public void start(boolean virtual) {}
+
+		@Override public void write(Packet p) {}
+	}
+
+}
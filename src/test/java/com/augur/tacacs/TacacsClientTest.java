@@ -0,0 +1,169 @@
+package com.augur.tacacs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The single flight of identical authorizations by TacacsClient: callers
+ * asking while the same request is in flight share its reply, rather than send
+ * their own; but each waits no longer than its own deadline, however long the
+ * first takes, or however it fails.  Once it lands, the next identical request
+ * is sent anew.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class TacacsClientTest
+{
+	private static final Argument[] ARGS = { new Argument("service=shell") };
+
+	private FakeServer server;
+	private TacacsClient client;
+	/** Holds the server's replies, until opened. */
+	private final CountDownLatch gate = new CountDownLatch(1);
+
+
+	@After public void tearDown() throws Exception
+	{
+		gate.countDown();
+		if (client != null) { client.shutdown(); }
+		if (server != null) { server.close(); }
+	}
+
+
+	@Test public void identicalRequestsShareOneSession() throws Exception
+	{
+		start(request ->
+		{
+			gate.await();
+			return FakeServer.author(request, TAC_PLUS.AUTHOR.STATUS.PASS_ADD);
+		});
+		List<CompletableFuture<AuthorReply>> replies = new ArrayList<>();
+		for (int i=0; i<5; i++) { replies.add(client.authorizeAsync("alice", ARGS)); }
+		CompletableFuture<AuthorReply> blocking = CompletableFuture.supplyAsync(() ->
+		{
+			try { return client.authorize("alice", ARGS, Deadline.after(10000)); }
+			catch (IOException | TimeoutException e) { throw new RuntimeException(e); }
+		});
+		CompletableFuture<AuthorReply> other = client.authorizeAsync("bob", ARGS); // not identical
+		server.awaitReceived(1); // bob's is read after alice's is answered, on the same connection
+		Thread.sleep(100); // for the blocking caller to join
+		gate.countDown();
+		AuthorReply first = replies.get(0).get(10, TimeUnit.SECONDS);
+		assertTrue(first.isOK());
+		for (CompletableFuture<AuthorReply> r : replies) { assertSame(first, r.get(10, TimeUnit.SECONDS)); }
+		assertSame(first, blocking.get(10, TimeUnit.SECONDS));
+		assertTrue(other.get(10, TimeUnit.SECONDS).isOK());
+		assertEquals(2, server.received().size());
+	}
+
+
+	@Test public void followerCancelDoesNotCancelLeader() throws Exception
+	{
+		start(request ->
+		{
+			gate.await();
+			return FakeServer.author(request, TAC_PLUS.AUTHOR.STATUS.PASS_ADD);
+		});
+		CompletableFuture<AuthorReply> leader = client.authorizeAsync("alice", ARGS);
+		client.authorizeAsync("alice", ARGS).cancel(false);
+		gate.countDown();
+		assertTrue(leader.get(10, TimeUnit.SECONDS).isOK());
+	}
+
+
+	@Test public void slowLeaderDoesNotHoldFollowersPastTheirDeadline() throws Exception
+	{
+		start(request -> null); // never replies
+		client.setReplyTimeoutMillis(2000);
+		CompletableFuture<AuthorReply> leader = client.authorizeAsync("alice", ARGS);
+		server.awaitReceived(1);
+
+		long start = System.nanoTime();
+		CompletableFuture<AuthorReply> follower = client.authorizeAsync("alice", ARGS, Deadline.after(200));
+		assertTimedOut(follower);
+		try
+		{
+			client.authorize("alice", ARGS, Deadline.after(200));
+			fail("Expected the blocking follower to time out");
+		}
+		catch (TimeoutException e) { /* its own deadline */ }
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start) < 1500);
+		assertFalse(leader.isDone());
+		assertEquals(1, server.received().size());
+
+		CompletableFuture<AuthorReply> unbounded = client.authorizeAsync("alice", ARGS); // bounded by the leader's reply time-out
+		assertTimedOut(leader);
+		assertTimedOut(unbounded);
+	}
+
+
+	@Test public void failedLeaderFailsFollowersAndIsForgotten() throws Exception
+	{
+		start(request ->
+		{
+			gate.await();
+			throw new IOException("closing the connection"); // the server drops it, failing the leader
+		});
+		CompletableFuture<AuthorReply> leader = client.authorizeAsync("alice", ARGS);
+		CompletableFuture<AuthorReply> follower = client.authorizeAsync("alice", ARGS, Deadline.after(10000));
+		server.awaitReceived(1);
+		gate.countDown();
+		assertFailedWith(IOException.class, leader);
+		assertFailedWith(IOException.class, follower);
+
+		server.setReplies(request -> FakeServer.author(request, TAC_PLUS.AUTHOR.STATUS.PASS_ADD));
+		assertTrue(client.authorize("alice", ARGS).isOK()); // sent anew, not joined to the failed one
+		assertEquals(2, server.received().size());
+	}
+
+
+	@Test public void landedRequestIsForgotten() throws Exception
+	{
+		start(request -> FakeServer.author(request, TAC_PLUS.AUTHOR.STATUS.PASS_ADD));
+		AuthorReply first = client.authorizeAsync("alice", ARGS).get(10, TimeUnit.SECONDS);
+		AuthorReply second = client.authorize("alice", ARGS);
+		assertFalse(first == second);
+		assertEquals(2, server.received().size()); // without a cache, each request after the last landed is sent
+	}
+
+
+	private void start(FakeServer.Replies replies) throws IOException
+	{
+		server = new FakeServer(replies);
+		client = new TacacsClient(server.host(), FakeServer.KEY, 5000, true);
+	}
+
+
+	private static void assertTimedOut(CompletableFuture<AuthorReply> reply) throws Exception
+	{
+		assertFailedWith(TimeoutException.class, reply);
+	}
+
+
+	private static void assertFailedWith(Class<? extends Exception> type, CompletableFuture<AuthorReply> reply) throws Exception
+	{
+		try
+		{
+			reply.get(10, TimeUnit.SECONDS);
+			fail("Expected "+type.getSimpleName());
+		}
+		catch (ExecutionException e) { assertTrue(String.valueOf(e.getCause()), type.isInstance(e.getCause())); }
+	}
+
+}
@@ -0,0 +1,357 @@
+package com.augur.tacacs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The write coalescing of TacacsReader: write() and flushWrites(); and its
+ * reading thread.
+ *
+ * @author Chris.Janicki@augur.com
+ * Copyright 2016 Augur Systems, Inc.  All rights reserved.
+ */
+public class TacacsReaderTest
+{
+	private static final String KEY = "test key";
+	/** The thread running each task given to start(). */
+	private static final Map<FutureTask<Void>,Thread> threads = new ConcurrentHashMap<>();
+
+
+	@Test public void concurrentWritersEachPacketWrittenOnceAndInOrder() throws Exception
+	{
+		final int writers = 8, packets = 500;
+		RecordingStream out = new RecordingStream();
+		final TacacsReader reader = new TacacsReader(new StreamSocket(out), KEY, null);
+		final CountDownLatch go = new CountDownLatch(1);
+		List<FutureTask<Void>> tasks = new ArrayList<>();
+		for (int w=0; w<writers; w++)
+		{
+			final int writer = w;
+			tasks.add(start(() ->
+			{
+				go.await();
+				for (int i=0; i<packets; i++) { reader.write(reply(writer*packets+i, writer+":"+i)); }
+				return null;
+			}));
+		}
+		go.countDown();
+		for (FutureTask<Void> t : tasks) { t.get(30, TimeUnit.SECONDS); }
+
+		List<Packet> written = decode(out.bytes());
+		assertEquals(writers*packets, written.size());
+		Map<Integer,Integer> next = new HashMap<>(); // the next index expected from each writer
+		boolean[] seen = new boolean[writers*packets];
+		for (Packet p : written)
+		{
+			int id = p.header.intSessionID();
+			assertFalse("Written twice: "+id, seen[id]);
+			seen[id] = true;
+			String[] data = ((AcctReply)p).data.split(":");
+			int writer = Integer.parseInt(data[0]);
+			int expected = next.containsKey(writer) ? next.get(writer) : 0;
+			assertEquals(expected, Integer.parseInt(data[1]));
+			next.put(writer, expected+1);
+		}
+		assertTrue(out.writes() <= writers*packets);
+		assertFalse(reader.isShutdown());
+	}
+
+
+	@Test public void packetFailingToEncodeFailsAlone() throws Exception
+	{
+		RecordingStream out = new RecordingStream();
+		TacacsReader reader = new TacacsReader(new StreamSocket(out), KEY, null);
+		reader.write(reply(1, "before"));
+		try
+		{
+			reader.write(new BadPacket(2));
+			fail("Expected the bad packet to fail");
+		}
+		catch (IllegalStateException e) { assertEquals("Unencodable", e.getMessage()); }
+		reader.write(reply(3, "after"));
+
+		List<Packet> written = decode(out.bytes()); // nothing of the bad packet was left in the stream
+		assertEquals(2, written.size());
+		assertEquals("before", ((AcctReply)written.get(0)).data);
+		assertEquals("after", ((AcctReply)written.get(1)).data);
+		assertFalse(reader.isShutdown());
+	}
+
+
+	@Test public void packetFailingToEncodeLeavesRestOfBatch() throws Exception
+	{
+		BlockingStream out = new BlockingStream(false);
+		final TacacsReader reader = new TacacsReader(new StreamSocket(out), KEY, null);
+		FutureTask<Void> first = start(() -> { reader.write(reply(1, "first")); return null; });
+		out.entered.await(10, TimeUnit.SECONDS); // the first writer holds the lock, writing
+		FutureTask<Void> bad = start(() -> { reader.write(new BadPacket(2)); return null; });
+		awaitBlocked(bad);
+		FutureTask<Void> good = start(() -> { reader.write(reply(3, "good")); return null; });
+		awaitBlocked(good);
+		out.release.countDown();
+
+		first.get(10, TimeUnit.SECONDS);
+		try
+		{
+			bad.get(10, TimeUnit.SECONDS);
+			fail("Expected the bad packet to fail");
+		}
+		catch (ExecutionException e) { assertTrue(e.getCause() instanceof IllegalStateException); }
+		good.get(10, TimeUnit.SECONDS);
+		assertEquals(2, out.writes()); // the good packet went in the bad one's batch
+		List<Packet> written = decode(out.bytes());
+		assertEquals(2, written.size());
+		assertEquals("good", ((AcctReply)written.get(1)).data);
+	}
+
+
+	@Test public void failedWriteFailsWholeBatchWithSameException() throws Exception
+	{
+		BlockingStream out = new BlockingStream(true);
+		final TacacsReader reader = new TacacsReader(new StreamSocket(out), KEY, null);
+		FutureTask<Void> first = start(() -> { reader.write(reply(1, "first")); return null; });
+		out.entered.await(10, TimeUnit.SECONDS);
+		FutureTask<Void> second = start(() -> { reader.write(reply(2, "second")); return null; });
+		awaitBlocked(second);
+		FutureTask<Void> third = start(() -> { reader.write(reply(3, "third")); return null; });
+		awaitBlocked(third);
+		out.release.countDown();
+
+		first.get(10, TimeUnit.SECONDS);
+		Throwable e2 = failure(second), e3 = failure(third);
+		assertTrue(e2 instanceof IOException);
+		assertSame(e2, e3); // written in one batch, by one failed socket write
+		assertTrue(reader.isShutdown());
+		assertTrue(out.closed);
+	}
+
+
+	@Test public void writeBlockedPastDeadlineClosesConnection() throws Exception
+	{
+		StalledStream out = new StalledStream();
+		TacacsReader reader = new TacacsReader(new StreamSocket(out), KEY, null);
+		long start = System.nanoTime();
+		try
+		{
+			reader.write(reply(1, "stalled"), Deadline.after(100));
+			fail("Expected the stalled write to fail");
+		}
+		catch (IOException e) { assertEquals("Socket closed", e.getMessage()); }
+		assertTrue(System.nanoTime()-start < TimeUnit.SECONDS.toNanos(10));
+		assertTrue(reader.isShutdown());
+		assertTrue(out.closed);
+	}
+
+
+	@Test public void readerThreadCanBeJoinedAsBefore() throws Exception
+	{
+		TacacsReader reader = new TacacsReader(new StreamSocket(new RecordingStream()), KEY, null);
+		assertFalse(reader.isAlive());
+		reader.join(); // not started; returns at once
+		reader.start(false);
+		try
+		{
+			reader.start(false);
+			fail("Expected a second start to fail");
+		}
+		catch (IllegalThreadStateException e) { /* as Thread.start() */ }
+		reader.join(10000); // the input is at its end, so reading stops
+		assertFalse(reader.isAlive());
+		assertFalse(reader.getThread().isAlive());
+		assertTrue(reader.isShutdown());
+	}
+
+
+	private static AcctReply reply(int session, String data)
+	{
+		return new AcctReply(header(session), TAC_PLUS.ACCT.STATUS.SUCCESS, null, data);
+	}
+
+
+	private static Header header(int session)
+	{
+		byte[] id = ByteBuffer.allocate(4).putInt(session).array();
+		return new Header((byte)0, TAC_PLUS.PACKET.VERSION.v13_0, TAC_PLUS.PACKET.TYPE.ACCT, id);
+	}
+
+
+	/** Reads back the packets written, as the other end of the connection would. */
+	private static List<Packet> decode(byte[] bytes) throws IOException
+	{
+		ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+		TacacsReader reader = new TacacsReader(new StreamSocket(in, new RecordingStream()), KEY, null);
+		List<Packet> packets = new ArrayList<>();
+		while (in.available() > 0) { packets.add(Packet.readNext(reader, reader.key, null)); }
+		return packets;
+	}
+
+
+	private static FutureTask<Void> start(Callable<Void> c)
+	{
+		FutureTask<Void> task = new FutureTask<>(c);
+		Thread t = new Thread(task, "writer");
+		t.setDaemon(true);
+		t.start();
+		threads.put(task, t);
+		return task;
+	}
+
+
+	/** Waits for the task's thread to park, i.e. to have queued its packet and to be waiting for the write lock. */
+	private static void awaitBlocked(FutureTask<Void> task) throws InterruptedException
+	{
+		Thread t = threads.get(task);
+		long giveUpAt = System.currentTimeMillis() + 10000;
+		while (t.getState() != Thread.State.WAITING)
+		{
+			if (System.currentTimeMillis() > giveUpAt) { fail("Writer never blocked: "+t.getState()); }
+			Thread.sleep(1);
+		}
+	}
+
+
+	private static Throwable failure(FutureTask<Void> task) throws Exception
+	{
+		try
+		{
+			task.get(10, TimeUnit.SECONDS);
+			fail("Expected the write to fail");
+			return null;
+		}
+		catch (ExecutionException e) { return e.getCause(); }
+	}
+
+
+	/** A packet whose body can't be encoded. */
+	private static final class BadPacket extends Packet
+	{
+		BadPacket(int session) { super(header(session)); }
+
+		@Override void encodeBody(ByteBuffer body)
+		{
+			body.put((byte)1); // partly encoded, then fails
+			throw new IllegalStateException("Unencodable");
+		}
+	}
+
+
+	/** Records the bytes written, and the number of writes. */
+	private static class RecordingStream extends OutputStream
+	{
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private int writes;
+		volatile boolean closed;
+
+		@Override public synchronized void write(int b) { bytes.write(b); writes++; }
+
+		@Override public synchronized void write(byte[] b, int off, int len) throws IOException
+		{
+			bytes.write(b, off, len);
+			writes++;
+		}
+
+		@Override public void close() { closed = true; }
+
+		synchronized byte[] bytes() { return bytes.toByteArray(); }
+
+		synchronized int writes() { return writes; }
+	}
+
+
+	/** Blocks the first write until released; then either accepts the writes after it, or fails them. */
+	private static final class BlockingStream extends RecordingStream
+	{
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		private final boolean failLater;
+		private boolean first = true;
+
+		BlockingStream(boolean failLater) { this.failLater = failLater; }
+
+		@Override public void write(byte[] b, int off, int len) throws IOException
+		{
+			boolean blocking;
+			synchronized (this)
+			{
+				blocking = first;
+				first = false;
+			}
+			if (blocking)
+			{
+				entered.countDown();
+				try { release.await(); }
+				catch (InterruptedException e) { throw new IOException(e); }
+			}
+			else if (failLater) { throw new IOException("Broken pipe"); }
+			super.write(b, off, len);
+		}
+	}
+
+
+	/** Blocks every write until closed, as a socket whose peer stopped reading. */
+	private static final class StalledStream extends RecordingStream
+	{
+		private final CountDownLatch closing = new CountDownLatch(1);
+
+		@Override public void write(byte[] b, int off, int len) throws IOException
+		{
+			try { closing.await(); }
+			catch (InterruptedException e) { throw new IOException(e); }
+			throw new IOException("Socket closed");
+		}
+
+		@Override public void close()
+		{
+			super.close();
+			closing.countDown();
+		}
+	}
+
+
+	/** A Socket using the given streams; by default, an input stream at its end. */
+	private static final class StreamSocket extends Socket
+	{
+		private final InputStream in;
+		private final RecordingStream out;
+
+		StreamSocket(RecordingStream out) { this(new ByteArrayInputStream(new byte[0]), out); }
+
+		StreamSocket(InputStream in, RecordingStream out)
+		{
+			this.in = in;
+			this.out = out;
+		}
+
+		@Override public InputStream getInputStream() { return in; }
+
+		@Override public OutputStream getOutputStream() { return out; }
+
+		@Override public void setTcpNoDelay(boolean on) {}
+
+		@Override public synchronized void close() { out.close(); }
+	}
+
+}